@@ -10,6 +10,7 @@ import org.bigbio.pgatk.pepgenome.kmer.IKmerMap;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 
 public class CoordinateWrapper implements Serializable {
@@ -33,6 +34,23 @@ public class CoordinateWrapper implements Serializable {
         this.m_existing_peptides = new ExistingPeptides();
     }
 
+    //wrapper of the given proteins without existing peptides.
+    private CoordinateWrapper(Map<String, ProteinEntry> proteins, int totalAACount) {
+        this.m_map = proteins;
+        this.m_existing_peptides = new ExistingPeptides();
+        this.totalAACount = totalAACount;
+    }
+
+    /**
+     * Returns a wrapper of the same proteins without existing peptides, so the peptides of an input file are
+     * mapped independently of the other files. The proteins are shared and must not be changed while the
+     * wrapper is used, the existing peptides belong to the returned wrapper.
+     * @return wrapper for one input file
+     */
+    public final CoordinateWrapper for_input() {
+        return new CoordinateWrapper(m_map, totalAACount);
+    }
+
     // TODO ||size()||
     public final int size() {
         return m_map.size();
@@ -110,6 +128,11 @@ public class CoordinateWrapper implements Serializable {
         return m_existing_peptides.contains(peptideSequence);
     }
 
+    //returns a copy of the sequences of all peptides found before.
+    public final Set<String> existing_peptide_sequences() {
+        return m_existing_peptides.sequences();
+    }
+
     // TODO ||getTotalAACount()||
     /**
      * Return the protein size sum of all proteins in the fasta file
@@ -4,18 +4,30 @@ import org.apache.commons.io.FilenameUtils;
 import org.apache.log4j.Logger;
 import org.bigbio.pgatk.pepgenome.common.Assembly;
 import org.bigbio.pgatk.pepgenome.common.SparkConfig;
+import org.bigbio.pgatk.pepgenome.common.SubstitutionMatrix;
 import org.bigbio.pgatk.pepgenome.common.Utils;
 import org.bigbio.pgatk.pepgenome.common.constants.GenomeMapper;
 import org.bigbio.pgatk.pepgenome.common.maps.MappedPeptides;
 import org.bigbio.pgatk.pepgenome.io.*;
 import org.bigbio.pgatk.pepgenome.io.custom.PeptideAtlasPeptideParser;
 import org.bigbio.pgatk.pepgenome.kmer.IKmerMap;
-import org.bigbio.pgatk.pepgenome.kmer.inmemory.KmerSortedMap;
+import org.bigbio.pgatk.pepgenome.kmer.KmerEncoder;
+import org.bigbio.pgatk.pepgenome.kmer.SearchReport;
+import org.bigbio.pgatk.pepgenome.kmer.inmemory.KmerIntMap;
+import org.bigbio.pgatk.pepgenome.kmer.inmemory.KmerMultiMap;
+import org.bigbio.pgatk.pepgenome.kmer.inmemory.KmerSuffixArrayMap;
 import org.bigbio.pgatk.pepgenome.kmer.inmemory.KmerTreeMap;
+import org.bigbio.pgatk.pepgenome.kmer.mapdb.KmerMapDbMap;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Stream;
 
 
@@ -56,6 +68,37 @@ public class PepGenomeTool {
     }
 
 
+    // KMER ENGINES
+    public enum KMER_ENGINE {
+        TREE("tree", "Kmer map with String keys (default, -inm selects in memory or database)"),
+        INT("int", "Kmer map with integer encoded keys and a direct addressed posting table"),
+        SUFFIX_ARRAY("sa", "Suffix array over all proteins, exact peptides are found without verification");
+
+        private String name;
+        private String description;
+
+        KMER_ENGINE(String name, String description) {
+            this.name = name;
+            this.description = description;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public static KMER_ENGINE findByString(String key) {
+            for (KMER_ENGINE value : values())
+                if (value.getName().equalsIgnoreCase(key))
+                    return value;
+            return null;
+        }
+    }
+
+
     //exit codes --------------------------------
     private static final int GENOME_MAPPER_EXIT_HELP = 1;
     private static final int GENOME_MAPPER_EXIT_TOO_FEW_ARGS = 2;
@@ -74,12 +117,19 @@ public class PepGenomeTool {
     private static final String ARG_SOURCE = "source";
     private static final String ARG_MM = "mm";
     private static final String ARG_MMMODE = "mmmode";
+    private static final String ARG_SUBST = "subst";
     private static final String ARG_CHR = "chr";
     private static final String ARG_HELP = "h";
     private static final String ARG_INMEMORY = "inm";
     private static final String ARG_INPUT_FORMAT = "inf";
     private static final String ARG_SPARK_MASTER = "spark_master";
     private static final String ARG_GENOME_FASTA = "genome";
+    private static final String ARG_ENGINE = "engine";
+    private static final String ARG_BATCH = "batch";
+    private static final String ARG_INDEX = "index";
+    private static final String ARG_KMER = "kmer";
+    private static final String ARG_THREADS = "threads";
+    private static final String ARG_FILES = "files";
     // TODO: ||Added peptide filter argument||
     private static final String ARG_PEPTIDE_FILTER = "filter"; // Addition - Peptide Filter
 
@@ -93,10 +143,21 @@ public class PepGenomeTool {
     private static boolean chrincluded = false;
     private static boolean inMemory = true;
     private static INPUT_FILE_FORMAT fileFormat = INPUT_FILE_FORMAT.TAB;
+    private static KMER_ENGINE kmerEngine = KMER_ENGINE.TREE;
+    private static boolean buildIndex = false;
+    private static boolean useIndex = false;
+    private static String indexFilePath = null;
+    //kmer lengths of the int engine, null for a single map of KMER_LENGTH and empty for auto tuning.
+    private static int[] kmerLengths = null;
     //TODO Edited - Added useExonCoords default value
     public static boolean useExonCoords = false;
     //TODO ||Edited - Added usePeptideFilter default value||
     public static boolean usePeptideFilter = false;
+    public static boolean useBatchMode = false;
+    //threads that search and insert the peptides of an input file, see PeptideMappingPipeline.
+    public static int threads = 1;
+    //input files mapped at the same time if they are not merged.
+    private static int parallelFiles = 1;
 
     // TODO Edited - Added map of transcript ID to CDS offset.
     public static HashMap<String, Integer> m_translation_offset_map = new HashMap<>();
@@ -120,12 +181,19 @@ public class PepGenomeTool {
                 .addOption(Option.builder(ARG_MERGE).hasArg(true).desc("Set 'true' to merge mappings from all files from input (default 'false')").build())
                 .addOption(Option.builder(ARG_FORMAT).hasArg(true).desc("Select the output formats from gtf, gct, bed, ptmbed, all or combinations thereof separated by ',' (default all)").build())
                 .addOption(Option.builder(ARG_SOURCE).hasArg(true).desc("Please give a source name which will be used in the second column in the output gtf file (default: PoGo)").build())
-                .addOption(Option.builder(ARG_MM).hasArg(true).desc("Allowed mismatches (0, 1 or 2; default: 0)").build())
+                .addOption(Option.builder(ARG_MM).hasArg(true).desc("Allowed mismatches (0 or more, more than 2 use the int engine. peptides too short to be split into mismatches + 1 seeds of 2 residues are scanned in all proteins; default: 0)").build())
+                .addOption(Option.builder(ARG_SUBST).hasArg(true).desc("Restricts mismatches to the substitutions of a file (one 'reference>variant' pair of residues per line) or to 'snv' (single nucleotide reachable amino acid changes). (default: any amino acid)").build())
                 .addOption(Option.builder(ARG_MMMODE).hasArg(true).desc("Mismatch mode (true or false): if true mismatching with two mismatches will only allow 1 mismatch every kmersize (default: 5) positions. (default: false)").build())
                 .addOption(Option.builder(ARG_GENOME_FASTA).hasArg(true).desc("Filepath for file containing genome sequence in FASTA format used to extract chromosome names and order and differenciate between assembly and scaffolds. If not set chromosome and scaffold names and order is extracted from GTF input.").build())
                 .addOption(Option.builder(ARG_CHR).hasArg(true).desc("Export chr prefix Allowed 0, 1  (default: 0)").build())
-                .addOption(Option.builder(ARG_INMEMORY).hasArg(true).desc("Compute the kmer algorithm in memory or using database algorithm (default 0, database 1)").build())
+                .addOption(Option.builder(ARG_INMEMORY).hasArg(true).desc("Compute the kmer algorithm in memory or using a disk backed database (MapDB) (default 0, database 1)").build())
                 .addOption(Option.builder(ARG_INPUT_FORMAT).hasArg(true).desc("Format of the input file (mztab, mzid, or tsv). (default tsv) ").build())
+                .addOption(Option.builder(ARG_ENGINE).hasArg(true).desc("Kmer engine used to search the peptides: tree, int or sa (default tree). The search strategies are only logged for the int engine (also used by -kmer and -index)").build())
+                .addOption(Option.builder(ARG_BATCH).hasArg(true).desc("Scan the proteins once for all peptides of a tab input file instead of searching every peptide, only used without mismatches. Allowed 0, 1 (default: 0)").build())
+                .addOption(Option.builder(ARG_KMER).hasArg(true).desc("Comma(,) separated kmer lengths indexed at once, every peptide is searched with the cheapest one, or 'auto' to choose the kmer length from the proteome (uses the int engine; default: 5)").build())
+                .addOption(Option.builder(ARG_INDEX).numberOfArgs(2).desc("'build <file>' writes the proteins and kmers to an index file, 'use <file>' reads them from it instead of the FASTA (uses the int engine)").build())
+                .addOption(Option.builder(ARG_THREADS).hasArg(true).desc("Number of threads that search and insert the peptides of an input file, the results are the same for any number (default: 1)").build())
+                .addOption(Option.builder(ARG_FILES).hasArg(true).desc("Number of input files mapped at the same time if they are not merged (-merge false), every file with its own results. Each file uses -threads threads (default: 1)").build())
                 .addOption(Option.builder(ARG_SPARK_MASTER).hasArg(true).desc("Spark master String. i.e., to run locally use: local[*]").build())
                 .addOption(Option.builder(ARG_HELP).hasArg(false).desc("Print this help & exit").build())
                 .addOption(Option.builder(ARG_PEPTIDE_FILTER).hasArg(true).desc("2021 Expansion: Peptide filter mode.").build());
@@ -167,23 +235,93 @@ public class PepGenomeTool {
             Utils.printHelpAndExitProgram(options, true, GENOME_MAPPER_EXIT_TOO_FEW_ARGS);
         }
 
+        fileFormat = INPUT_FILE_FORMAT.TAB;
         if (cmd.hasOption(ARG_INPUT_FORMAT))
             fileFormat = INPUT_FILE_FORMAT.findByString(cmd.getOptionValue(ARG_INPUT_FORMAT));
 
-        if (cmd.hasOption(ARG_INMEMORY) && cmd.getOptionValue(ARG_INMEMORY).equalsIgnoreCase("1")) {
-            inMemory = false;
+        inMemory = !(cmd.hasOption(ARG_INMEMORY) && cmd.getOptionValue(ARG_INMEMORY).equalsIgnoreCase("1"));
+
+        kmerEngine = KMER_ENGINE.TREE;
+        if (cmd.hasOption(ARG_ENGINE)) {
+            KMER_ENGINE engine = KMER_ENGINE.findByString(cmd.getOptionValue(ARG_ENGINE));
+            if (engine != null) {
+                kmerEngine = engine;
+            } else {
+                System.err.println("-engine: invalid input received : " + cmd.getOptionValue(ARG_ENGINE) + ". default (tree) assumed");
+            }
         }
 
-        //TODO Edit - Added exon coords argument check
-        if (cmd.hasOption(ARG_EXON_COORDS)) {
-            useExonCoords = true;
+        kmerLengths = null;
+        if (cmd.hasOption(ARG_KMER)) {
+            kmerLengths = parse_kmer_lengths(cmd.getOptionValue(ARG_KMER));
+            if (kmerLengths == null) {
+                System.err.println("-kmer: invalid input received : " + cmd.getOptionValue(ARG_KMER) + ". default (" + GenomeMapper.PEPTIDE_MAPPER.KMER_LENGTH + ") assumed");
+            } else if (kmerEngine != KMER_ENGINE.INT) {
+                System.err.println("-kmer: multiple kmer lengths are only supported by the int kmer engine. -engine int assumed");
+                kmerEngine = KMER_ENGINE.INT;
+            }
         }
 
-        //TODO ||Edit - Added peptide filter argument check||
-        if (cmd.hasOption(ARG_PEPTIDE_FILTER)) {
-            usePeptideFilter = true;
+        buildIndex = false;
+        useIndex = false;
+        indexFilePath = null;
+        if (cmd.hasOption(ARG_INDEX)) {
+            String[] indexParams = cmd.getOptionValues(ARG_INDEX);
+            if (indexParams.length == 2 && (indexParams[0].equalsIgnoreCase("build") || indexParams[0].equalsIgnoreCase("use"))) {
+                buildIndex = indexParams[0].equalsIgnoreCase("build");
+                useIndex = !buildIndex;
+                indexFilePath = indexParams[1];
+                if (kmerEngine != KMER_ENGINE.INT) {
+                    System.err.println("-index: the index holds the int kmer engine. -engine int assumed");
+                    kmerEngine = KMER_ENGINE.INT;
+                }
+                if (kmerLengths != null) {
+                    System.err.println("-index: the index holds a single kmer length. -kmer ignored");
+                    kmerLengths = null;
+                }
+            } else {
+                System.err.println("-index: expected 'build <file>' or 'use <file>'. no index used");
+            }
+        }
+
+        useBatchMode = cmd.hasOption(ARG_BATCH) && cmd.getOptionValue(ARG_BATCH).equalsIgnoreCase("1");
+
+        threads = 1;
+        if (cmd.hasOption(ARG_THREADS)) {
+            int par = -1;
+            try {
+                par = Integer.parseInt(cmd.getOptionValue(ARG_THREADS));
+            } catch (NumberFormatException e) {
+                System.err.println("ERROR: -threads param: invalid input received : " + cmd.getOptionValue(ARG_THREADS));
+            }
+            if (par >= 1) {
+                threads = par;
+            } else {
+                System.err.println("-threads: at least one thread is needed. default (1) assumed");
+            }
+        }
+
+        parallelFiles = 1;
+        if (cmd.hasOption(ARG_FILES)) {
+            int par = -1;
+            try {
+                par = Integer.parseInt(cmd.getOptionValue(ARG_FILES));
+            } catch (NumberFormatException e) {
+                System.err.println("ERROR: -files param: invalid input received : " + cmd.getOptionValue(ARG_FILES));
+            }
+            if (par >= 1) {
+                parallelFiles = par;
+            } else {
+                System.err.println("-files: at least one file is needed. default (1) assumed");
+            }
         }
 
+        //TODO Edit - Added exon coords argument check
+        useExonCoords = cmd.hasOption(ARG_EXON_COORDS);
+
+        //TODO ||Edit - Added peptide filter argument check||
+        usePeptideFilter = cmd.hasOption(ARG_PEPTIDE_FILTER);
+
         SparkConfig sparkConfig = SparkConfig.getInstance();
         sparkConfig.setMaster(null);
         if (cmd.hasOption(ARG_SPARK_MASTER)) {
@@ -244,9 +382,7 @@ public class PepGenomeTool {
         }
 
         String mergeParam = cmd.getOptionValue(ARG_MERGE);
-        if (mergeParam != null && mergeParam.toLowerCase().startsWith("t")) {
-            mergeFlag = true;
-        }
+        mergeFlag = mergeParam != null && mergeParam.toLowerCase().startsWith("t");
 
         String formatParam = cmd.getOptionValue(ARG_FORMAT);
         if (formatParam == null || formatParam.toLowerCase().contains("all")) {
@@ -278,6 +414,7 @@ public class PepGenomeTool {
 
         //TODO ||Mismatch input parameter section||
         String mmParam = cmd.getOptionValue(ARG_MM);
+        GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES = 0;
         if (mmParam != null) {
             int par = -1;
             try {
@@ -285,14 +422,33 @@ public class PepGenomeTool {
             } catch (Exception e) {
                 System.err.println("ERROR: -mm param: invalid input received : " + mmParam);
             }
-            if (par >= 0 && par <= 2) {
+            if (par >= 0) {
                 GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES = par;
             } else {
-                System.err.println("-mm: allowed mismatches need to be between 0 and 2. default (0) assumed");
+                System.err.println("-mm: allowed mismatches need to be 0 or more. default (0) assumed");
+            }
+            if (!PossibleKeyGenerator.has_neighbour_keys() && kmerEngine != KMER_ENGINE.INT) {
+                System.err.println("-mm: more than " + PossibleKeyGenerator.MAX_NEIGHBOUR_MISMATCHES + " mismatches are only supported by the int kmer engine. -engine int assumed");
+                kmerEngine = KMER_ENGINE.INT;
+            }
+        }
+
+        GenomeMapper.PEPTIDE_MAPPER.SUBSTITUTIONS = null;
+        String substParam = cmd.getOptionValue(ARG_SUBST);
+        if (substParam != null) {
+            if (GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES == 0) {
+                System.err.println("-subst: substitutions are only used with mismatches (-mm). ignored");
+            } else {
+                try {
+                    GenomeMapper.PEPTIDE_MAPPER.SUBSTITUTIONS = SubstitutionMatrix.of(substParam);
+                } catch (IOException e) {
+                    System.err.println("ERROR: -subst param: " + e.getMessage() + ". any substitution assumed");
+                }
             }
         }
 
         String mmModeParam = cmd.getOptionValue(ARG_MMMODE);
+        GenomeMapper.PEPTIDE_MAPPER.ONE_IN_FIVE_MODE = false;
         if (mmModeParam != null) {
             if (mmModeParam.toLowerCase().startsWith("t")) {
                 if (GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES > 1) {
@@ -306,6 +462,7 @@ public class PepGenomeTool {
         }
 
         String chrParam = cmd.getOptionValue(ARG_CHR);
+        chrincluded = false;
         if (chrParam != null) {
             int par = -1;
             try {
@@ -328,6 +485,9 @@ public class PepGenomeTool {
 
         String pluralString = (GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES == 1) ? " mismatch" : " mismatches";
         log.info("Start: allowing " + GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES + pluralString);
+        if (GenomeMapper.PEPTIDE_MAPPER.SUBSTITUTIONS != null) {
+            log.info("Mismatches restricted to " + GenomeMapper.PEPTIDE_MAPPER.SUBSTITUTIONS.size() + " substitutions");
+        }
 
 
         try {
@@ -337,28 +497,55 @@ public class PepGenomeTool {
                 GenomeFastaParser.readGenomeFASTA(fastaGenomeFilePath);
             }
 
-            log.info("Reading FASTA: " + fastaFilePath);
             CoordinateWrapper coordinate_wrapper = new CoordinateWrapper();
-            coordinate_wrapper.read_fasta_file(fastaFilePath);
-
-            log.info("Fasta done: " + coordinate_wrapper.size() + " proteins read.");
-            log.info("Building KmerTreeMap...");
-
-            int kmerSize = (coordinate_wrapper.getTotalAACount() / coordinate_wrapper.getNumberOfProteins());
-            kmerSize = (kmerSize / GenomeMapper.PEPTIDE_MAPPER.KMER_LENGTH) * coordinate_wrapper.getNumberOfProteins();
+            IKmerMap kmer_map = null;
+            if (useIndex) {
+                log.info("Reading index: " + indexFilePath);
+                try {
+                    kmer_map = KmerIndexFile.read(indexFilePath, fastaFilePath, GenomeMapper.PEPTIDE_MAPPER.KMER_LENGTH, coordinate_wrapper);
+                    log.info("Index done: " + coordinate_wrapper.size() + " proteins read.");
+                } catch (IOException e) {
+                    log.info("Index can not be used (" + e.getMessage() + "), reading FASTA instead.");
+                    coordinate_wrapper = new CoordinateWrapper();
+                }
+            }
 
-            IKmerMap kmer_map;
-            if (inMemory)
-                kmer_map = new KmerTreeMap();
-            else
-                kmer_map = new KmerSortedMap(kmerSize);
+            if (kmer_map == null) {
+                log.info("Reading FASTA: " + fastaFilePath);
+                coordinate_wrapper.read_fasta_file(fastaFilePath);
+
+                log.info("Fasta done: " + coordinate_wrapper.size() + " proteins read.");
+                log.info("Building KmerTreeMap...");
+
+                if (kmerEngine == KMER_ENGINE.INT && kmerLengths != null)
+                    kmer_map = new KmerMultiMap(kmerLengths);
+                else if (kmerEngine == KMER_ENGINE.INT)
+                    kmer_map = new KmerIntMap();
+                else if (kmerEngine == KMER_ENGINE.SUFFIX_ARRAY)
+                    kmer_map = new KmerSuffixArrayMap();
+                else if (inMemory)
+                    kmer_map = new KmerTreeMap();
+                else
+                    kmer_map = new KmerMapDbMap();
 
-            coordinate_wrapper.add_all_proteins_to_kmer_map(kmer_map);
+                coordinate_wrapper.add_all_proteins_to_kmer_map(kmer_map);
 
-            if (!inMemory)
-                ((KmerSortedMap) kmer_map).sortKmer();
+                if (buildIndex) {
+                    log.info("Writing index: " + indexFilePath);
+                    KmerIndexFile.write(indexFilePath, fastaFilePath, (KmerIntMap) kmer_map);
+                }
+            }
 
-            log.info("KmerTreeMap done: " + kmer_map.size() + " unique " + GenomeMapper.PEPTIDE_MAPPER.KMER_LENGTH + "-mers created.");
+            if (kmer_map instanceof KmerMultiMap) {
+                //-kmer: every resolution has kmers of its own length.
+                int[] lengths = ((KmerMultiMap) kmer_map).kmer_lengths();
+                int[] sizes = ((KmerMultiMap) kmer_map).sizes();
+                for (int i = 0; i < lengths.length; i++) {
+                    log.info("KmerMultiMap done: " + sizes[i] + " unique " + lengths[i] + "-mers created.");
+                }
+            } else {
+                log.info("KmerTreeMap done: " + kmer_map.size() + " unique " + GenomeMapper.PEPTIDE_MAPPER.KMER_LENGTH + "-mers created.");
+            }
 
             log.info("Reading Annotation file: " + annFilePath);
             MappedPeptides mapped_peptides = new MappedPeptides();
@@ -383,73 +570,24 @@ public class PepGenomeTool {
                 if (GenomeMapper.PEPTIDE_MAPPER.ONE_IN_FIVE_MODE) {
                     ss.append("-(1in5)");
                 }
+                if (GenomeMapper.PEPTIDE_MAPPER.SUBSTITUTIONS != null) {
+                    ss.append("-subst");
+                }
 
                 filename_mm_postfix = ss.toString();
             }
 
             // TODO ||PEPTIDE Section||
             System.out.println("---PEPTIDE LOOP BEGINS---");
-            for (String peptideInputFilePath : peptideInputFilePaths) {
-                log.info("Computing genomic coordinates for: " + peptideInputFilePath);
-                String final_peptide_path_results = FilenameUtils.removeExtension(peptideInputFilePath);
-
-                //TODO ||Cleanup: Remove commented out lines from before expansions?||
-//                ArrayList<String> tokens = new ArrayList<>(Arrays.asList(Utils.tokenize(curr_input_file_path, ".")));
-
-                String path6 = final_peptide_path_results + "_unmapped.txt";
-
-                // TODO ||Determine file format and read file using parser (Tab, MzTab, PeptideAtlas)||
-                if (fileFormat == INPUT_FILE_FORMAT.MZTAB)
-                    new MzTabInputPeptideFileParser().read(peptideInputFilePath, coordinate_wrapper, mapped_peptides, path6, kmer_map);
-                else if (fileFormat == INPUT_FILE_FORMAT.PEPTIDEATLAS)
-                    new PeptideAtlasPeptideParser().read(peptideInputFilePath, coordinate_wrapper, mapped_peptides, path6, kmer_map);
-                else
-                    new TabInputPeptideFileParser().read(peptideInputFilePath, coordinate_wrapper, mapped_peptides, path6, kmer_map);
-
-                log.info("Results complete. (" + peptideInputFilePath + ")");
-                log.info("Writing output files.");
-
-                if (!mergeFlag) {
-                    //the gtf overwrites the input gtf if they are in the same folder
-
-                    String path4 = final_peptide_path_results + filename_mm_postfix + "_out.gtf";
-                    String path5 = final_peptide_path_results + filename_mm_postfix + ".bed";
-                    String path7 = final_peptide_path_results + filename_mm_postfix + ".gct";
-                    String path8 = final_peptide_path_results + filename_mm_postfix + "_ptm.bed";
-                    String path81 = final_peptide_path_results + filename_mm_postfix + "_no-ptm.bed";
-                    String path9 = final_peptide_path_results + filename_mm_postfix + "_" + assem.toString() + "_out.gtf";
-                    String path10 = final_peptide_path_results + filename_mm_postfix + "_" + assem.toString() + ".bed";
-                    String path11 = final_peptide_path_results + filename_mm_postfix + "_" + assem.toString() + ".gct";
-                    String path12 = final_peptide_path_results + filename_mm_postfix + "_" + assem.toString() + "_ptm.bed";
-                    String path121 = final_peptide_path_results + filename_mm_postfix + "_" + assem.toString() + "_no-ptm.bed";
-
-                    if (assem == Assembly.patchhaploscaff) {
-                        path9 = final_peptide_path_results + filename_mm_postfix + "_patch_hapl_scaff_out.gtf";
-                        path10 = final_peptide_path_results + filename_mm_postfix + "_patch_hapl_scaff.bed";
-                        path11 = final_peptide_path_results + filename_mm_postfix + "_patch_hapl_scaff.gct";
-                        path12 = final_peptide_path_results + filename_mm_postfix + "_patch_hapl_scaff_ptm.bed";
-                        path121 = final_peptide_path_results + filename_mm_postfix + "_patch_hapl_scaff_no-ptm.bed";
-                    }
-                    if (gtfOutFlag) {
-                        mapped_peptides.to_gtf(path4, source);
-                        mapped_peptides.to_gtf(path9, source, assem);
-                    }
-                    if (bedOutFlag) {
-                        //TODO ||mapped_peptides.to_bed(...) - Remove testing||
-                        System.out.println("mapped_peptides.to_bed(...) - Unmerged, chrincluded");
-                        mapped_peptides.to_bed(path5, Assembly.primary, chrincluded);
-                        mapped_peptides.to_bed(path10, assem, chrincluded);
-                    }
-                    if (gctOutFlag) {
-                        mapped_peptides.to_gct(path7, Assembly.primary, chrincluded);
-                        mapped_peptides.to_gct(path11, assem);
-                    }
-                    if (ptmbedOutFlag) {
-                        mapped_peptides.to_ptmbed(path8, path81);
-                        mapped_peptides.to_ptmbed(path12, path121, assem);
-                    }
-                    mapped_peptides.remove_all_peptides();
+            SearchReport.get().reset();
+            if (mergeFlag) {
+                //the peptides of all files are collected in one mapping.
+                for (String peptideInputFilePath : peptideInputFilePaths) {
+                    read_peptides(peptideInputFilePath, coordinate_wrapper, mapped_peptides, kmer_map);
+                    log_search_report();
                 }
+            } else {
+                map_files(peptideInputFilePaths, coordinate_wrapper, mapped_peptides, kmer_map, assem, filename_mm_postfix);
             }
             if (mergeFlag) {
 //                ArrayList<String> tokens = new ArrayList<>(Arrays.asList(Utils.tokenize(peptideInputFilePaths[0], ".")));
@@ -505,4 +643,134 @@ public class PepGenomeTool {
         long totalTime = (long) ((endTime - startTime) / 1000000000.0);
         log.debug("Running time -- " + totalTime + " Min");
     }
+
+    //maps every input file on its own: each file gets its own mapped peptides and existing peptides, the proteins,
+    //the kmer map and the annotation are shared. up to parallelFiles files are mapped at the same time.
+    private static void map_files(String[] peptideInputFilePaths, CoordinateWrapper coordinate_wrapper, MappedPeptides annotation, IKmerMap kmer_map, Assembly assem, String filename_mm_postfix) throws Exception {
+        if (parallelFiles <= 1 || peptideInputFilePaths.length == 1) {
+            for (String peptideInputFilePath : peptideInputFilePaths) {
+                map_file(peptideInputFilePath, coordinate_wrapper.for_input(), annotation.copy_annotation(), kmer_map, assem, filename_mm_postfix);
+                log_search_report();
+            }
+            return;
+        }
+        //the pool bounds the files in memory, the others wait for a thread.
+        ExecutorService files = Executors.newFixedThreadPool(Math.min(parallelFiles, peptideInputFilePaths.length));
+        try {
+            List<Future<Object>> mapped = new ArrayList<>();
+            for (String peptideInputFilePath : peptideInputFilePaths) {
+                mapped.add(files.submit(() -> {
+                    map_file(peptideInputFilePath, coordinate_wrapper.for_input(), annotation.copy_annotation(), kmer_map, assem, filename_mm_postfix);
+                    return null;
+                }));
+            }
+            for (Future<Object> file : mapped) {
+                try {
+                    file.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        } finally {
+            files.shutdownNow();
+        }
+        //the search strategies of the files are counted together.
+        log_search_report();
+    }
+
+    //maps the peptides of an input file and writes its output files.
+    private static void map_file(String peptideInputFilePath, CoordinateWrapper coordinate_wrapper, MappedPeptides mapped_peptides, IKmerMap kmer_map, Assembly assem, String filename_mm_postfix) throws Exception {
+        read_peptides(peptideInputFilePath, coordinate_wrapper, mapped_peptides, kmer_map);
+        log.info("Writing output files. (" + peptideInputFilePath + ")");
+
+        String final_peptide_path_results = FilenameUtils.removeExtension(peptideInputFilePath);
+        //the gtf overwrites the input gtf if they are in the same folder
+        String path4 = final_peptide_path_results + filename_mm_postfix + "_out.gtf";
+        String path5 = final_peptide_path_results + filename_mm_postfix + ".bed";
+        String path7 = final_peptide_path_results + filename_mm_postfix + ".gct";
+        String path8 = final_peptide_path_results + filename_mm_postfix + "_ptm.bed";
+        String path81 = final_peptide_path_results + filename_mm_postfix + "_no-ptm.bed";
+        String path9 = final_peptide_path_results + filename_mm_postfix + "_" + assem.toString() + "_out.gtf";
+        String path10 = final_peptide_path_results + filename_mm_postfix + "_" + assem.toString() + ".bed";
+        String path11 = final_peptide_path_results + filename_mm_postfix + "_" + assem.toString() + ".gct";
+        String path12 = final_peptide_path_results + filename_mm_postfix + "_" + assem.toString() + "_ptm.bed";
+        String path121 = final_peptide_path_results + filename_mm_postfix + "_" + assem.toString() + "_no-ptm.bed";
+
+        if (assem == Assembly.patchhaploscaff) {
+            path9 = final_peptide_path_results + filename_mm_postfix + "_patch_hapl_scaff_out.gtf";
+            path10 = final_peptide_path_results + filename_mm_postfix + "_patch_hapl_scaff.bed";
+            path11 = final_peptide_path_results + filename_mm_postfix + "_patch_hapl_scaff.gct";
+            path12 = final_peptide_path_results + filename_mm_postfix + "_patch_hapl_scaff_ptm.bed";
+            path121 = final_peptide_path_results + filename_mm_postfix + "_patch_hapl_scaff_no-ptm.bed";
+        }
+        if (gtfOutFlag) {
+            mapped_peptides.to_gtf(path4, source);
+            mapped_peptides.to_gtf(path9, source, assem);
+        }
+        if (bedOutFlag) {
+            mapped_peptides.to_bed(path5, Assembly.primary, chrincluded);
+            mapped_peptides.to_bed(path10, assem, chrincluded);
+        }
+        if (gctOutFlag) {
+            mapped_peptides.to_gct(path7, Assembly.primary, chrincluded);
+            mapped_peptides.to_gct(path11, assem);
+        }
+        if (ptmbedOutFlag) {
+            mapped_peptides.to_ptmbed(path8, path81);
+            mapped_peptides.to_ptmbed(path12, path121, assem);
+        }
+    }
+
+    //reads the peptides of an input file and adds their genomic coordinates to the mapped peptides.
+    private static void read_peptides(String peptideInputFilePath, CoordinateWrapper coordinate_wrapper, MappedPeptides mapped_peptides, IKmerMap kmer_map) throws Exception {
+        log.info("Computing genomic coordinates for: " + peptideInputFilePath);
+        String final_peptide_path_results = FilenameUtils.removeExtension(peptideInputFilePath);
+
+        //TODO ||Cleanup: Remove commented out lines from before expansions?||
+//        ArrayList<String> tokens = new ArrayList<>(Arrays.asList(Utils.tokenize(curr_input_file_path, ".")));
+
+        String path6 = final_peptide_path_results + "_unmapped.txt";
+
+        // TODO ||Determine file format and read file using parser (Tab, MzTab, PeptideAtlas)||
+        if (fileFormat == INPUT_FILE_FORMAT.MZTAB)
+            new MzTabInputPeptideFileParser().read(peptideInputFilePath, coordinate_wrapper, mapped_peptides, path6, kmer_map);
+        else if (fileFormat == INPUT_FILE_FORMAT.PEPTIDEATLAS)
+            new PeptideAtlasPeptideParser().read(peptideInputFilePath, coordinate_wrapper, mapped_peptides, path6, kmer_map);
+        else
+            new TabInputPeptideFileParser().read(peptideInputFilePath, coordinate_wrapper, mapped_peptides, path6, kmer_map);
+
+        log.info("Results complete. (" + peptideInputFilePath + ")");
+    }
+
+    //logs and resets the decisions of the search planner of the int engine, see KmerIntMap::plan. the other engines
+    //do not plan their searches, nothing is logged for them.
+    private static void log_search_report() {
+        if (!SearchReport.get().is_empty()) {
+            log.info("Search strategies:");
+            for (String line : SearchReport.get().lines()) {
+                log.info("  " + line);
+            }
+            SearchReport.get().reset();
+        }
+    }
+
+    //parses the -kmer value: "auto" gives an empty array, comma separated lengths their values. returns null if invalid.
+    private static int[] parse_kmer_lengths(String value) {
+        if (value.equalsIgnoreCase("auto")) {
+            return new int[0];
+        }
+        String[] tokens = value.split(",");
+        int[] lengths = new int[tokens.length];
+        try {
+            for (int i = 0; i < tokens.length; i++) {
+                lengths[i] = Integer.parseInt(tokens[i].trim());
+                if (lengths[i] < 1 || lengths[i] > KmerEncoder.MAX_KMER_LENGTH) {
+                    return null;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return lengths;
+    }
 }
\ No newline at end of file
@@ -1,8 +1,14 @@
 package org.bigbio.pgatk.pepgenome;
 
+import org.bigbio.pgatk.pepgenome.common.SubstitutionMatrix;
 import org.bigbio.pgatk.pepgenome.common.Tuple;
 import org.bigbio.pgatk.pepgenome.common.constants.GenomeMapper;
 import org.bigbio.pgatk.pepgenome.kmer.IKmerMap;
+import org.bigbio.pgatk.pepgenome.kmer.KmerCounts;
+import org.bigbio.pgatk.pepgenome.kmer.KmerEncoder;
+import org.bigbio.pgatk.pepgenome.kmer.KmerPresence;
+import org.bigbio.pgatk.pepgenome.kmer.QueryContext;
+import org.bigbio.pgatk.pepgenome.kmer.SeedPlanner;
 
 import java.io.Serializable;
 import java.util.ArrayList;
@@ -10,6 +16,10 @@ import java.util.List;
 
 public class PossibleKeyGenerator implements Serializable {
     private static final long serialVersionUID = 809902192340291246L;
+
+    //neighbour keys are only generated up to this many mismatches, their number grows with 19^mismatches.
+    //peptides that are too short to be split into seeds are not found with more mismatches.
+    public static final int MAX_NEIGHBOUR_MISMATCHES = 2;
     //string used to generate keys.
     private String m_key = "";
 
@@ -26,10 +36,35 @@ public class PossibleKeyGenerator implements Serializable {
     //iterator pointing to the current element in m_keys.
     private int m_curr_index;
 
+    //kmers of the map as bits, used to reject neighbour keys before a string is built. null if not known.
+    private KmerPresence m_presence;
+
+    //postings of every kmer code, used to choose the rarest seeds. null to seed at 0, k, 2k, ...
+    private KmerCounts m_counts;
+
+    private SeedPlanner m_planner = new SeedPlanner();
+
+    //start of every seed in the peptide, in the order of m_keys. only used if m_seeded is set.
+    private int[] m_seed_offsets = new int[4];
+    private boolean m_seeded = false;
+
+    //start in the peptide of the key last returned by get_next_key.
+    private int m_key_offset = 0;
+
     public PossibleKeyGenerator(IKmerMap k) {
         this.m_kmers = k;
     }
 
+    //sets the kmers of the map, called by the map when its kmers are indexed.
+    public void set_presence(KmerPresence presence) {
+        this.m_presence = presence;
+    }
+
+    //sets the kmer counts of the map, called by the map when its kmers are indexed.
+    public void set_counts(KmerCounts counts) {
+        this.m_counts = counts;
+    }
+
     //returns
     //-1: key is shorter than KMER_LENGTH
     // 0: key is shorter than (ALLOWED MISMATCHES + 1) * KMER_LENGTH
@@ -46,13 +81,9 @@ public class PossibleKeyGenerator implements Serializable {
             //therefore the peptide will be found. this uses the match_backwards function.
             //if the key is longer this approach will also work. in the 2 mismatches case it generates 3 keys,
             //as opposed to the brute force key generation which will produce 3331 unique keys.
-            for (int i = 0; i <= GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES; i++) {
-                int start = i * GenomeMapper.PEPTIDE_MAPPER.KMER_LENGTH;
-                int end = ((start + GenomeMapper.PEPTIDE_MAPPER.KMER_LENGTH) > key.length()) ? key.length() : (start + GenomeMapper.PEPTIDE_MAPPER.KMER_LENGTH);
-                m_keys.add(key.substring(start, end));
-            }
-            m_keys_generated = true;
-            m_curr_index = 0;
+            //the seeds do not have to be at 0, k, 2k: any allowed_mismatches + 1 non overlapping kmers work,
+            //so the rarest ones are used if the counts are known (see SeedPlanner).
+            set_seed_keys(key, GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES + 1);
             return 1;
         }
         if (key.length() >= GenomeMapper.PEPTIDE_MAPPER.KMER_LENGTH) {
@@ -75,13 +106,7 @@ public class PossibleKeyGenerator implements Serializable {
             //therefore the peptide will be found. this uses the match_backwards function.
             //if the key is longer this approach will also work. in the 2 mismatches case it generates 3 keys,
             //as opposed to the brute force key generation which will produce 3331 unique keys.
-            for (int i = 0; i <= allowedMismatches; i++) {
-                int start = i * GenomeMapper.PEPTIDE_MAPPER.KMER_LENGTH;
-                int end = ((start + GenomeMapper.PEPTIDE_MAPPER.KMER_LENGTH) > key.length()) ? key.length() : (start + GenomeMapper.PEPTIDE_MAPPER.KMER_LENGTH);
-                m_keys.add(key.substring(start, end));
-            }
-            m_keys_generated = true;
-            m_curr_index = 0;
+            set_seed_keys(key, allowedMismatches + 1);
             return 1;
         }
         if (key.length() >= GenomeMapper.PEPTIDE_MAPPER.KMER_LENGTH) {
@@ -91,6 +116,201 @@ public class PossibleKeyGenerator implements Serializable {
         return -1;
     }
 
+    /**
+     * Allocation free variant of set_original_key and get_next_key for kmer maps that store kmer codes
+     * (see {@link KmerEncoder}). The keys are written to the context as code and offset of the key in the
+     * peptide, in the same order and with the same repetitions as get_next_key returns them (given the same counts). Keys rejected by
+     * the presence set are left out, looking them up would find no postings anyway.
+     * @param key peptide
+     * @param allowedMismatches mismatches used to split long peptides into seeds
+     * @param kmerLength length of the kmers of the map
+     * @param presence kmers of the map, keys that are not in it are skipped. null to keep all keys
+     * @param counts postings of the kmers of the map, seeds are put on the rarest windows. null for the fixed partition
+     * @param context receives the keys
+     * @return same as set_original_key
+     */
+    public static int generate_key_codes(String key, int allowedMismatches, int kmerLength, KmerPresence presence, KmerCounts counts, QueryContext context) {
+        int seeds = allowedMismatches + 1;
+        if (key.length() >= (seeds * kmerLength)) {
+            generate_seed_codes(key, seeds, kmerLength, presence, counts, context);
+            return 1;
+        }
+        if (key.length() >= kmerLength) {
+            generate_neighbour_codes(key, GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES, kmerLength, presence, context);
+            return 0;
+        }
+        return -1;
+    }
+
+    /**
+     * Writes the codes of seeds non overlapping seeds of the key to the context, see set_original_key: with
+     * seeds - 1 allowed mismatches one of them matches perfectly.
+     * @param key peptide, at least seeds * kmerLength long
+     * @param seeds number of seeds
+     * @param kmerLength length of the kmers of the map
+     * @param presence kmers of the map, keys that are not in it are skipped. null to keep all keys
+     * @param counts postings of the kmers of the map, seeds are put on the rarest windows. null for the fixed partition
+     * @param context receives the keys
+     */
+    public static void generate_seed_codes(String key, int seeds, int kmerLength, KmerPresence presence, KmerCounts counts, QueryContext context) {
+        if (counts != null) {
+            plan_seeds(key, kmerLength, seeds, counts, context.planner());
+        }
+        for (int i = 0; i < seeds; i++) {
+            int start = (counts != null) ? context.planner().start(i) : i * kmerLength;
+            add_key_code(KmerEncoder.encode(key, start, kmerLength), start, presence, context);
+        }
+    }
+
+    /**
+     * Writes the codes of the neighbour keys of the first kmer of the key to the context: the kmer itself
+     * without mismatches, else every key within one or two substituted residues.
+     * @param key peptide, at least kmerLength long
+     * @param allowedMismatches allowed mismatches, at most MAX_NEIGHBOUR_MISMATCHES
+     * @param kmerLength length of the kmers of the map
+     * @param presence kmers of the map, keys that are not in it are skipped. null to keep all keys
+     * @param context receives the keys
+     */
+    public static void generate_neighbour_codes(String key, int allowedMismatches, int kmerLength, KmerPresence presence, QueryContext context) {
+        int code = KmerEncoder.encode(key, 0, kmerLength);
+        if (allowedMismatches == 0) {
+            add_key_code(code, 0, presence, context);
+        } else if (allowedMismatches == 1 || (allowedMismatches == 2 && GenomeMapper.PEPTIDE_MAPPER.ONE_IN_FIVE_MODE)) {
+            generate_codes_one_mismatch(key, code, kmerLength, presence, context);
+        } else if (allowedMismatches == 2) {
+            generate_codes_two_mismatches(key, code, kmerLength, presence, context);
+        }
+    }
+
+    //true if neighbour keys are generated for peptides that are too short to be split into seeds.
+    public static boolean has_neighbour_keys() {
+        return has_neighbour_keys(GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES);
+    }
+
+    //true if generate_neighbour_codes enumerates the keys for this number of mismatches.
+    public static boolean has_neighbour_keys(int allowedMismatches) {
+        return allowedMismatches <= MAX_NEIGHBOUR_MISMATCHES;
+    }
+
+    /**
+     * Number of keys generate_key_codes writes for a peptide that is too short to be split into seeds. With a
+     * substitution matrix the average number of allowed residues per position is used.
+     * @param kmerLength length of the kmers of the map
+     * @return number of neighbour keys of the first kmer
+     */
+    public static int neighbour_key_count(int kmerLength) {
+        return neighbour_key_count(kmerLength, GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES);
+    }
+
+    //number of keys generate_neighbour_codes writes for this number of mismatches, see neighbour_key_count(int).
+    public static int neighbour_key_count(int kmerLength, int allowedMismatches) {
+        double amino_acids = (GenomeMapper.PEPTIDE_MAPPER.SUBSTITUTIONS == null) ? GenomeMapper.PEPTIDE_MAPPER.ALLOWED_AMINO_ACIDS.length
+                : GenomeMapper.PEPTIDE_MAPPER.SUBSTITUTIONS.variants(GenomeMapper.PEPTIDE_MAPPER.ALLOWED_AMINO_ACIDS);
+        if (allowedMismatches == 0) {
+            return 1;
+        } else if (allowedMismatches == 1 || (allowedMismatches == 2 && GenomeMapper.PEPTIDE_MAPPER.ONE_IN_FIVE_MODE)) {
+            return (int) Math.ceil(kmerLength * amino_acids);
+        } else if (allowedMismatches == 2) {
+            //pairs of positions i <= j, without i == j == kmerLength - 1.
+            return (int) Math.ceil((kmerLength * (kmerLength + 1) / 2 - 1) * amino_acids * amino_acids);
+        }
+        return 0;
+    }
+
+    //true if the residue of the key may stand for the residue of the protein, see GenomeMapper.PEPTIDE_MAPPER.SUBSTITUTIONS.
+    private static boolean is_substitution(char protein, char key) {
+        SubstitutionMatrix substitutions = GenomeMapper.PEPTIDE_MAPPER.SUBSTITUTIONS;
+        return substitutions == null || substitutions.allows(protein, key);
+    }
+
+    private static void add_key_code(int code, int offset, KmerPresence presence, QueryContext context) {
+        if (presence == null || presence.contains(code)) {
+            context.add_key(code, offset);
+        }
+    }
+
+    //codes of all keys with one substituted residue, see generate_keys_one_mismatch.
+    private static void generate_codes_one_mismatch(String key, int code, int kmerLength, KmerPresence presence, QueryContext context) {
+        char[] amino_acids = GenomeMapper.PEPTIDE_MAPPER.ALLOWED_AMINO_ACIDS;
+        for (int i = 0; i < kmerLength; i++) {
+            int power = KmerEncoder.power(kmerLength - 1 - i);
+            int base = code - KmerEncoder.residue_code(key.charAt(i)) * power;
+            for (int aa = 0; aa < amino_acids.length; aa++) {
+                if (is_substitution(amino_acids[aa], key.charAt(i))) {
+                    add_key_code(base + aa * power, 0, presence, context);
+                }
+            }
+        }
+    }
+
+    //codes of all keys with two substituted residues, see generate_keys_two_mismatches.
+    private static void generate_codes_two_mismatches(String key, int code, int kmerLength, KmerPresence presence, QueryContext context) {
+        char[] amino_acids = GenomeMapper.PEPTIDE_MAPPER.ALLOWED_AMINO_ACIDS;
+        for (int i = 0; i < kmerLength - 1; i++) {
+            int power_i = KmerEncoder.power(kmerLength - 1 - i);
+            for (int j = i; j < kmerLength; j++) {
+                int power_j = KmerEncoder.power(kmerLength - 1 - j);
+                int base = code - KmerEncoder.residue_code(key.charAt(i)) * power_i;
+                if (j != i) {
+                    base -= KmerEncoder.residue_code(key.charAt(j)) * power_j;
+                }
+                for (int first = 0; first < amino_acids.length; first++) {
+                    if (j != i && !is_substitution(amino_acids[first], key.charAt(i))) {
+                        continue;
+                    }
+                    for (int second = 0; second < amino_acids.length; second++) {
+                        if (!is_substitution(amino_acids[second], key.charAt(j))) {
+                            continue;
+                        }
+                        //with i == j the second residue overwrites the first one.
+                        add_key_code((j == i) ? base + second * power_i : base + first * power_i + second * power_j, 0, presence, context);
+                    }
+                }
+            }
+        }
+    }
+
+    //splits the key into non overlapping seeds, the rarest windows if the counts are known.
+    private void set_seed_keys(String key, int seeds) {
+        int kmer_length = GenomeMapper.PEPTIDE_MAPPER.KMER_LENGTH;
+        if (m_seed_offsets.length < seeds) {
+            m_seed_offsets = new int[seeds];
+        }
+        if (m_counts != null) {
+            plan_seeds(key, kmer_length, seeds, m_counts, m_planner);
+        }
+        for (int i = 0; i < seeds; i++) {
+            int start = (m_counts != null) ? m_planner.start(i) : i * kmer_length;
+            m_seed_offsets[i] = start;
+            m_keys.add(key.substring(start, start + kmer_length));
+        }
+        m_seeded = true;
+        m_keys_generated = true;
+        m_curr_index = 0;
+    }
+
+    /**
+     * Counts the postings of every kmer window of the key and plans the seeds on them.
+     * @param key peptide, at least seeds * kmerLength long
+     * @param kmerLength length of the kmers of the map
+     * @param seeds number of non overlapping seeds
+     * @param counts postings of the kmers of the map
+     * @param planner receives the seed starts
+     */
+    public static void plan_seeds(String key, int kmerLength, int seeds, KmerCounts counts, SeedPlanner planner) {
+        int windows = key.length() - kmerLength + 1;
+        int[] window_counts = planner.counts(windows);
+        int code = KmerEncoder.encode(key, 0, kmerLength);
+        int top = KmerEncoder.power(kmerLength - 1);
+        for (int i = 0; i < windows; i++) {
+            if (i > 0) {
+                code = KmerEncoder.roll(code, key.charAt(i + kmerLength - 1), top);
+            }
+            window_counts[i] = counts.count(code);
+        }
+        planner.plan(windows, kmerLength, seeds);
+    }
+
     //used to set the kmerlength long key.
     private void set_short_original_key(String key) {
         if (GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES > 0) {
@@ -120,25 +340,40 @@ public class PossibleKeyGenerator implements Serializable {
             //otherwise just return the next key
             if (m_curr_index < m_keys.size()) {
                 String key = m_keys.get(m_curr_index);
+                m_key_offset = m_seeded ? m_seed_offsets[m_curr_index] : 0;
                 ++m_curr_index;
                 return key;
             }
             //and if the end is reached, clear out the old keys and wait for the next peptide.
             m_keys_generated = false;
+            m_seeded = false;
             m_key = "";
             m_keys.clear();
         }
         return null;
     }
 
+    //start in the peptide of the key last returned by get_next_key: the peptide starts this many residues
+    //before the kmer in the protein. always 0 for neighbour keys.
+    public int get_key_offset() {
+        return m_key_offset;
+    }
+
     //generates keys for one mismatch matching.
     private void generate_keys_one_mismatch() {
+        if (m_presence != null && m_presence.kmer_length() == m_key.length()) {
+            generate_present_keys_one_mismatch();
+            return;
+        }
         //generates all keys with one mismatch.
         for (int kmer_it = 0; kmer_it < GenomeMapper.PEPTIDE_MAPPER.KMER_LENGTH; kmer_it++) {
             if (kmer_it >= m_key.length()) {
                 break;
             }
             for (int aa_it = 0; aa_it < GenomeMapper.PEPTIDE_MAPPER.ALLOWED_AMINO_ACIDS.length; aa_it++) {
+                if (!is_substitution(GenomeMapper.PEPTIDE_MAPPER.ALLOWED_AMINO_ACIDS[aa_it], m_key.charAt(kmer_it))) {
+                    continue;
+                }
                 StringBuilder tmp = new StringBuilder(m_key);
                 tmp.setCharAt(kmer_it, GenomeMapper.PEPTIDE_MAPPER.ALLOWED_AMINO_ACIDS[aa_it]);
                 String tmpStr = tmp.toString();
@@ -154,6 +389,10 @@ public class PossibleKeyGenerator implements Serializable {
 
     //generates keys for two mismatch matching.
     private void generate_keys_two_mismatches() {
+        if (m_presence != null && m_presence.kmer_length() == m_key.length()) {
+            generate_present_keys_two_mismatches();
+            return;
+        }
         //generates all keys with 2 mismatches. this function is costly and should be avoided if possible.
         if (!generateKeysTwoMismatchesCombinationsGenerated) {
             for (int i = 0; i < GenomeMapper.PEPTIDE_MAPPER.ALLOWED_AMINO_ACIDS.length; ++i) {
@@ -176,6 +415,9 @@ public class PossibleKeyGenerator implements Serializable {
                 for (Tuple<Character, Character> pair : generateKeysTwoMismatchesCombinations) {
                     char first = pair.getKey();
                     char second = pair.getValue();
+                    if ((j != i && !is_substitution(first, m_key.charAt(i))) || !is_substitution(second, m_key.charAt(j))) {
+                        continue;
+                    }
                     tmp.setCharAt(i, first);
                     tmp.setCharAt(j, second);
                     String tmpStr = tmp.toString();
@@ -187,6 +429,60 @@ public class PossibleKeyGenerator implements Serializable {
         }
     }
 
+    //generate_keys_one_mismatch on the kmer codes: only keys that pass the presence test become strings.
+    private void generate_present_keys_one_mismatch() {
+        int kmer_length = m_key.length();
+        int code = KmerEncoder.encode(m_key, 0, kmer_length);
+        char[] key = m_key.toCharArray();
+        for (int kmer_it = 0; kmer_it < kmer_length; kmer_it++) {
+            int power = KmerEncoder.power(kmer_length - 1 - kmer_it);
+            int base = code - KmerEncoder.residue_code(key[kmer_it]) * power;
+            for (int aa_it = 0; aa_it < GenomeMapper.PEPTIDE_MAPPER.ALLOWED_AMINO_ACIDS.length; aa_it++) {
+                if (is_substitution(GenomeMapper.PEPTIDE_MAPPER.ALLOWED_AMINO_ACIDS[aa_it], m_key.charAt(kmer_it)) && m_presence.contains(base + aa_it * power)) {
+                    key[kmer_it] = GenomeMapper.PEPTIDE_MAPPER.ALLOWED_AMINO_ACIDS[aa_it];
+                    m_keys.add(new String(key));
+                }
+            }
+            key[kmer_it] = m_key.charAt(kmer_it);
+        }
+    }
+
+    //generate_keys_two_mismatches on the kmer codes: only keys that pass the presence test become strings.
+    private void generate_present_keys_two_mismatches() {
+        char[] amino_acids = GenomeMapper.PEPTIDE_MAPPER.ALLOWED_AMINO_ACIDS;
+        int kmer_length = m_key.length();
+        int code = KmerEncoder.encode(m_key, 0, kmer_length);
+        char[] key = m_key.toCharArray();
+        for (int i = 0; i < kmer_length - 1; i++) {
+            int power_i = KmerEncoder.power(kmer_length - 1 - i);
+            for (int j = i; j < kmer_length; j++) {
+                int power_j = KmerEncoder.power(kmer_length - 1 - j);
+                int base = code - KmerEncoder.residue_code(key[i]) * power_i;
+                if (j != i) {
+                    base -= KmerEncoder.residue_code(key[j]) * power_j;
+                }
+                for (int first = 0; first < amino_acids.length; first++) {
+                    if (j != i && !is_substitution(amino_acids[first], m_key.charAt(i))) {
+                        continue;
+                    }
+                    for (int second = 0; second < amino_acids.length; second++) {
+                        if (!is_substitution(amino_acids[second], m_key.charAt(j))) {
+                            continue;
+                        }
+                        //with i == j the second residue overwrites the first one.
+                        if (m_presence.contains((j == i) ? base + second * power_i : base + first * power_i + second * power_j)) {
+                            key[i] = amino_acids[first];
+                            key[j] = amino_acids[second];
+                            m_keys.add(new String(key));
+                            key[i] = m_key.charAt(i);
+                            key[j] = m_key.charAt(j);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
     //calls the other generator functions.
     private void generate_keys() {
         if (GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES == 1) {
@@ -198,7 +494,7 @@ public class PossibleKeyGenerator implements Serializable {
                 generate_keys_two_mismatches();
             }
         }
-        //add to here if three mismatches are required at some point.
+        //more mismatches are not enumerated (see MAX_NEIGHBOUR_MISMATCHES), the keys would grow with 19^mismatches.
     }
 
 }
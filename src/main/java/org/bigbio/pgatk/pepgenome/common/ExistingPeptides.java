@@ -2,12 +2,15 @@ package org.bigbio.pgatk.pepgenome.common;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ExistingPeptides implements Serializable {
 
-    private Map<String, ArrayList<PeptideEntry>> m_existing_peptides = new TreeMap<>();
+    //peptides can be added from several threads, the entries of a peptide by one of them.
+    private Map<String, ArrayList<PeptideEntry>> m_existing_peptides = new ConcurrentHashMap<>();
 
     public ExistingPeptides() {
     }
@@ -29,6 +32,11 @@ public class ExistingPeptides implements Serializable {
         peptideEntries.add(peptideEntry);
     }
 
+    //copy of the sequences of all peptides in the map.
+    public final Set<String> sequences() {
+        return new HashSet<>(m_existing_peptides.keySet());
+    }
+
     //access to the elements that are saved in the map.
     public final ArrayList<PeptideEntry> getItem(String peptideString) {
         return m_existing_peptides.get(peptideString);
@@ -3,10 +3,10 @@ package org.bigbio.pgatk.pepgenome.common;
 import org.bigbio.pgatk.pepgenome.CoordinateWrapper;
 import org.bigbio.pgatk.pepgenome.common.comparators.PeptideentryPcompare;
 
-import java.io.FileOutputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 //a map entry is used to connect a peptide string to all its variations
 //it maps a peptide to a gene, and the transcripts.
@@ -17,8 +17,9 @@ public class MapEntry implements Comparable<MapEntry>, Serializable {
     //pointer to the associated GeneEntry
     private GeneEntry geneEntry;
 
-    //peptideentries, maps sequence without ptms to the corresponding PeptideEntry
-    private Map<String, PeptideEntry> peptideEntries = new TreeMap<>();
+    //peptideentries, maps sequence without ptms to the corresponding PeptideEntry. peptides of the gene can be
+    //added from several threads, each peptide by one of them.
+    private Map<String, PeptideEntry> peptideEntries = new ConcurrentSkipListMap<>();
 
     //holds all transcripts for this MapEntry
     private Set<String> transcripts = new TreeSet<>();
@@ -39,6 +40,12 @@ public class MapEntry implements Comparable<MapEntry>, Serializable {
 //        this.transcripts = new TreeSet<>();
     }
 
+    //creates an entry of the same gene and transcripts without peptides.
+    public MapEntry(MapEntry annotation) {
+        this.geneEntry = annotation.geneEntry;
+        this.transcripts.addAll(annotation.transcripts);
+    }
+
     //adds a transcript id to the mapping.
     public final void addTranscriptId(String transcriptID) {
         transcripts.add(transcriptID);
@@ -166,7 +173,7 @@ public class MapEntry implements Comparable<MapEntry>, Serializable {
      */
 
     // TODO ||MapEntry.addPeptide method is used by MappedPeptides||
-    public final int addPeptide(CoordinateWrapper coordwrapper, String sequence, String tag, int sigPSMs, int genes, FileOutputStream ofstream, double quant, Map.Entry<String, TranscriptsT> transcriptsEntry, boolean isVariant) {
+    public final int addPeptide(CoordinateWrapper coordwrapper, String sequence, String tag, int sigPSMs, int genes, OutputStream ofstream, double quant, Map.Entry<String, TranscriptsT> transcriptsEntry, boolean isVariant) {
         int added = 0;
         String sequenceWoPtm = Utils.remove_ptms(sequence);
 
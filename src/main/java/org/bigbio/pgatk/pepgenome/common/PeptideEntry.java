@@ -4,7 +4,6 @@ import org.bigbio.pgatk.pepgenome.CoordinateWrapper;
 
 import org.apache.commons.lang3.StringUtils;
 
-import java.io.FileOutputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.*;
@@ -515,7 +514,7 @@ public class PeptideEntry implements Comparable<PeptideEntry>, Serializable {
 
     // TODO ||add_peptide(CoordinateWrapper coordwrapper, String sequence, String ptmSequence, String tag, int sigPSMs, TranscriptsT transcripts, int genes, FileOutputStream ofstream, double quant) - Not yet found||
     //adds a peptide. this function is used if this specific peptide has not yet been found. it will also find the peptides genomic coordinates.
-    public final void add_peptide(CoordinateWrapper coordwrapper, String sequence, String ptmSequence, String tag, int sigPSMs, TranscriptsT transcripts, int genes, FileOutputStream ofstream, double quant, boolean isVariant) {
+    public final void add_peptide(CoordinateWrapper coordwrapper, String sequence, String ptmSequence, String tag, int sigPSMs, TranscriptsT transcripts, int genes, OutputStream ofstream, double quant, boolean isVariant) {
         if (pSequence.isEmpty()) {
             pSequence = sequence;
         }
@@ -531,13 +530,7 @@ public class PeptideEntry implements Comparable<PeptideEntry>, Serializable {
         }
 
         //TODO ||Edited||
-        if (isVariant) {
-            System.out.println("Peptide Entry.add_peptide: isVariant true");
-            variant = true;
-        } else {
-            System.out.println("Peptide Entry.add_peptide: isVariant false");
-            variant = false;
-        }
+        variant = isVariant;
 
         add_tags(tag, sigPSMs, quant);
         //iterate all found transcripts.
@@ -575,6 +568,12 @@ public class PeptideEntry implements Comparable<PeptideEntry>, Serializable {
         add_ptm(ptmSequence);
     }
 
+    //adds a peptide. this function is used if a peptide has appeared before. its iso sequence was matched
+    //before, so the variant status of that lookup is kept.
+    public final void add_peptide(String ptmsequence, String tag, int sigPSMs, double quant) {
+        add_peptide(ptmsequence, tag, sigPSMs, quant, variant);
+    }
+
     // TODO ||add_peptide(String ptmsequence, String tag, int sigPSMs, double quant) - Has appeared before||
     //adds a peptide. this function is used if a peptide has appeared before.
     public final void add_peptide(String ptmsequence, String tag, int sigPSMs, double quant, boolean isVariant) {
@@ -584,12 +583,6 @@ public class PeptideEntry implements Comparable<PeptideEntry>, Serializable {
         add_tags(tag, sigPSMs, quant);
         //TODO ||Edited||
         variant = isVariant;
-        // TODO ||Remove testing||
-        if (variant) {
-            System.out.println("PeptideEntry.add_peptide (Peptide has appeared before) - variant TRUE");
-        } else {
-            System.out.println("PeptideEntry.add_peptide (Peptide has appeared before) - variant FALSE");
-        }
     }
 
     // TODO ||transcriptids_to_string()||
@@ -1,24 +1,48 @@
 package org.bigbio.pgatk.pepgenome.common;
 
-//this is made for a maximum of 2 mismatches but can easily be extended 
-//(for example just replace the ints with a vector of int.)
-//care: this change has to be applied to KmerTreeMap::insert_into_gene_id_map
+import java.util.List;
+
+//holds any number of mismatches: their positions are kept as offsets from the peptide start, one char each,
+//and peptides without mismatches share one empty array.
 
 //this struct holds information about the position of a peptide in a protein.
 //it also knows how many and where mismatches occurred in the matching process.
 public class PositionMismatchT {
+    private static final char[] NO_MISMATCHES = new char[0];
+
     //position of the peptide in the proteinsequence (zerobased)
     private int m_position_in_protein;
-    //first mismatch position in the proteinsequence (zerobased)
-    private int m_first_mismatch_positon;
-    //second mismatch position in the proteinsequence (zerobased)
-    private int m_second_mismatch_positon;
+    //mismatch positions relative to the peptide start, ascending
+    private char[] m_mismatch_offsets;
 
     //ctr
     public PositionMismatchT(int posInProtein, int firstMismatch, int secondMismatch) {
         this.m_position_in_protein = posInProtein;
-        this.m_first_mismatch_positon = firstMismatch;
-        this.m_second_mismatch_positon = secondMismatch;
+        if (firstMismatch < 0) {
+            this.m_mismatch_offsets = NO_MISMATCHES;
+        } else if (secondMismatch < 0) {
+            this.m_mismatch_offsets = new char[]{(char) (firstMismatch - posInProtein)};
+        } else {
+            this.m_mismatch_offsets = new char[]{(char) (firstMismatch - posInProtein), (char) (secondMismatch - posInProtein)};
+        }
+    }
+
+    //ctr, mismatches are the positions relative to the peptide start.
+    public PositionMismatchT(int posInProtein, List<Integer> mismatches) {
+        this.m_position_in_protein = posInProtein;
+        this.m_mismatch_offsets = mismatches.isEmpty() ? NO_MISMATCHES : new char[mismatches.size()];
+        for (int i = 0; i < mismatches.size(); i++) {
+            m_mismatch_offsets[i] = (char) mismatches.get(i).intValue();
+        }
+    }
+
+    //ctr, count mismatches from offsets[from] on, relative to the peptide start.
+    public PositionMismatchT(int posInProtein, int[] offsets, int from, int count) {
+        this.m_position_in_protein = posInProtein;
+        this.m_mismatch_offsets = (count == 0) ? NO_MISMATCHES : new char[count];
+        for (int i = 0; i < count; i++) {
+            m_mismatch_offsets[i] = (char) offsets[from + i];
+        }
     }
 
     //returns the positon of the peptide in the protein or -1 if the peptide does not match.
@@ -26,13 +50,23 @@ public class PositionMismatchT {
         return m_position_in_protein;
     }
 
+    //returns the number of mismatches.
+    public int mismatch_count() {
+        return m_mismatch_offsets.length;
+    }
+
+    //returns the position of a mismatch in the proteinsequence (zerobased).
+    public int mismatch(int index) {
+        return m_position_in_protein + m_mismatch_offsets[index];
+    }
+
     //returns the position of the first mismatch or -1 if there was no mismatch.
     public int first() {
-        return m_first_mismatch_positon;
+        return (m_mismatch_offsets.length > 0) ? mismatch(0) : -1;
     }
 
-    //returns the position of the second mismatch or -1 if there was no mismatch.
+    //returns the position of the second mismatch or -1 if there was no second mismatch.
     public int second() {
-        return m_second_mismatch_positon;
+        return (m_mismatch_offsets.length > 1) ? mismatch(1) : -1;
     }
-}
\ No newline at end of file
+}
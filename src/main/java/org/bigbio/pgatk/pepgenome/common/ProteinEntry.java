@@ -230,6 +230,11 @@ public class ProteinEntry implements Serializable {
      */
 
 
+    //returns the whole fasta header
+    public String get_fasta_header() {
+        return m_fasta_header;
+    }
+
     //returns the transcript_id number of the current protein
     public String get_transcript_id() {
         return m_transcript_id;
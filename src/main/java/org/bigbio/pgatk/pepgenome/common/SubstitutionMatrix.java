@@ -0,0 +1,167 @@
+package org.bigbio.pgatk.pepgenome.common;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * This code is licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * ==Overview==
+ *
+ * Amino acid substitutions allowed in mismatch mode, by reference residue (protein) and variant residue
+ * (peptide). Without a matrix every residue may replace every other one. With a matrix the neighbour keys
+ * of the PossibleKeyGenerator and the matchers only accept the listed substitutions.
+ *
+ * The residues are iso residues: I and L are both read as J, so a substitution between them is no mismatch.
+ * Residues outside of ASCII are never substituted.
+ */
+public final class SubstitutionMatrix implements Serializable {
+
+    private static final long serialVersionUID = 6305214978731926083L;
+
+    //name of the built in matrix for -subst.
+    public static final String SINGLE_NUCLEOTIDE = "snv";
+
+    //standard genetic code, codons ordered by the bases T, C, A, G (first base slowest). * is a stop codon.
+    private static final String BASES = "TCAG";
+    private static final String CODE = "FFLLSSSSYY**CC*WLLLLPPPPHHQQRRRRIIIMTTTTNNKKSSRRVVVVAAAADDEEGGGG";
+
+    private static final int RESIDUES = 128;
+
+    //m_allowed[reference * 128 + variant]
+    private final boolean[] m_allowed = new boolean[RESIDUES * RESIDUES];
+
+    private int m_size = 0;
+
+    private SubstitutionMatrix() {
+    }
+
+    /**
+     * Substitutions caused by a single nucleotide change of a codon of the standard genetic code, without
+     * changes to or from stop codons.
+     * @return matrix of all single nucleotide reachable substitutions
+     */
+    public static SubstitutionMatrix single_nucleotide() {
+        SubstitutionMatrix matrix = new SubstitutionMatrix();
+        for (int codon = 0; codon < CODE.length(); codon++) {
+            for (int base = 0; base < 3; base++) {
+                int shift = 2 * (2 - base);
+                for (int change = 1; change < BASES.length(); change++) {
+                    //replaces the base by each of the three others.
+                    int other = codon ^ (change << shift);
+                    char reference = CODE.charAt(codon);
+                    char variant = CODE.charAt(other);
+                    if (reference != '*' && variant != '*') {
+                        matrix.add(reference, variant);
+                    }
+                }
+            }
+        }
+        return matrix;
+    }
+
+    /**
+     * Reads the allowed substitutions from a file. Every line holds a reference and a variant residue separated
+     * by '&gt;', ',', tab or space (e.g. "A&gt;V"), each side may list several residues to allow all their
+     * combinations (e.g. "DE NQ"). Empty lines and lines starting with # are skipped.
+     * @param path file of substitutions, or {@link #SINGLE_NUCLEOTIDE} for the built in matrix
+     * @return matrix
+     * @throws IOException if the file can not be read or a line is not a substitution
+     */
+    public static SubstitutionMatrix of(String path) throws IOException {
+        if (path.equalsIgnoreCase(SINGLE_NUCLEOTIDE)) {
+            return single_nucleotide();
+        }
+        SubstitutionMatrix matrix = new SubstitutionMatrix();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+            String line;
+            int line_number = 0;
+            while ((line = reader.readLine()) != null) {
+                line_number++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] tokens = Utils.tokenize(line, "[>,\\s]+", true);
+                if (tokens.length != 2) {
+                    throw new IOException("invalid substitution in line " + line_number + " of " + path + ": " + line);
+                }
+                for (char reference : tokens[0].toUpperCase().toCharArray()) {
+                    for (char variant : tokens[1].toUpperCase().toCharArray()) {
+                        matrix.add(reference, variant);
+                    }
+                }
+            }
+        }
+        return matrix;
+    }
+
+    //allows a substitution, I and L are stored as J.
+    private void add(char reference, char variant) {
+        int from = iso(reference);
+        int to = iso(variant);
+        if (from != to && from < RESIDUES && to < RESIDUES && !m_allowed[from * RESIDUES + to]) {
+            m_allowed[from * RESIDUES + to] = true;
+            m_size++;
+        }
+    }
+
+    private static int iso(char residue) {
+        return (residue == 'I' || residue == 'L') ? 'J' : residue;
+    }
+
+    /**
+     * Tells whether a residue of the protein may be replaced by a residue of the peptide.
+     * @param reference residue of the protein
+     * @param variant residue of the peptide
+     * @return true if the residues are equal or the substitution is allowed
+     */
+    public boolean allows(char reference, char variant) {
+        return reference == variant || (reference < RESIDUES && variant < RESIDUES && m_allowed[reference * RESIDUES + variant]);
+    }
+
+    /**
+     * Same as {@link #allows(char, char)} for residues packed into bytes, bytes of 0x80 and above are never
+     * substituted.
+     * @param reference residue of the protein
+     * @param variant residue of the peptide
+     * @return true if the residues are equal or the substitution is allowed
+     */
+    public boolean allows(byte reference, byte variant) {
+        return reference == variant || ((reference | variant) >= 0 && m_allowed[reference * RESIDUES + variant]);
+    }
+
+    /**
+     * Number of residues of the peptide that can stand for a residue of the protein, the residue itself
+     * included. Averaged over the given residues, used to estimate the number of neighbour keys.
+     * @param residues residues to average over
+     * @return average number of variants per residue, 1 + substitutions
+     */
+    public double variants(char[] residues) {
+        if (residues.length == 0) {
+            return 1;
+        }
+        int variants = 0;
+        for (char reference : residues) {
+            for (char variant : residues) {
+                if (allows(reference, variant)) {
+                    variants++;
+                }
+            }
+        }
+        return (double) variants / residues.length;
+    }
+
+    //number of allowed substitutions.
+    public int size() {
+        return m_size;
+    }
+}
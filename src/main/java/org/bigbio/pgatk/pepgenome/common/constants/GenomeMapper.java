@@ -1,5 +1,7 @@
 package org.bigbio.pgatk.pepgenome.common.constants;
 
+import org.bigbio.pgatk.pepgenome.common.SubstitutionMatrix;
+
 /**
  *  These are the default parameters to map the Peptides to a Genome. Some of these parameters
  *  can be change on request by the main tool.
@@ -38,6 +40,13 @@ public class GenomeMapper {
          * can be toggled with the -mmmode switch.
          * */
         public static boolean ONE_IN_FIVE_MODE = false;
+
+        /**
+         * Substitutions allowed at a mismatch, residue of the protein to residue of the peptide.
+         * null allows every amino acid to replace every other one.
+         * can be set with the -subst parameter.
+         * */
+        public static SubstitutionMatrix SUBSTITUTIONS = null;
         
         /**
          * toggles whether chromosomes and scaffolds are extracted from genome FASTA file and
@@ -10,12 +10,20 @@ import java.io.FileOutputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 /**
  * The mapped peptides class connects the different classes
  * and offers functions to write all found peptides.
  *
+ * Peptides can be added from several threads at the same time, as long as all rows of a peptide (iso sequence)
+ * are added by one thread in input order (see PeptideMappingPipeline): the genes are only read, their peptide
+ * maps and the counters are concurrent, and the tissues are ordered by the input position of their first
+ * peptide when the results are written, so they are the same as adding the rows one after another.
+ *
  * @author ypriverol
  */
 
@@ -30,24 +38,47 @@ public class MappedPeptides implements Serializable {
     private Map<String, MapEntry> m_mapping_phs = new TreeMap<>();
     // TODO || FIELD: m_count_peptides(_phs) counts no. of found peptides.||
     //counts the number of found peptides. similar to m_mapping.size().
-    private int m_count_peptides;
-    private int m_count_peptides_phs;
+    private final AtomicInteger m_count_peptides = new AtomicInteger();
+    private final AtomicInteger m_count_peptides_phs = new AtomicInteger();
 
-    // TODO || FIELD: Map<String, Integer> m_tissuemap maps tissue to index||
-    //maps a tissue to an index.
-    private Map<String, Integer> m_tissuemap = new TreeMap<>();
-    // TODO || FIELD: int m_tissueindex holds index, incremented during program||
-    //the index, to be incremented during the program.
-    private int m_tissueindex;
+    // TODO || FIELD: Map<String, Long> m_tissuemap maps tissue to index||
+    //maps a tissue to the input position of its first peptide, the tissues are written in this order.
+    private final Map<String, Long> m_tissuemap = new ConcurrentHashMap<>();
+    // TODO || FIELD: AtomicLong m_positions numbers the added rows||
+    //the next input position, to be incremented during the program.
+    private final AtomicLong m_positions = new AtomicLong();
 
     // TODO || Default constructor||
     public MappedPeptides() {
 //        this.m_mapping = new TreeMap<>();
 //        this.m_mapping_phs = new TreeMap<>();
-        this.m_count_peptides = 0;
 //        this.m_tissuemap = new TreeMap<>();
-        this.m_tissueindex = 0;
     }
+
+    /**
+     * Numbers the rows of the inputs in the order they are read.
+     * @return input position of the next row
+     */
+    public final long next_position() {
+        return m_positions.getAndIncrement();
+    }
+    /**
+     * Returns the genes and transcripts of the annotation without peptides, so the peptides of an input file
+     * can be collected independently of the other files. The gene entries are shared, they are not changed
+     * by adding peptides.
+     * @return mapped peptides of the annotation, without peptides
+     */
+    public final MappedPeptides copy_annotation() {
+        MappedPeptides copy = new MappedPeptides();
+        for (Map.Entry<String, MapEntry> it : m_mapping.entrySet()) {
+            copy.m_mapping.put(it.getKey(), new MapEntry(it.getValue()));
+        }
+        for (Map.Entry<String, MapEntry> it : m_mapping_phs.entrySet()) {
+            copy.m_mapping_phs.put(it.getKey(), new MapEntry(it.getValue()));
+        }
+        return copy;
+    }
+
     // TODO ||add_gene_from_annotation(String geneLine)||
     //TODO: Note - Renamed some things
     //adds a new gene from a gtf/gff3 line.
@@ -226,9 +257,9 @@ public class MappedPeptides implements Serializable {
             os.write("\t".getBytes());
         }
         if (assem == Assembly.primary) {
-            os.write(("\n" + m_count_peptides).getBytes());
+            os.write(("\n" + m_count_peptides.get()).getBytes());
         } else if (assem == Assembly.patchhaploscaff) {
-            os.write(("\n" + m_count_peptides_phs).getBytes());
+            os.write(("\n" + m_count_peptides_phs.get()).getBytes());
         }
         os.write(("\t" + m_tissuemap.size()).getBytes());
 
@@ -313,28 +344,37 @@ public class MappedPeptides implements Serializable {
             it.getValue().removePeptides();
         }
         m_tissuemap.clear();
-        m_count_peptides = 0;
-        m_count_peptides_phs = 0;
-        m_tissueindex = 0;
+        m_count_peptides.set(0);
+        m_count_peptides_phs.set(0);
+        m_positions.set(0);
     }
 
     //converts the above map to a string that contains all found tissues, delimited by '\t' and sorted.
     // TODO ||Tissuemap_to_sorted_string method||
     private String tissuemap_to_sorted_string(String sep) {
-        TreeSet<Tuple<String, Integer>> tissueset = new TreeSet<>(new ByIntValue());
-        for (Map.Entry<String, Integer> it : m_tissuemap.entrySet()) {
-            tissueset.add(new Tuple<>(it.getKey(), it.getValue()));
+        //a row has one tissue, so no two tissues share a position.
+        TreeMap<Long, String> tissueset = new TreeMap<>();
+        for (Map.Entry<String, Long> it : m_tissuemap.entrySet()) {
+            tissueset.put(it.getValue(), it.getKey());
         }
 
         StringBuilder ss = new StringBuilder();
-        for (Tuple<String, Integer> it : tissueset) {
-            ss.append("\t").append(it.getKey());
+        for (String it : tissueset.values()) {
+            ss.append("\t").append(it);
         }
         return ss.toString();
     }
 
 
     // TODO  Tags?
+    /**
+     * Passes the peptide insertion and lookup to the MapEntry. The peptide is numbered as the next row, see
+     * {@link #add_peptide(CoordinateWrapper, String, String, int, int, OutputStream, double, Map.Entry, boolean, long)}.
+     */
+    public final void add_peptide(CoordinateWrapper coordwrapper, String sequence, String tag, int sigPSMs, int genes, OutputStream ofstream, double quant, Map.Entry<String, TranscriptsT> transcriptsEntry, boolean isVariant) throws Exception {
+        add_peptide(coordwrapper, sequence, tag, sigPSMs, genes, ofstream, quant, transcriptsEntry, isVariant, next_position());
+    }
+
     /**
      * Passes the peptide insertion and lookup to the MapEntry.
      * @param coordwrapper
@@ -342,18 +382,17 @@ public class MappedPeptides implements Serializable {
      * @param tag Tags
      * @param sigPSMs Number of PMs
      * @param genes Genes to be Map
-     * @param ofstream File outputStream
+     * @param ofstream Unmapped output
      * @param quant Quant Value
      * @param transcriptsEntry Transcript Value
+     * @param isVariant true if the peptide was matched with mismatches
+     * @param position input position of the row, see {@link #next_position()}
      * @throws Exception
      */
     // TODO ||Add Peptide method||
-    public final void add_peptide(CoordinateWrapper coordwrapper, String sequence, String tag, int sigPSMs, int genes, FileOutputStream ofstream, double quant, Map.Entry<String, TranscriptsT> transcriptsEntry, boolean isVariant) throws Exception {
+    public final void add_peptide(CoordinateWrapper coordwrapper, String sequence, String tag, int sigPSMs, int genes, OutputStream ofstream, double quant, Map.Entry<String, TranscriptsT> transcriptsEntry, boolean isVariant, long position) throws Exception {
         // TODO ||Add tag, tissue index to tissue map (If not present)||
-        if (!m_tissuemap.containsKey(tag)) {
-            m_tissuemap.put(tag, m_tissueindex);
-            ++m_tissueindex;
-        }
+        m_tissuemap.merge(tag, position, Math::min);
 
         // TODO ||Peptide, gene ID used HERE||
         final String geneID = transcriptsEntry.getKey();
@@ -364,12 +403,12 @@ public class MappedPeptides implements Serializable {
             }
             ofstream.write((geneID + "\t" + sequence + "\t" + ss.toString() + "\t" + genes + "\t" + tag + "\t" + sigPSMs + "\t" + quant + "\n").getBytes());
         } else if (m_mapping.containsKey(geneID) && !(m_mapping_phs.containsKey(geneID))) {
-            m_count_peptides += (m_mapping.get(geneID).addPeptide(coordwrapper, sequence, tag, sigPSMs, genes, ofstream, quant, transcriptsEntry, isVariant) != 0) ? 0 : 1;
+            m_count_peptides.addAndGet((m_mapping.get(geneID).addPeptide(coordwrapper, sequence, tag, sigPSMs, genes, ofstream, quant, transcriptsEntry, isVariant) != 0) ? 0 : 1);
         } else if (!(m_mapping.containsKey(geneID)) && m_mapping_phs.containsKey(geneID)) {
-            m_count_peptides_phs += (m_mapping_phs.get(geneID).addPeptide(coordwrapper, sequence, tag, sigPSMs, genes, ofstream, quant, transcriptsEntry, isVariant) != 0) ? 0 : 1;
+            m_count_peptides_phs.addAndGet((m_mapping_phs.get(geneID).addPeptide(coordwrapper, sequence, tag, sigPSMs, genes, ofstream, quant, transcriptsEntry, isVariant) != 0) ? 0 : 1);
         } else {
-            m_count_peptides += (m_mapping.get(geneID).addPeptide(coordwrapper, sequence, tag, sigPSMs, genes, ofstream, quant, transcriptsEntry, isVariant) != 0) ? 0 : 1;
-            m_count_peptides_phs += (m_mapping_phs.get(geneID).addPeptide(coordwrapper, sequence, tag, sigPSMs, genes, ofstream, quant, transcriptsEntry, isVariant) != 0) ? 0 : 1;
+            m_count_peptides.addAndGet((m_mapping.get(geneID).addPeptide(coordwrapper, sequence, tag, sigPSMs, genes, ofstream, quant, transcriptsEntry, isVariant) != 0) ? 0 : 1);
+            m_count_peptides_phs.addAndGet((m_mapping_phs.get(geneID).addPeptide(coordwrapper, sequence, tag, sigPSMs, genes, ofstream, quant, transcriptsEntry, isVariant) != 0) ? 0 : 1);
         }
     }
 
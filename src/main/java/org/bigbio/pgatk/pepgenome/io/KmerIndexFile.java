@@ -0,0 +1,175 @@
+package org.bigbio.pgatk.pepgenome.io;
+
+import org.bigbio.pgatk.pepgenome.CoordinateWrapper;
+import org.bigbio.pgatk.pepgenome.common.ProteinEntry;
+import org.bigbio.pgatk.pepgenome.kmer.KmerEncoder;
+import org.bigbio.pgatk.pepgenome.kmer.KmerPostings;
+import org.bigbio.pgatk.pepgenome.kmer.inmemory.KmerIntMap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Binary snapshot of the proteome and the postings of a {@link KmerIntMap}, so later runs neither parse the
+ * fasta file nor digest the proteins. The postings are memory mapped read only when the file is used, so
+ * concurrent runs on one machine share the page cached file instead of each holding the postings on the heap.
+ *
+ * The file is tied to the fasta file (CRC32 of its content), the kmer length and the kmer encoding; a file
+ * that does not match is rejected.
+ *
+ * Layout (big endian): magic, version, fasta checksum, kmer length, radix, number of slots + 1,
+ * number of postings, length of the protein block, the protein block (number of proteins, then header and
+ * iso sequence of every protein, padded to 4 bytes), the slot offsets, the protein index and the position
+ * of every posting.
+ */
+public class KmerIndexFile {
+
+    private static final int MAGIC = 0x50474B49;
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 40;
+
+    private KmerIndexFile() {
+    }
+
+    /**
+     * Computes the fingerprint of a fasta file.
+     * @param fastaFile fasta file
+     * @return CRC32 of the file content
+     * @throws IOException if the file can not be read
+     */
+    public static long checksum(String fastaFile) throws IOException {
+        try (CheckedInputStream in = new CheckedInputStream(new BufferedInputStream(new FileInputStream(fastaFile)), new CRC32())) {
+            byte[] buffer = new byte[1 << 16];
+            while (in.read(buffer) >= 0) {
+                //only the checksum is needed.
+            }
+            return in.getChecksum().getValue();
+        }
+    }
+
+    /**
+     * Writes the proteins and postings of the map.
+     * @param indexFile file to write
+     * @param fastaFile fasta file the proteins were read from
+     * @param kmerMap kmer map holding all proteins
+     * @throws IOException if the file can not be written
+     */
+    public static void write(String indexFile, String fastaFile, KmerIntMap kmerMap) throws IOException {
+        KmerPostings postings = kmerMap.postings();
+
+        ByteArrayOutputStream proteinBlock = new ByteArrayOutputStream();
+        DataOutputStream proteins = new DataOutputStream(proteinBlock);
+        proteins.writeInt(postings.proteins().length);
+        for (ProteinEntry protein : postings.proteins()) {
+            proteins.writeUTF(protein.get_fasta_header());
+            proteins.writeInt(protein.get_sequence().length());
+            proteins.writeBytes(protein.get_sequence());
+        }
+        while (proteins.size() % 4 != 0) {
+            proteins.writeByte(0);
+        }
+        proteins.flush();
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(checksum(fastaFile));
+            out.writeInt(kmerMap.get_kmer_length());
+            out.writeInt(KmerEncoder.RADIX);
+            out.writeInt(postings.slot_count() + 1);
+            out.writeInt(postings.posting_count());
+            out.writeLong(proteinBlock.size());
+            proteinBlock.writeTo(out);
+            write_ints(out, postings.offsets());
+            write_ints(out, postings.protein_indexes());
+            write_ints(out, postings.positions());
+        }
+    }
+
+    private static void write_ints(DataOutputStream out, IntBuffer values) throws IOException {
+        for (int i = 0; i < values.limit(); i++) {
+            out.writeInt(values.get(i));
+        }
+    }
+
+    /**
+     * Reads the proteins into the coordinate wrapper and maps the postings.
+     * @param indexFile file written by {@link #write(String, String, KmerIntMap)}
+     * @param fastaFile fasta file the index has to belong to
+     * @param kmerLength kmer length the index has to be built with
+     * @param coordinateWrapper receives all proteins
+     * @return kmer map over the mapped postings
+     * @throws IOException if the file can not be read or does not belong to the fasta file and kmer length
+     */
+    public static KmerIntMap read(String indexFile, String fastaFile, int kmerLength, CoordinateWrapper coordinateWrapper) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(indexFile), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) {
+                    throw new IOException("Index file " + indexFile + " is truncated");
+                }
+            }
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Index file " + indexFile + " is not a kmer index of this version");
+            }
+            long checksum = header.getLong();
+            int fileKmerLength = header.getInt();
+            int radix = header.getInt();
+            if (checksum != checksum(fastaFile) || fileKmerLength != kmerLength || radix != KmerEncoder.RADIX) {
+                throw new IOException("Index file " + indexFile + " was not built from " + fastaFile + " with kmer length " + kmerLength);
+            }
+            int offsetCount = header.getInt();
+            int postingCount = header.getInt();
+            long proteinBlockLength = header.getLong();
+
+            ProteinEntry[] proteins = read_proteins(channel.map(FileChannel.MapMode.READ_ONLY, HEADER_LENGTH, proteinBlockLength));
+            for (ProteinEntry protein : proteins) {
+                coordinateWrapper.add(protein);
+            }
+
+            long position = HEADER_LENGTH + proteinBlockLength;
+            IntBuffer offsets = map_ints(channel, position, offsetCount);
+            position += 4L * offsetCount;
+            IntBuffer proteinIndex = map_ints(channel, position, postingCount);
+            position += 4L * postingCount;
+            IntBuffer positions = map_ints(channel, position, postingCount);
+
+            //the mapping stays valid after the channel is closed.
+            return new KmerIntMap(kmerLength, KmerPostings.wrap(proteins, offsets, proteinIndex, positions));
+        }
+    }
+
+    private static ProteinEntry[] read_proteins(ByteBuffer block) throws IOException {
+        byte[] bytes = new byte[block.remaining()];
+        block.get(bytes);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        ProteinEntry[] proteins = new ProteinEntry[in.readInt()];
+        for (int i = 0; i < proteins.length; i++) {
+            String header = in.readUTF();
+            byte[] sequence = new byte[in.readInt()];
+            in.readFully(sequence);
+            proteins[i] = new ProteinEntry(header, new String(sequence, StandardCharsets.ISO_8859_1));
+        }
+        return proteins;
+    }
+
+    private static IntBuffer map_ints(FileChannel channel, long position, int count) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, 4L * count).asIntBuffer();
+    }
+}
@@ -2,16 +2,18 @@ package org.bigbio.pgatk.pepgenome.io;
 
 import org.apache.log4j.Logger;
 import org.bigbio.pgatk.pepgenome.CoordinateWrapper;
+import org.bigbio.pgatk.pepgenome.PepGenomeTool;
 import org.bigbio.pgatk.pepgenome.common.PeptideEntry;
 import org.bigbio.pgatk.pepgenome.common.TranscriptsT;
-import org.bigbio.pgatk.pepgenome.common.Utils;
 import org.bigbio.pgatk.pepgenome.common.maps.MappedPeptides;
 import org.bigbio.pgatk.pepgenome.kmer.IKmerMap;
+import org.bigbio.pgatk.pepgenome.kmer.PeptideMatches;
 import uk.ac.ebi.pride.jmztab.model.PSM;
 import uk.ac.ebi.pride.jmztab.utils.MZTabFileParser;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.Map;
 
 /**
@@ -49,41 +51,41 @@ public class MzTabInputPeptideFileParser implements PeptideInputReader{
         try {
             MZTabFileParser parser = new MZTabFileParser(mzTabFile, new FileOutputStream(mzTabFile.getAbsolutePath() + "errors.out"));
 
-            String peptideString;
-            String isoSeqWithoutPtms;
-            int sigPSMs;
-            double quant;
-            Map<String, TranscriptsT> gene_id_map;
-
-            for(PSM psm: parser.getMZTabFile().getPSMs()){
-                peptideString = psm.getSequence();
-                quant = 1.0;
-                sigPSMs = 1;
-                //the matching will only use the amino acids.
-                isoSeqWithoutPtms = Utils.make_iso_sequence(Utils.remove_ptms(peptideString));
-
-                if (!coordwrapper.isPeptidePresent(isoSeqWithoutPtms)) {
-                    //the gene_id_map.find_peptide function will match the peptide.
-                    gene_id_map = k.find_peptide(isoSeqWithoutPtms);
-                    for (Map.Entry<String, TranscriptsT> it : gene_id_map.entrySet()) {
-                        mapping.add_peptide(coordwrapper, peptideString, file, sigPSMs, gene_id_map.size(), ofs, quant, it, k.getIsVariant());
-                    }
-                    if (gene_id_map.isEmpty()){
-                        ofs.write(("No-Gene" + "\t" + peptideString + "\t" + "No-Transcript" + "\t" + "No-genes" + "\t" + file + "\t" + sigPSMs + "\t" + quant + "\n").getBytes());
-                    }
-                } else {
-                    //if the peptide already exists its genomic coordinates dont have to be recalculated.
-                    //only the tags and PTMs have to be added
-                    ArrayList<PeptideEntry> refVec = coordwrapper.get_existing_peptides_at(isoSeqWithoutPtms);
-                    for (PeptideEntry aRefVec : refVec) {
-                        aRefVec.add_peptide(peptideString, file, sigPSMs, quant, k.getIsVariant());
-                    }
-                }
-            }
+            //the peptides that are not mapped yet are searched by the workers of the pipeline.
+            Iterator<PSM> psms = parser.getMZTabFile().getPSMs().iterator();
+            PeptideMappingPipeline pipeline = new PeptideMappingPipeline(k, coordwrapper.existing_peptide_sequences(), PepGenomeTool.threads, mapping::next_position);
+            pipeline.run(() -> psms.hasNext() ? new PeptideMappingPipeline.Row(file, psms.next().getSequence(), 1, 1.0) : null,
+                    (row, out) -> insert(row, file, coordwrapper, mapping, out), ofs);
         } catch (IOException e) {
             log.error("Could not create mzTab file reader", e);
             throw new IOException("The file doesn't not exists -- " + file);
         }
 
     }
+
+    //inserts a row, after the earlier rows of its iso sequence. the matching only used the amino acids (iso sequence without PTMs).
+    private static void insert(PeptideMappingPipeline.Row row, String file, CoordinateWrapper coordwrapper, MappedPeptides mapping, OutputStream ofs) throws Exception {
+        String peptideString = row.peptide();
+        int sigPSMs = row.sig_psms();
+        double quant = row.quant();
+
+        if (!coordwrapper.isPeptidePresent(row.iso_sequence())) {
+            //the peptide was matched by the pipeline.
+            PeptideMatches matches = row.matches();
+            Map<String, TranscriptsT> gene_id_map = matches.gene_id_map();
+            for (Map.Entry<String, TranscriptsT> it : gene_id_map.entrySet()) {
+                mapping.add_peptide(coordwrapper, peptideString, file, sigPSMs, gene_id_map.size(), ofs, quant, it, matches.is_variant(), row.position());
+            }
+            if (gene_id_map.isEmpty()){
+                ofs.write(("No-Gene" + "\t" + peptideString + "\t" + "No-Transcript" + "\t" + "No-genes" + "\t" + file + "\t" + sigPSMs + "\t" + quant + "\n").getBytes());
+            }
+        } else {
+            //if the peptide already exists its genomic coordinates dont have to be recalculated.
+            //only the tags and PTMs have to be added
+            ArrayList<PeptideEntry> refVec = coordwrapper.get_existing_peptides_at(row.iso_sequence());
+            for (PeptideEntry aRefVec : refVec) {
+                aRefVec.add_peptide(peptideString, file, sigPSMs, quant);
+            }
+        }
+    }
 }
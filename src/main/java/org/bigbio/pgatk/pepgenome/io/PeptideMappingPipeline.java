@@ -0,0 +1,412 @@
+package org.bigbio.pgatk.pepgenome.io;
+
+import org.bigbio.pgatk.pepgenome.common.Utils;
+import org.bigbio.pgatk.pepgenome.kmer.IKmerMap;
+import org.bigbio.pgatk.pepgenome.kmer.PeptideMatches;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * This code is licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * ==Overview==
+ *
+ * Maps the rows of a peptide input file in three stages: a reader thread parses the rows into batches, worker
+ * threads remove the PTMs of a batch and search its peptides in the kmer map, and inserter threads insert the
+ * rows. A peptide is searched by the first batch that contains it, later batches share its search until its last
+ * row read so far is inserted; the peptides of a batch are searched together (see {@link IKmerMap#find_peptides}).
+ * With one thread all stages run on the calling thread.
+ *
+ * The inserts are striped by peptide: all rows of an iso sequence are inserted by the same inserter thread, in
+ * input order, and the rows carry their input position, so the mapping results are the same as inserting the
+ * rows one after another (see MappedPeptides). The unmapped lines of the rows are written by the calling thread
+ * in input order. The workers only read the kmer map, which can be queried from several threads once it is built.
+ */
+public class PeptideMappingPipeline {
+
+    //rows per batch.
+    public static final int BATCH_SIZE = 1000;
+
+    //marks the end of the input in the queue of batches.
+    private static final CompletableFuture<List<Row>> END = CompletableFuture.completedFuture(new ArrayList<>());
+
+    /**
+     * Parses the rows of an input file, called from the reader thread.
+     */
+    public interface RowReader {
+        /**
+         * @return the next row to map, null at the end of the input
+         */
+        Row next() throws Exception;
+    }
+
+    /**
+     * Inserts a mapped row into the results. Rows of the same iso sequence are inserted by one thread in input
+     * order, rows of different peptides can be inserted at the same time.
+     */
+    public interface RowInserter {
+        /**
+         * @param row mapped row
+         * @param unmapped output for the unmapped lines of the row
+         */
+        void insert(Row row, OutputStream unmapped) throws Exception;
+    }
+
+    /**
+     * A row of an input file: a peptide with its tag, PSMs and quant. Without the peptide filter the peptide is
+     * searched with the allowed mismatches of the run, with the filter in its target transcript.
+     */
+    public static final class Row {
+        private final String m_tissue;
+        private final String m_peptide;
+        private final int m_sig_psms;
+        private final double m_quant;
+        //peptide filter mode, null without the filter.
+        private final String m_target_transcript;
+        private final int m_allowed_mismatches;
+
+        //input position, set by the reader.
+        private long m_position;
+        //set by the worker that searched the batch of the row.
+        private String m_iso_sequence;
+        //null if the peptide was mapped before the input was read.
+        private CompletableFuture<PeptideMatches> m_matches;
+        //unmapped lines of the row, written after the rows before it. null if there are none.
+        private byte[] m_unmapped;
+
+        public Row(String tissue, String peptide, int sigPSMs, double quant) {
+            this(tissue, peptide, sigPSMs, quant, null, 0);
+        }
+
+        public Row(String tissue, String peptide, int sigPSMs, double quant, String targetTranscriptID, int allowedMismatches) {
+            this.m_tissue = tissue;
+            this.m_peptide = peptide;
+            this.m_sig_psms = sigPSMs;
+            this.m_quant = quant;
+            this.m_target_transcript = targetTranscriptID;
+            this.m_allowed_mismatches = allowedMismatches;
+        }
+
+        public String tissue() {
+            return m_tissue;
+        }
+
+        public String peptide() {
+            return m_peptide;
+        }
+
+        public int sig_psms() {
+            return m_sig_psms;
+        }
+
+        public double quant() {
+            return m_quant;
+        }
+
+        //the position of the row in the inputs, see MappedPeptides::next_position.
+        public long position() {
+            return m_position;
+        }
+
+        //the peptide without PTMs, as it is matched.
+        public String iso_sequence() {
+            return m_iso_sequence;
+        }
+
+        /**
+         * Matches of the peptide, waits for the batch that searches it.
+         * @return matches, only used if the peptide is not mapped yet when the row is inserted
+         */
+        public PeptideMatches matches() {
+            return m_matches == null ? PeptideMatches.none() : m_matches.join();
+        }
+
+        //rows with the same key share one search.
+        private String key() {
+            if (m_target_transcript == null) {
+                return m_iso_sequence;
+            }
+            return m_iso_sequence + "\t" + m_target_transcript + "\t" + m_allowed_mismatches;
+        }
+    }
+
+    private final IKmerMap m_kmer_map;
+
+    //peptides mapped before the input, they are not searched again.
+    private final Set<String> m_known;
+
+    private final int m_threads;
+
+    //numbers the rows in input order.
+    private final LongSupplier m_positions;
+
+    //search key -> matches, shared by the rows with the same key until the last of them is inserted.
+    private final Map<String, SharedSearch> m_matches = new ConcurrentHashMap<>();
+
+    //a search and the number of rows read that use it and are not inserted yet.
+    private static final class SharedSearch {
+        private final CompletableFuture<PeptideMatches> m_matches = new CompletableFuture<>();
+        //only changed inside the compute functions of m_matches.
+        private int m_rows;
+    }
+
+    /**
+     * @param k built kmer map
+     * @param known peptides (iso sequences) mapped before, not changed while the pipeline runs
+     * @param threads number of worker and inserter threads, one or less maps on the calling thread
+     * @param positions numbers the rows, see MappedPeptides::next_position
+     */
+    public PeptideMappingPipeline(IKmerMap k, Set<String> known, int threads, LongSupplier positions) {
+        this.m_kmer_map = k;
+        this.m_known = known;
+        this.m_threads = threads;
+        this.m_positions = positions;
+    }
+
+    /**
+     * Maps all rows of the reader and inserts them.
+     * @param reader rows of the input
+     * @param inserter inserts a mapped row into the results
+     * @param unmapped output for the unmapped lines, written in input order
+     * @throws Exception the first exception of the reader, a worker or the inserter
+     */
+    public void run(RowReader reader, RowInserter inserter, OutputStream unmapped) throws Exception {
+        try {
+            if (m_threads <= 1) {
+                List<Row> batch;
+                while (!(batch = read_batch(reader)).isEmpty()) {
+                    for (Row row : search(batch)) {
+                        inserter.insert(row, unmapped);
+                        release(row);
+                    }
+                }
+            } else {
+                run_staged(reader, inserter, unmapped);
+            }
+        } catch (CompletionException | ExecutionException e) {
+            //a batch failed, its exception is rethrown.
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void run_staged(RowReader reader, RowInserter inserter, OutputStream unmapped) throws Exception {
+        ExecutorService workers = Executors.newFixedThreadPool(m_threads, new WorkerFactory("peptide mapper"));
+        //one thread per stripe, so the rows of a stripe are inserted in input order.
+        List<ExecutorService> stripes = new ArrayList<>(m_threads);
+        WorkerFactory inserters = new WorkerFactory("peptide inserter");
+        for (int i = 0; i < m_threads; ++i) {
+            stripes.add(Executors.newSingleThreadExecutor(inserters));
+        }
+        //the queue bounds the batches in memory: the reader waits while it is full.
+        BlockingQueue<Future<List<Row>>> batches = new ArrayBlockingQueue<>(2 * m_threads);
+        Thread reading = new Thread(() -> read(reader, workers, batches), "peptide reader");
+        reading.setDaemon(true);
+        reading.start();
+        try {
+            //batches handed to the inserters, their unmapped lines are not written yet.
+            Deque<InsertedBatch> inserting = new ArrayDeque<>();
+            Future<List<Row>> batch;
+            while ((batch = batches.take()) != END) {
+                inserting.add(insert(batch.get(), inserter, stripes));
+                if (inserting.size() > m_threads) {
+                    inserting.poll().write_unmapped(unmapped);
+                }
+            }
+            while (!inserting.isEmpty()) {
+                inserting.poll().write_unmapped(unmapped);
+            }
+        } finally {
+            reading.interrupt();
+            workers.shutdownNow();
+            for (ExecutorService stripe : stripes) {
+                stripe.shutdownNow();
+            }
+        }
+    }
+
+    //reader thread: hands the batches to the workers, in input order.
+    private void read(RowReader reader, ExecutorService workers, BlockingQueue<Future<List<Row>>> batches) {
+        try {
+            try {
+                List<Row> batch;
+                while (!(batch = read_batch(reader)).isEmpty()) {
+                    List<Row> rows = batch;
+                    batches.put(workers.submit(() -> search(rows)));
+                }
+                batches.put(END);
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                CompletableFuture<List<Row>> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                batches.put(failed);
+            }
+        } catch (InterruptedException e) {
+            //the inserter stopped.
+        }
+    }
+
+    private List<Row> read_batch(RowReader reader) throws Exception {
+        List<Row> batch = new ArrayList<>(BATCH_SIZE);
+        Row row;
+        while (batch.size() < BATCH_SIZE && (row = reader.next()) != null) {
+            row.m_position = m_positions.getAsLong();
+            batch.add(row);
+        }
+        return batch;
+    }
+
+    //removes the PTMs of a batch and searches the peptides no earlier batch searches.
+    private List<Row> search(List<Row> batch) {
+        Map<String, Row> owned = new LinkedHashMap<>();
+        for (Row row : batch) {
+            row.m_iso_sequence = Utils.make_iso_sequence(Utils.remove_ptms(row.m_peptide));
+            if (m_known.contains(row.m_iso_sequence)) {
+                continue;
+            }
+            SharedSearch created = new SharedSearch();
+            SharedSearch search = m_matches.compute(row.key(), (key, shared) -> {
+                SharedSearch claimed = (shared == null) ? created : shared;
+                claimed.m_rows++;
+                return claimed;
+            });
+            if (search == created) {
+                owned.put(row.key(), row);
+            }
+            row.m_matches = search.m_matches;
+        }
+        try {
+            List<String> iso_sequences = new ArrayList<>();
+            for (Row row : owned.values()) {
+                if (row.m_target_transcript == null) {
+                    iso_sequences.add(row.m_iso_sequence);
+                } else {
+                    row.m_matches.complete(m_kmer_map.find_peptide(row.m_iso_sequence, row.m_target_transcript, row.m_allowed_mismatches));
+                }
+            }
+            Map<String, PeptideMatches> batch_matches = m_kmer_map.find_peptides(iso_sequences);
+            for (Row row : owned.values()) {
+                if (row.m_target_transcript == null) {
+                    row.m_matches.complete(batch_matches.get(row.m_iso_sequence));
+                }
+            }
+        } catch (RuntimeException | Error e) {
+            //rows of later batches may wait for these matches.
+            for (Row row : owned.values()) {
+                row.m_matches.completeExceptionally(e);
+            }
+            throw e;
+        }
+        return batch;
+    }
+
+    //drops the search of an inserted row after its last row, later rows of the peptide search it again.
+    private void release(Row row) {
+        if (row.m_matches != null) {
+            m_matches.computeIfPresent(row.key(), (key, shared) -> (--shared.m_rows == 0) ? null : shared);
+        }
+    }
+
+    //number of searches kept for rows that are not inserted yet.
+    int shared_searches() {
+        return m_matches.size();
+    }
+
+    //hands the rows of a batch to the inserter of their stripe.
+    private InsertedBatch insert(List<Row> batch, RowInserter inserter, List<ExecutorService> stripes) {
+        List<List<Row>> striped = new ArrayList<>(stripes.size());
+        for (int i = 0; i < stripes.size(); ++i) {
+            striped.add(new ArrayList<>());
+        }
+        for (Row row : batch) {
+            striped.get((row.m_iso_sequence.hashCode() & 0x7fffffff) % stripes.size()).add(row);
+        }
+        List<Future<?>> inserted = new ArrayList<>(stripes.size());
+        for (int i = 0; i < stripes.size(); ++i) {
+            List<Row> rows = striped.get(i);
+            if (!rows.isEmpty()) {
+                inserted.add(stripes.get(i).submit(() -> {
+                    ByteArrayOutputStream unmapped = new ByteArrayOutputStream();
+                    for (Row row : rows) {
+                        inserter.insert(row, unmapped);
+                        release(row);
+                        if (unmapped.size() > 0) {
+                            row.m_unmapped = unmapped.toByteArray();
+                            unmapped.reset();
+                        }
+                    }
+                    return null;
+                }));
+            }
+        }
+        return new InsertedBatch(batch, inserted);
+    }
+
+    //a batch that is inserted by the stripes.
+    private static final class InsertedBatch {
+        private final List<Row> m_rows;
+        private final List<Future<?>> m_inserted;
+
+        private InsertedBatch(List<Row> rows, List<Future<?>> inserted) {
+            this.m_rows = rows;
+            this.m_inserted = inserted;
+        }
+
+        //waits for the stripes and writes the unmapped lines of the batch in input order.
+        private void write_unmapped(OutputStream unmapped) throws Exception {
+            for (Future<?> stripe : m_inserted) {
+                stripe.get();
+            }
+            for (Row row : m_rows) {
+                if (row.m_unmapped != null) {
+                    unmapped.write(row.m_unmapped);
+                    row.m_unmapped = null;
+                }
+            }
+        }
+    }
+
+    //daemon threads, so a failed run does not keep the program alive.
+    private static final class WorkerFactory implements ThreadFactory {
+        private final String m_name;
+        private final AtomicInteger m_count = new AtomicInteger();
+
+        private WorkerFactory(String name) {
+            this.m_name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, m_name + " " + m_count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
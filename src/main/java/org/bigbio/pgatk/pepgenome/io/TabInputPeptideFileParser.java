@@ -9,12 +9,16 @@ import org.bigbio.pgatk.pepgenome.common.PeptideEntry;
 import org.bigbio.pgatk.pepgenome.common.SparkConfig;
 import org.bigbio.pgatk.pepgenome.common.TranscriptsT;
 import org.bigbio.pgatk.pepgenome.common.Utils;
+import org.bigbio.pgatk.pepgenome.common.constants.GenomeMapper;
 import org.bigbio.pgatk.pepgenome.common.maps.MappedPeptides;
 import org.bigbio.pgatk.pepgenome.kmer.IKmerMap;
+import org.bigbio.pgatk.pepgenome.kmer.PeptideMatches;
+import org.bigbio.pgatk.pepgenome.kmer.inmemory.KmerBatchMap;
 
 import java.io.*;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 
@@ -44,120 +48,161 @@ public class TabInputPeptideFileParser implements PeptideInputReader, Serializab
     // TODO ||normalRead method||
     //read function. this reads the peptides input and sets the wheels in motion.
     //this function will set the wheels in motion to find the peptides in the proteins.
+    //the rows are read, searched and inserted in a pipeline, see PeptideMappingPipeline.
     private void normalRead(String file, CoordinateWrapper coordwrapper, MappedPeptides mapping, String unmappedoutput, IKmerMap k) throws Exception {
 
+        //batch mode: all exact matches of the file are found in one scan of the proteome.
+        if (PepGenomeTool.useBatchMode && GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES == 0 && !PepGenomeTool.usePeptideFilter) {
+            KmerBatchMap batch = new KmerBatchMap(read_iso_sequences(file), k);
+            coordwrapper.add_all_proteins_to_kmer_map(batch);
+            k = batch;
+        }
+
         // TODO ||Peptide file input||
         FileInputStream ifs = new FileInputStream(file);
         BufferedReader reader = new BufferedReader(new InputStreamReader(ifs));
         FileOutputStream ofs = new FileOutputStream(unmappedoutput);
 
-        String peptide_string;
-        String tissue;
-        String iso_seq_without_ptms;
-        int sigPSMs;
-        double quant;
-        Map<String, TranscriptsT> gene_id_map;
+        //the peptides that are not mapped yet are searched by the workers of the pipeline.
+        PeptideMappingPipeline pipeline = new PeptideMappingPipeline(k, coordwrapper.existing_peptide_sequences(), PepGenomeTool.threads, mapping::next_position);
+        pipeline.run(new TabRowReader(reader), (row, out) -> insert(row, coordwrapper, mapping, out), ofs);
+
+        ofs.close();
+        reader.close();
+        ifs.close();
+    }
+
+    //parses the rows of a tab input file, rows without PSMs are skipped.
+    private static final class TabRowReader implements PeptideMappingPipeline.RowReader {
+
+        private final BufferedReader m_reader;
 
         //TODO ||EDITED: Added geneID and mismatches fields||
         // 2021 Expansion
-        int allowedMismatches = 0;
-        String targetTranscriptID = "";
+        private int allowedMismatches = 0;
+        private String targetTranscriptID = "";
 
+        private TabRowReader(BufferedReader reader) {
+            this.m_reader = reader;
+        }
 
-        String line;
-        while ((line = reader.readLine()) != null) {
-            // TODO ||Headers exlcuded||
-            if ((line.toLowerCase().startsWith("experiment")) || (line.toLowerCase().startsWith("sample"))) {
-                continue;
-            }
-            // TODO ||Tokenize peptide input||
-            ArrayList<String> tokens = new ArrayList<>(Arrays.asList(Utils.tokenize(line, "\t", false)));
-            //using only the tokens needed.
-            // TODO ||Extracts tissue (0) - Label||
-            tissue = tokens.get(0).trim();
-            // TODO ||Extracts peptide string (1)||
-            peptide_string = tokens.get(1).trim();
-            // TODO ||Extracts PSMs (2)||
-            String sigPsmStr = tokens.get(2).trim();
-            if (sigPsmStr.length() == 0) {
-                sigPsmStr = "0";
-            }
-            sigPSMs = Integer.parseInt(sigPsmStr);
-            // TODO ||Extracts Quant (3)||
-            String quantStr = tokens.get(3).trim();
-            if (quantStr.length() == 0) {
-                quantStr = "0";
-            }
-            quant = Double.parseDouble(quantStr);
+        @Override
+        public PeptideMappingPipeline.Row next() throws IOException {
+            String peptide_string;
+            String tissue;
+            int sigPSMs;
+            double quant;
+
+            String line;
+            while ((line = m_reader.readLine()) != null) {
+                // TODO ||Headers exlcuded||
+                if ((line.toLowerCase().startsWith("experiment")) || (line.toLowerCase().startsWith("sample"))) {
+                    continue;
+                }
+                // TODO ||Tokenize peptide input||
+                ArrayList<String> tokens = new ArrayList<>(Arrays.asList(Utils.tokenize(line, "\t", false)));
+                //using only the tokens needed.
+                // TODO ||Extracts tissue (0) - Label||
+                tissue = tokens.get(0).trim();
+                // TODO ||Extracts peptide string (1)||
+                peptide_string = tokens.get(1).trim();
+                // TODO ||Extracts PSMs (2)||
+                String sigPsmStr = tokens.get(2).trim();
+                if (sigPsmStr.length() == 0) {
+                    sigPsmStr = "0";
+                }
+                sigPSMs = Integer.parseInt(sigPsmStr);
+                // TODO ||Extracts Quant (3)||
+                String quantStr = tokens.get(3).trim();
+                if (quantStr.length() == 0) {
+                    quantStr = "0";
+                }
+                quant = Double.parseDouble(quantStr);
 
-            // If peptide filter mode is on, and the peptide line has six fields filled.
-            if (PepGenomeTool.usePeptideFilter && tokens.size()==6) {
-                System.out.println("TabInputPeptidefileParser.read(...) - use filter & six fields");
+                // If peptide filter mode is on, and the peptide line has six fields filled.
+                if (PepGenomeTool.usePeptideFilter && tokens.size()==6) {
+                    // TODO ||EDITED: Extract Allowed Mismatches (4)||
+                    allowedMismatches = Integer.parseInt(tokens.get(4).trim());
 
-                // TODO ||EDITED: Extract Allowed Mismatches (4)||
-                allowedMismatches = Integer.parseInt(tokens.get(4).trim());
 
+                    // TODO ||EDITED: Extract Target Trans ID (5)|| - If left blank, map to all**  Remove testing
+                        targetTranscriptID = tokens.get(5).trim(); //working
+                        if (targetTranscriptID.equals("")) {
+                            targetTranscriptID = "all"; //working
+                        }
 
-                // TODO ||EDITED: Extract Target Trans ID (5)|| - If left blank, map to all**  Remove testing
-                    targetTranscriptID = tokens.get(5).trim(); //working
-                    if (targetTranscriptID.equals("")) {
-                        targetTranscriptID = "all"; //working
-                    }
+                    //System.out.println(targetTranscriptID); //testing
+
+                }
 
-                //System.out.println(targetTranscriptID); //testing
+                //clearing the tokens list for the next iteration.
+                tokens.clear();
 
-            } else {
-                //TODO ||Remove testing||
-                System.out.println("TabInputPeptidefileParser.read(...) - DON'T use filter & six fields");
+                // TODO ||Condition: PSMs > 0 - Peptide appears in protein||
+                if (sigPSMs > 0) {
+                    // Using peptide filter mode, the peptide is searched in its target transcript
+                    if (PepGenomeTool.usePeptideFilter) {
+                        return new PeptideMappingPipeline.Row(tissue, peptide_string, sigPSMs, quant, targetTranscriptID, allowedMismatches);
+                    }
+                    return new PeptideMappingPipeline.Row(tissue, peptide_string, sigPSMs, quant);
+                }
             }
+            return null;
+        }
+    }
 
-            //clearing the tokens list for the next iteration.
-            tokens.clear();
+    //inserts a row, after the earlier rows of its iso sequence. the matching only used the amino acids (iso sequence without PTMs).
+    private static void insert(PeptideMappingPipeline.Row row, CoordinateWrapper coordwrapper, MappedPeptides mapping, OutputStream ofs) throws Exception {
+        String peptide_string = row.peptide();
+        String tissue = row.tissue();
+        int sigPSMs = row.sig_psms();
+        double quant = row.quant();
+        Map<String, TranscriptsT> gene_id_map;
 
-            // TODO ||Condition: PSMs > 0 - Peptide appears in protein||
-            if (sigPSMs > 0) {
-                //the matching will only use the amino acids.
-                // TODO ||Remove PTMs from the iso sequence, only using amino acids||
-                iso_seq_without_ptms = Utils.make_iso_sequence(Utils.remove_ptms(peptide_string));
+        // TODO ||Checks coordwrapper if peptide present||
+        if (!coordwrapper.isPeptidePresent(row.iso_sequence())) {
+            //the peptide was matched by the pipeline.
+            // TODO ||Match peptide, produce gene id map using KmerTreeMap - EDITED||
+            PeptideMatches matches = row.matches();
+            gene_id_map = matches.gene_id_map();
 
-                // TODO ||Checks coordwrapper if peptide present||
-                if (!coordwrapper.isPeptidePresent(iso_seq_without_ptms)) {
-                    //the gene_id_map.find_peptide function will match the peptide.
-                    // TODO ||Match peptide, produce gene id map using KmerTreeMap/KmerSortedMap - EDITED||
-                    // Using peptide filter mode
-                    if (PepGenomeTool.usePeptideFilter) {
-                        System.out.println("TabInputPeptideFileParser: USING peptide filter --> k.find_peptide(...)");
-                        gene_id_map = k.find_peptide(iso_seq_without_ptms, targetTranscriptID, allowedMismatches);
-                    }
-                    // Default
-                    else {
-                        System.out.println("TabInputPeptideFileParser: NOT using peptide filter --> k.find_peptide(...)");
-                        gene_id_map = k.find_peptide(iso_seq_without_ptms);
-                    }
+            //TODO ||Edited: (See variant used below) Extract variant status (check whether peptide contains mismatches)||
 
-                    //TODO ||Edited: (See k.getIsVariant used below) Extract variant status (check whether peptide contains mismatches)||
 
+            for (Map.Entry<String, TranscriptsT> it : gene_id_map.entrySet()) {
+                // TODO ||Add peptide to mapping - Creates PeptideEntry object||
+                mapping.add_peptide(coordwrapper, peptide_string, tissue, sigPSMs, gene_id_map.size(), ofs, quant, it, matches.is_variant(), row.position());
+            }
+            if (gene_id_map.isEmpty()) {
+                ofs.write(("No-Gene" + "\t" + peptide_string + "\t" + "No-Transcript" + "\t" + "No-genes" + "\t" + tissue + "\t" + sigPSMs + "\t" + quant + "\n").getBytes());
+            }
+        } else {
+            //if the peptide already exists its genomic coordinates dont have to be recalculated.
+            //only the tags and PTMs have to be added
+            ArrayList<PeptideEntry> refVec = coordwrapper.get_existing_peptides_at(row.iso_sequence());
+            for (PeptideEntry aRefVec : refVec) {
+                aRefVec.add_peptide(peptide_string, tissue, sigPSMs, quant);
+            }
+        }
+    }
 
-                    for (Map.Entry<String, TranscriptsT> it : gene_id_map.entrySet()) {
-                        // TODO ||Add peptide to mapping - Creates PeptideEntry object||
-                        mapping.add_peptide(coordwrapper, peptide_string, tissue, sigPSMs, gene_id_map.size(), ofs, quant, it, k.getIsVariant());
-                    }
-                    if (gene_id_map.isEmpty()) {
-                        ofs.write(("No-Gene" + "\t" + peptide_string + "\t" + "No-Transcript" + "\t" + "No-genes" + "\t" + tissue + "\t" + sigPSMs + "\t" + quant + "\n").getBytes());
-                    }
-                } else {
-                    //if the peptide already exists its genomic coordinates dont have to be recalculated.
-                    //only the tags and PTMs have to be added
-                    ArrayList<PeptideEntry> refVec = coordwrapper.get_existing_peptides_at(iso_seq_without_ptms);
-                    for (PeptideEntry aRefVec : refVec) {
-                        aRefVec.add_peptide(peptide_string, tissue, sigPSMs, quant, k.getIsVariant());
-                    }
+    //returns the distinct iso sequences (without PTMs) of all peptides in the file that will be mapped.
+    private LinkedHashSet<String> read_iso_sequences(String file) throws IOException {
+        LinkedHashSet<String> iso_sequences = new LinkedHashSet<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file)))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if ((line.toLowerCase().startsWith("experiment")) || (line.toLowerCase().startsWith("sample"))) {
+                    continue;
+                }
+                String[] tokens = Utils.tokenize(line, "\t", false);
+                String sigPsmStr = tokens[2].trim();
+                if (sigPsmStr.length() > 0 && Integer.parseInt(sigPsmStr) > 0) {
+                    iso_sequences.add(Utils.make_iso_sequence(Utils.remove_ptms(tokens[1].trim())));
                 }
             }
         }
-        ofs.close();
-        reader.close();
-        ifs.close();
+        return iso_sequences;
     }
 
     private void sparkRead(String file, CoordinateWrapper coordwrapper, MappedPeptides mapping, String unmappedoutput, IKmerMap k) throws Exception {
@@ -175,6 +220,22 @@ public class TabInputPeptideFileParser implements PeptideInputReader, Serializab
                 .csv(file);
 
         List<Row> rows = tsv.collectAsList();
+
+        //the peptides that are not mapped yet are searched in one batch lookup.
+        LinkedHashSet<String> iso_sequences = new LinkedHashSet<>();
+        for (Row r : rows) {
+            String tissue = r.getString(0).trim();
+            if ((tissue.toLowerCase().startsWith("experiment")) || (tissue.toLowerCase().startsWith("sample"))) {
+                continue;
+            }
+            String sigPsmStr = r.getString(2).trim();
+            if (sigPsmStr.length() > 0 && Integer.parseInt(sigPsmStr) > 0) {
+                iso_sequences.add(Utils.make_iso_sequence(Utils.remove_ptms(r.getString(1).trim())));
+            }
+        }
+        iso_sequences.removeIf(coordwrapper::isPeptidePresent);
+        Map<String, PeptideMatches> batch_matches = k.find_peptides(iso_sequences);
+
         for (Row r : rows) {
             String tissue = r.getString(0).trim();
             if ((tissue.toLowerCase().startsWith("experiment")) || (tissue.toLowerCase().startsWith("sample"))) {
@@ -198,10 +259,11 @@ public class TabInputPeptideFileParser implements PeptideInputReader, Serializab
                 String iso_seq_without_ptms = Utils.make_iso_sequence(Utils.remove_ptms(peptide_string));
 
                 if (!coordwrapper.isPeptidePresent(iso_seq_without_ptms)) {
-                    //the gene_id_map.find_peptide function will match the peptide.
-                    Map<String, TranscriptsT> gene_id_map = k.find_peptide(iso_seq_without_ptms);
+                    //the peptide was matched by the batch lookup.
+                    PeptideMatches matches = batch_matches.get(iso_seq_without_ptms);
+                    Map<String, TranscriptsT> gene_id_map = matches.gene_id_map();
                     for (Map.Entry<String, TranscriptsT> it : gene_id_map.entrySet()) {
-                        mapping.add_peptide(coordwrapper, peptide_string, tissue, sigPSMs, gene_id_map.size(), ofs, quant, it, k.getIsVariant());
+                        mapping.add_peptide(coordwrapper, peptide_string, tissue, sigPSMs, gene_id_map.size(), ofs, quant, it, matches.is_variant());
                     }
                     if (gene_id_map.isEmpty()) {
                         ofs.write(("No-Gene" + "\t" + peptide_string + "\t" + "No-Transcript" + "\t" + "No-genes" + "\t" + tissue + "\t" + sigPSMs + "\t" + quant + "\n").getBytes());
@@ -211,7 +273,7 @@ public class TabInputPeptideFileParser implements PeptideInputReader, Serializab
                     //only the tags and PTMs have to be added
                     ArrayList<PeptideEntry> refVec = coordwrapper.get_existing_peptides_at(iso_seq_without_ptms);
                     for (PeptideEntry aRefVec : refVec) {
-                        aRefVec.add_peptide(peptide_string, tissue, sigPSMs, quant, k.getIsVariant());
+                        aRefVec.add_peptide(peptide_string, tissue, sigPSMs, quant);
                     }
                 }
             }
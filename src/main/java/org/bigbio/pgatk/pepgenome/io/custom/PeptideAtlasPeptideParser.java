@@ -2,12 +2,15 @@ package org.bigbio.pgatk.pepgenome.io.custom;
 
 import org.apache.log4j.Logger;
 import org.bigbio.pgatk.pepgenome.CoordinateWrapper;
+import org.bigbio.pgatk.pepgenome.PepGenomeTool;
 import org.bigbio.pgatk.pepgenome.common.PeptideEntry;
 import org.bigbio.pgatk.pepgenome.common.TranscriptsT;
 import org.bigbio.pgatk.pepgenome.common.Utils;
 import org.bigbio.pgatk.pepgenome.common.maps.MappedPeptides;
 import org.bigbio.pgatk.pepgenome.io.PeptideInputReader;
+import org.bigbio.pgatk.pepgenome.io.PeptideMappingPipeline;
 import org.bigbio.pgatk.pepgenome.kmer.IKmerMap;
+import org.bigbio.pgatk.pepgenome.kmer.PeptideMatches;
 
 import java.io.*;
 import java.util.ArrayList;
@@ -51,45 +54,9 @@ public class PeptideAtlasPeptideParser implements PeptideInputReader {
 
         try {
 
-            String peptide_string;
-            String iso_seq_without_ptms;
-            String tissue;
-            int sigPSMs;
-            double quant;
-            Map<String, TranscriptsT> gene_id_map;
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if ((line.startsWith("peptide_accession"))) {
-                    continue;
-                }
-                ArrayList<String> tokens = new ArrayList<>(Arrays.asList(Utils.tokenize(line, "\t", false)));
-                //using only the tokens needed.
-                tissue = tokens.get(12);
-                peptide_string = tokens.get(1);
-                sigPSMs = Integer.parseInt(tokens.get(3));
-                quant = Double.parseDouble(tokens.get(3));
-                //the matching will only use the amino acids.
-                iso_seq_without_ptms = Utils.make_iso_sequence(Utils.remove_ptms(peptide_string));
-                if (!coordwrapper.isPeptidePresent(iso_seq_without_ptms)) {
-                    //the gene_id_map.find_peptide function will match the peptide.
-                    gene_id_map = k.find_peptide(iso_seq_without_ptms);
-                    for (Map.Entry<String, TranscriptsT> it : gene_id_map.entrySet()) {
-                        //TODO ||Edited||
-                        mapping.add_peptide(coordwrapper, peptide_string, tissue, sigPSMs, gene_id_map.size(), ofs, quant, it, k.getIsVariant());
-                    }
-                    if (gene_id_map.isEmpty()){
-                        ofs.write(("No-Gene" + "\t" + peptide_string + "\t" + "No-Transcript" + "\t" + "No-genes" + "\t" + tissue + "\t" + sigPSMs + "\t" + quant + "\n").getBytes());
-                    }
-                } else {
-                    //if the peptide already exists its genomic coordinates dont have to be recalculated.
-                    //only the tags and PTMs have to be added
-                    ArrayList<PeptideEntry> refVec = coordwrapper.get_existing_peptides_at(iso_seq_without_ptms);
-                    for (PeptideEntry aRefVec : refVec) {
-                        aRefVec.add_peptide(peptide_string, file, sigPSMs, quant, k.getIsVariant());
-                    }
-                }
-            }
+            //the peptides that are not mapped yet are searched by the workers of the pipeline.
+            PeptideMappingPipeline pipeline = new PeptideMappingPipeline(k, coordwrapper.existing_peptide_sequences(), PepGenomeTool.threads, mapping::next_position);
+            pipeline.run(() -> next_row(reader), (row, out) -> insert(row, file, coordwrapper, mapping, out), ofs);
             ofs.flush();
             ofs.close();
 
@@ -99,4 +66,50 @@ public class PeptideAtlasPeptideParser implements PeptideInputReader {
         }
 
     }
+
+    //parses the next row of the file, null at its end.
+    private static PeptideMappingPipeline.Row next_row(BufferedReader reader) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if ((line.startsWith("peptide_accession"))) {
+                continue;
+            }
+            ArrayList<String> tokens = new ArrayList<>(Arrays.asList(Utils.tokenize(line, "\t", false)));
+            //using only the tokens needed.
+            String tissue = tokens.get(12);
+            String peptide_string = tokens.get(1);
+            int sigPSMs = Integer.parseInt(tokens.get(3));
+            double quant = Double.parseDouble(tokens.get(3));
+            return new PeptideMappingPipeline.Row(tissue, peptide_string, sigPSMs, quant);
+        }
+        return null;
+    }
+
+    //inserts a row, after the earlier rows of its iso sequence. the matching only used the amino acids (iso sequence without PTMs).
+    private static void insert(PeptideMappingPipeline.Row row, String file, CoordinateWrapper coordwrapper, MappedPeptides mapping, OutputStream ofs) throws Exception {
+        String peptide_string = row.peptide();
+        String tissue = row.tissue();
+        int sigPSMs = row.sig_psms();
+        double quant = row.quant();
+
+        if (!coordwrapper.isPeptidePresent(row.iso_sequence())) {
+            //the peptide was matched by the pipeline.
+            PeptideMatches matches = row.matches();
+            Map<String, TranscriptsT> gene_id_map = matches.gene_id_map();
+            for (Map.Entry<String, TranscriptsT> it : gene_id_map.entrySet()) {
+                //TODO ||Edited||
+                mapping.add_peptide(coordwrapper, peptide_string, tissue, sigPSMs, gene_id_map.size(), ofs, quant, it, matches.is_variant(), row.position());
+            }
+            if (gene_id_map.isEmpty()){
+                ofs.write(("No-Gene" + "\t" + peptide_string + "\t" + "No-Transcript" + "\t" + "No-genes" + "\t" + tissue + "\t" + sigPSMs + "\t" + quant + "\n").getBytes());
+            }
+        } else {
+            //if the peptide already exists its genomic coordinates dont have to be recalculated.
+            //only the tags and PTMs have to be added
+            ArrayList<PeptideEntry> refVec = coordwrapper.get_existing_peptides_at(row.iso_sequence());
+            for (PeptideEntry aRefVec : refVec) {
+                aRefVec.add_peptide(peptide_string, file, sigPSMs, quant);
+            }
+        }
+    }
 }
@@ -0,0 +1,202 @@
+package org.bigbio.pgatk.pepgenome.kmer;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This code is licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * ==Overview==
+ *
+ * Aho-Corasick automaton over a fixed list of (distinct) patterns. A text is scanned once and every
+ * occurrence of every pattern is reported, independent of the number of patterns.
+ *
+ * The trie is stored in int arrays: the children of a state are a linked list (first child, next sibling).
+ * States with many children (the ones close to the root, which are also visited most often) additionally
+ * get a direct child table for the upper case letters.
+ */
+public class AhoCorasick implements Serializable {
+
+    private static final long serialVersionUID = 8206480531327593604L;
+
+    private static final int ROOT = 0;
+    private static final int NONE = -1;
+
+    /**
+     * Receives the occurrences found by {@link #scan(CharSequence, Hits)}.
+     */
+    public interface Hits {
+        void hit(int pattern, int start);
+    }
+
+    //states with at least this many children get a direct child table.
+    private static final int DENSE_CHILDREN = 6;
+
+    //the direct child tables cover the characters from DENSE_FIRST to DENSE_FIRST + DENSE_WIDTH - 1.
+    private static final char DENSE_FIRST = '@';
+    private static final int DENSE_WIDTH = 32;
+
+    //direct child table of every state or NONE, and the tables themselves.
+    private final int[] m_dense_index;
+    private final int[] m_dense;
+
+    //trie: first child, next sibling and the character leading to every state.
+    private final int[] m_first_child;
+    private final int[] m_next_sibling;
+    private final char[] m_symbol;
+
+    //longest proper suffix of the state that is also a state.
+    private final int[] m_fail;
+
+    //pattern ending in the state or NONE.
+    private final int[] m_output;
+
+    //next state on the fail chain that has an output or NONE.
+    private final int[] m_dict;
+
+    private final int[] m_pattern_length;
+
+    private int m_state_count = 1;
+
+    /**
+     * Builds the automaton.
+     * @param patterns distinct, non empty patterns. they are reported by their index in this list
+     */
+    public AhoCorasick(List<String> patterns) {
+        int states = 1;
+        for (String pattern : patterns) {
+            states += pattern.length();
+        }
+        m_first_child = new int[states];
+        m_next_sibling = new int[states];
+        m_symbol = new char[states];
+        m_fail = new int[states];
+        m_output = new int[states];
+        m_dict = new int[states];
+        Arrays.fill(m_first_child, NONE);
+        Arrays.fill(m_next_sibling, NONE);
+        Arrays.fill(m_output, NONE);
+        Arrays.fill(m_dict, NONE);
+
+        m_dense_index = new int[states];
+        Arrays.fill(m_dense_index, NONE);
+
+        m_pattern_length = new int[patterns.size()];
+        for (int i = 0; i < patterns.size(); i++) {
+            insert(patterns.get(i), i);
+        }
+        m_dense = dense_tables();
+        link();
+    }
+
+    private void insert(String pattern, int index) {
+        int state = ROOT;
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            int next = child(state, c);
+            if (next == NONE) {
+                next = m_state_count++;
+                m_symbol[next] = c;
+                m_next_sibling[next] = m_first_child[state];
+                m_first_child[state] = next;
+            }
+            state = next;
+        }
+        m_output[state] = index;
+        m_pattern_length[index] = pattern.length();
+    }
+
+    //builds the direct child tables once the trie is complete.
+    private int[] dense_tables() {
+        int count = 0;
+        for (int state = 0; state < m_state_count; state++) {
+            int children = 0;
+            for (int child = m_first_child[state]; child != NONE; child = m_next_sibling[child]) {
+                children++;
+            }
+            if (state == ROOT || children >= DENSE_CHILDREN) {
+                m_dense_index[state] = count++;
+            }
+        }
+        int[] dense = new int[count * DENSE_WIDTH];
+        Arrays.fill(dense, NONE);
+        for (int state = 0; state < m_state_count; state++) {
+            if (m_dense_index[state] == NONE) {
+                continue;
+            }
+            for (int child = m_first_child[state]; child != NONE; child = m_next_sibling[child]) {
+                int offset = m_symbol[child] - DENSE_FIRST;
+                if (offset >= 0 && offset < DENSE_WIDTH) {
+                    dense[m_dense_index[state] * DENSE_WIDTH + offset] = child;
+                }
+            }
+        }
+        return dense;
+    }
+
+    //sets the fail and dictionary links breadth first, so the links of all shorter states are known.
+    private void link() {
+        int[] queue = new int[m_state_count];
+        int head = 0;
+        int tail = 0;
+        for (int child = m_first_child[ROOT]; child != NONE; child = m_next_sibling[child]) {
+            m_fail[child] = ROOT;
+            queue[tail++] = child;
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            for (int child = m_first_child[state]; child != NONE; child = m_next_sibling[child]) {
+                int fail = m_fail[state];
+                int next;
+                while ((next = child(fail, m_symbol[child])) == NONE && fail != ROOT) {
+                    fail = m_fail[fail];
+                }
+                m_fail[child] = (next == NONE) ? ROOT : next;
+                m_dict[child] = (m_output[m_fail[child]] != NONE) ? m_fail[child] : m_dict[m_fail[child]];
+                queue[tail++] = child;
+            }
+        }
+    }
+
+    private int child(int state, char c) {
+        int offset = c - DENSE_FIRST;
+        if (m_dense_index[state] != NONE && offset >= 0 && offset < DENSE_WIDTH) {
+            return m_dense[m_dense_index[state] * DENSE_WIDTH + offset];
+        }
+        for (int child = m_first_child[state]; child != NONE; child = m_next_sibling[child]) {
+            if (m_symbol[child] == c) {
+                return child;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Reports every occurrence of every pattern in the text, ordered by the end of the occurrence.
+     * @param text text to scan
+     * @param hits receives the pattern index and the (0 based) start of every occurrence
+     */
+    public void scan(CharSequence text, Hits hits) {
+        int state = ROOT;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            int next;
+            while ((next = child(state, c)) == NONE && state != ROOT) {
+                state = m_fail[state];
+            }
+            state = (next == NONE) ? ROOT : next;
+            for (int out = (m_output[state] != NONE) ? state : m_dict[state]; out != NONE; out = m_dict[out]) {
+                hits.hit(m_output[out], i - m_pattern_length[m_output[out]] + 1);
+            }
+        }
+    }
+
+    public final int pattern_count() {
+        return m_pattern_length.length;
+    }
+}
@@ -1,10 +1,11 @@
 package org.bigbio.pgatk.pepgenome.kmer;
 
 import org.bigbio.pgatk.pepgenome.common.ProteinEntry;
-import org.bigbio.pgatk.pepgenome.common.TranscriptsT;
 
-import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeSet;
 
 /**
  * This code is licensed under the Apache License, Version 2.0 (the
@@ -15,6 +16,10 @@ import java.util.Map;
  * <p>
  * ==Overview==
  *
+ * Proteins are added first, the index is built from them once and is not changed by lookups: every lookup
+ * returns matches of its own and keeps its buffers in the {@link QueryContext} of the calling thread, so a
+ * built map can be queried from several threads. Proteins must not be added while lookups run.
+ *
  * @author ypriverol on 01/10/2018.
  */
 public interface IKmerMap {
@@ -27,41 +32,34 @@ public interface IKmerMap {
     void add_protein(ProteinEntry protein);
 
     /**
-     * Searches for all matches (imperfect matching, set via PEPTIDE_MAPPER) and returns a map that contains all finds.
+     * Searches for all matches (imperfect matching, set via PEPTIDE_MAPPER).
      * @param peptide_string Peptide String to search
-     * @return Transcript map
+     * @return matches of the peptide, owned by the caller
      */
-    Map<String, TranscriptsT> find_peptide(String peptide_string);
+    PeptideMatches find_peptide(String peptide_string);
 
     //TODO ||Edited - Added version||
     /**
      * 2021 Expansion - Peptide filter mode
-     * Searches for all matches (imperfect matching, set via PEPTIDE_MAPPER) and returns a map that contains all finds.
+     * Searches for all matches (imperfect matching, set via PEPTIDE_MAPPER).
      * @param peptide_string Peptide String to search
-     * @return Transcript map
-     */
-    Map<String, TranscriptsT> find_peptide(String peptide_string, String targetGeneID, int allowedMismatches);
-
-    //TODO ||Edited||
-    public boolean getIsVariant();
-
-    //TODO ||Edited||
-    public void setIsVariant(boolean isVariant);
-
-    /**
-     * Inserts a found peptide into the current gene id map.
-     * @param entry Entry
-     * @param mismatches Number of missmatches
+     * @return matches of the peptide, owned by the caller
      */
-    void insert_into_gene_id_map(IKmerEntry entry, ArrayList<Integer> mismatches);
+    PeptideMatches find_peptide(String peptide_string, String targetGeneID, int allowedMismatches);
 
     /**
-     * Inserts a found peptide into the current gene id map.
-     * @param entry KmerEntry
-     * @param mismatches Number of mismatches accepted
-     * @param offset offset
+     * Batch lookup: searches all peptides (imperfect matching, set via PEPTIDE_MAPPER) in sorted order, so maps
+     * can share the work of peptides with a common prefix. Every distinct peptide is searched once.
+     * @param peptides iso sequences of the peptides to search
+     * @return peptide -> its matches, for every distinct peptide
      */
-    void insert_into_gene_id_map(IKmerEntry entry, ArrayList<Integer> mismatches, int offset);
+    default Map<String, PeptideMatches> find_peptides(Collection<String> peptides) {
+        Map<String, PeptideMatches> matches = new HashMap<>();
+        for (String peptide : new TreeSet<>(peptides)) {
+            matches.put(peptide, find_peptide(peptide));
+        }
+        return matches;
+    }
 
     /**
      * Returns true if a kmer (key) is in the digested proteins
@@ -0,0 +1,61 @@
+package org.bigbio.pgatk.pepgenome.kmer;
+
+import org.bigbio.pgatk.pepgenome.common.ProteinEntry;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * This code is licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * ==Overview==
+ *
+ * Number of postings of every kmer code (see {@link KmerEncoder}), used to seed a peptide on its rarest
+ * kmers (see {@link SeedPlanner}).
+ */
+public interface KmerCounts {
+
+    /**
+     * Returns the number of occurrences of a kmer in the proteins.
+     * @param code kmer code
+     * @return number of postings
+     */
+    int count(int code);
+
+    /**
+     * Counts held in a table indexed by the kmer code, for maps that do not store their postings by code.
+     */
+    final class Table implements KmerCounts, Serializable {
+
+        private static final long serialVersionUID = 3324937761842391519L;
+
+        private final int[] m_counts;
+
+        private Table(int[] counts) {
+            this.m_counts = counts;
+        }
+
+        /**
+         * Digests the proteins.
+         * @param proteins proteins
+         * @param kmerLength length of the kmers
+         * @return counts of all kmers of the proteins
+         */
+        public static Table of(List<ProteinEntry> proteins, int kmerLength) {
+            int[] counts = new int[KmerEncoder.table_size(kmerLength)];
+            for (int i = 0; i < proteins.size(); i++) {
+                KmerEncoder.digest(proteins.get(i), i, kmerLength, (code, proteinIndex, position) -> counts[code]++);
+            }
+            return new Table(counts);
+        }
+
+        @Override
+        public int count(int code) {
+            return m_counts[code];
+        }
+    }
+}
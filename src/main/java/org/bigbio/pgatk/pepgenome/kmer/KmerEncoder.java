@@ -0,0 +1,138 @@
+package org.bigbio.pgatk.pepgenome.kmer;
+
+import org.bigbio.pgatk.pepgenome.common.ProteinEntry;
+import org.bigbio.pgatk.pepgenome.common.constants.GenomeMapper;
+
+/**
+ * This code is licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * ==Overview==
+ *
+ * Packs kmers of the iso sequence into integers. Every amino acid in
+ * {@link GenomeMapper.PEPTIDE_MAPPER#ALLOWED_AMINO_ACIDS} gets its own digit and all other
+ * residues (U, X, *, ...) share one extra digit, so a kmer of length 5 is a number below 20^5.
+ * Residues sharing the extra digit only produce additional candidates, the matchers still compare
+ * the real characters.
+ */
+public final class KmerEncoder {
+
+    //number of digits: the allowed amino acids plus one digit for every other residue.
+    public static final int RADIX = GenomeMapper.PEPTIDE_MAPPER.ALLOWED_AMINO_ACIDS.length + 1;
+
+    //digit used for residues that are not part of the allowed amino acids.
+    public static final int OTHER_RESIDUE = RADIX - 1;
+
+    //longest kmer that still fits into a positive int.
+    public static final int MAX_KMER_LENGTH = max_length(Integer.MAX_VALUE);
+
+    private static final int[] RESIDUE_CODES = new int[128];
+
+    static {
+        for (int i = 0; i < RESIDUE_CODES.length; i++) {
+            RESIDUE_CODES[i] = OTHER_RESIDUE;
+        }
+        for (int i = 0; i < GenomeMapper.PEPTIDE_MAPPER.ALLOWED_AMINO_ACIDS.length; i++) {
+            RESIDUE_CODES[GenomeMapper.PEPTIDE_MAPPER.ALLOWED_AMINO_ACIDS[i]] = i;
+        }
+    }
+
+    private KmerEncoder() {
+    }
+
+    /**
+     * Returns the digit of a single residue.
+     * @param residue amino acid (iso sequence)
+     * @return digit between 0 and RADIX - 1
+     */
+    public static int residue_code(char residue) {
+        return (residue < RESIDUE_CODES.length) ? RESIDUE_CODES[residue] : OTHER_RESIDUE;
+    }
+
+    /**
+     * Encodes the kmer that starts at from.
+     * @param sequence sequence holding the kmer
+     * @param from (0 based) start of the kmer
+     * @param kmerLength length of the kmer
+     * @return kmer code
+     */
+    public static int encode(CharSequence sequence, int from, int kmerLength) {
+        int code = 0;
+        for (int i = from; i < from + kmerLength; i++) {
+            code = code * RADIX + residue_code(sequence.charAt(i));
+        }
+        return code;
+    }
+
+    /**
+     * Slides a kmer code one residue to the right.
+     * @param code code of the previous kmer
+     * @param next residue entering the kmer
+     * @param highestPower RADIX^(kmerLength - 1), see {@link #power(int)}
+     * @return code of the next kmer
+     */
+    public static int roll(int code, char next, int highestPower) {
+        return (code % highestPower) * RADIX + residue_code(next);
+    }
+
+    /**
+     * Calls the visitor with the code of every kmer of the protein, the codes are used as slots.
+     * @param protein protein to digest
+     * @param proteinIndex index handed to the visitor
+     * @param kmerLength length of the kmers
+     * @param visitor receives code, protein index and position of every kmer
+     */
+    public static void digest(ProteinEntry protein, int proteinIndex, int kmerLength, KmerPostings.Visitor visitor) {
+        String sequence = protein.get_sequence();
+        if (sequence.length() < kmerLength) {
+            return;
+        }
+        int highestPower = power(kmerLength - 1);
+        int n = sequence.length() - kmerLength;
+        int code = encode(sequence, 0, kmerLength);
+        for (int i = 0; i <= n; i++) {
+            if (i > 0) {
+                code = roll(code, sequence.charAt(i + kmerLength - 1), highestPower);
+            }
+            visitor.visit(code, proteinIndex, i);
+        }
+    }
+
+    /**
+     * Returns RADIX^exponent.
+     * @param exponent exponent
+     * @return power
+     */
+    public static int power(int exponent) {
+        int result = 1;
+        for (int i = 0; i < exponent; i++) {
+            result *= RADIX;
+        }
+        return result;
+    }
+
+    /**
+     * Number of distinct codes for a given kmer length, i.e. the size of a direct addressed table.
+     * @param kmerLength length of the kmer
+     * @return RADIX^kmerLength
+     */
+    public static int table_size(int kmerLength) {
+        if (kmerLength < 1 || kmerLength > MAX_KMER_LENGTH) {
+            throw new IllegalArgumentException("kmer length " + kmerLength + " can not be encoded, allowed are 1 to " + MAX_KMER_LENGTH);
+        }
+        return power(kmerLength);
+    }
+
+    private static int max_length(long limit) {
+        int length = 0;
+        long size = 1;
+        while (size * RADIX <= limit) {
+            size *= RADIX;
+            length++;
+        }
+        return length;
+    }
+}
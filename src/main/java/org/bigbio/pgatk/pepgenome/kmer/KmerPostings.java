@@ -0,0 +1,473 @@
+package org.bigbio.pgatk.pepgenome.kmer;
+
+import org.bigbio.pgatk.pepgenome.common.ProteinEntry;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * This code is licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * ==Overview==
+ *
+ * Posting lists of all kmers packed in compressed sparse row form. Every kmer is identified by a slot
+ * (its code or an index handed out by the kmer map). The postings of slot s are the entries
+ * offsets[s] to offsets[s + 1] - 1 of the protein index and position arrays.
+ *
+ * The postings are built in two passes over the proteins: the first pass counts the postings per slot,
+ * the second one fills the arrays. {@link Cursor} gives an {@link IKmerEntry} view of a single posting.
+ * With a thread safe digester both passes can run in parallel on ranges of proteins (see
+ * {@link #build(List, int, Digester, ForkJoinPool)}). The postings of a slot are always ordered by protein
+ * and position, so the parallel build gives the same arrays as the sequential one.
+ *
+ * The arrays are held as int buffers, so postings can also be read directly from a memory mapped
+ * index file (see {@link #wrap(ProteinEntry[], IntBuffer, IntBuffer, IntBuffer)}).
+ */
+public class KmerPostings implements Serializable {
+
+    private static final long serialVersionUID = 2054934745712539867L;
+
+    /**
+     * Receives every kmer of a protein.
+     */
+    public interface Visitor {
+        void visit(int slot, int proteinIndex, int position);
+    }
+
+    /**
+     * Digests a protein, i.e. calls the visitor for every kmer in the protein.
+     * Has to produce the same slots when it is called twice for the same protein.
+     */
+    public interface Digester {
+        void digest(ProteinEntry protein, int proteinIndex, Visitor visitor);
+    }
+
+    //the proteins the postings refer to, with their packed sequences.
+    private final ProteomeStore m_store;
+
+    //slot -> first posting, the last entry holds the total number of postings.
+    private transient IntBuffer m_offsets;
+
+    //protein index and (0 based) position of every posting.
+    private transient IntBuffer m_protein_index;
+    private transient IntBuffer m_position;
+
+    //number of slots that have at least one posting.
+    private final int m_used_slots;
+
+    private KmerPostings(ProteomeStore store, IntBuffer offsets, IntBuffer proteinIndex, IntBuffer position, int usedSlots) {
+        this.m_store = store;
+        this.m_offsets = offsets;
+        this.m_protein_index = proteinIndex;
+        this.m_position = position;
+        this.m_used_slots = usedSlots;
+    }
+
+    /**
+     * Creates postings from buffers that were written before, e.g. mapped from an index file.
+     * @param proteins proteins the postings refer to
+     * @param offsets slot offsets, one entry more than slots
+     * @param proteinIndex protein index of every posting
+     * @param position position of every posting
+     * @return postings
+     */
+    public static KmerPostings wrap(ProteinEntry[] proteins, IntBuffer offsets, IntBuffer proteinIndex, IntBuffer position) {
+        int usedSlots = 0;
+        for (int slot = 0; slot < offsets.limit() - 1; slot++) {
+            if (offsets.get(slot + 1) > offsets.get(slot)) {
+                usedSlots++;
+            }
+        }
+        return new KmerPostings(ProteomeStore.of(proteins), offsets, proteinIndex, position, usedSlots);
+    }
+
+    /**
+     * Builds the postings of all proteins.
+     * @param proteins proteins to digest, the postings refer to them by their index in this list
+     * @param slotCount number of slots known in advance (the table grows if the digester uses more)
+     * @param digester kmer digester
+     * @return postings
+     */
+    public static KmerPostings build(List<ProteinEntry> proteins, int slotCount, Digester digester) {
+        //first pass: count the postings of every slot.
+        Counter counter = new Counter(slotCount);
+        for (int i = 0; i < proteins.size(); i++) {
+            digester.digest(proteins.get(i), i, counter);
+        }
+        int[] counts = counter.m_counts;
+
+        //prefix sum: offsets of every slot.
+        int[] offsets = new int[counts.length + 1];
+        int usedSlots = 0;
+        for (int slot = 0; slot < counts.length; slot++) {
+            offsets[slot + 1] = offsets[slot] + counts[slot];
+            if (counts[slot] > 0) {
+                usedSlots++;
+            }
+        }
+
+        //second pass: fill the postings.
+        Filler filler = new Filler(offsets);
+        for (int i = 0; i < proteins.size(); i++) {
+            digester.digest(proteins.get(i), i, filler);
+        }
+        int[] proteinIndexes = filler.m_protein_index;
+        int[] positions = filler.m_position;
+
+        return new KmerPostings(ProteomeStore.of(proteins), IntBuffer.wrap(offsets), IntBuffer.wrap(proteinIndexes), IntBuffer.wrap(positions), usedSlots);
+    }
+
+    /**
+     * Builds the postings of all proteins in parallel. The proteins are split into ranges of about the same
+     * number of residues, one per thread of the pool. Every range counts its postings in a table of its own, a
+     * prefix sum over the slots and ranges turns the tables into the first posting of every slot and range, and
+     * every range fills its postings at those offsets. The postings of a slot are the ones of the first range
+     * followed by the ones of the second range and so on, i.e. ordered by protein and position as in the
+     * sequential build, so both give the same arrays.
+     * The count tables take 4 * slotCount bytes per range, the number of ranges is limited to a quarter of the
+     * maximum heap. With a single range the sequential build is used.
+     * @param proteins proteins to digest, the postings refer to them by their index in this list
+     * @param slotCount number of slots, every slot of the digester has to be below it
+     * @param digester kmer digester, called from several threads at the same time
+     * @param pool threads to build with
+     * @return postings
+     */
+    public static KmerPostings build(List<ProteinEntry> proteins, int slotCount, Digester digester, ForkJoinPool pool) {
+        int[] bounds = partition(proteins, slotCount, pool.getParallelism());
+        int ranges = bounds.length - 1;
+        if (ranges <= 1) {
+            return build(proteins, slotCount, digester);
+        }
+
+        //first pass: every range counts the postings of its proteins.
+        int[][] starts = new int[ranges][];
+        run(pool, ranges, range -> {
+            int[] counts = new int[slotCount];
+            for (int i = bounds[range]; i < bounds[range + 1]; i++) {
+                digester.digest(proteins.get(i), i, (slot, proteinIndex, position) -> counts[slot]++);
+            }
+            starts[range] = counts;
+        });
+
+        //prefix sum over the slots, and within a slot over the ranges: the counts of a range become the
+        //first posting of the range in every slot. the slots are summed in blocks, one per range.
+        int[] offsets = new int[slotCount + 1];
+        int[] block_bounds = new int[ranges + 1];
+        for (int block = 0; block <= ranges; block++) {
+            block_bounds[block] = (int) ((long) slotCount * block / ranges);
+        }
+        int[] block_offsets = new int[ranges + 1];
+        int[] block_used_slots = new int[ranges];
+        run(pool, ranges, block -> {
+            int postings = 0;
+            for (int slot = block_bounds[block]; slot < block_bounds[block + 1]; slot++) {
+                for (int range = 0; range < ranges; range++) {
+                    postings += starts[range][slot];
+                }
+            }
+            block_offsets[block + 1] = postings;
+        });
+        for (int block = 0; block < ranges; block++) {
+            block_offsets[block + 1] += block_offsets[block];
+        }
+        run(pool, ranges, block -> {
+            int next = block_offsets[block];
+            int used_slots = 0;
+            for (int slot = block_bounds[block]; slot < block_bounds[block + 1]; slot++) {
+                offsets[slot] = next;
+                for (int range = 0; range < ranges; range++) {
+                    int count = starts[range][slot];
+                    starts[range][slot] = next;
+                    next += count;
+                }
+                if (next > offsets[slot]) {
+                    used_slots++;
+                }
+            }
+            block_used_slots[block] = used_slots;
+        });
+        offsets[slotCount] = block_offsets[ranges];
+        int usedSlots = 0;
+        for (int used_slots : block_used_slots) {
+            usedSlots += used_slots;
+        }
+
+        //second pass: every range fills its postings, the ranges write to disjoint entries.
+        int[] proteinIndexes = new int[offsets[slotCount]];
+        int[] positions = new int[offsets[slotCount]];
+        run(pool, ranges, range -> {
+            int[] next = starts[range];
+            for (int i = bounds[range]; i < bounds[range + 1]; i++) {
+                digester.digest(proteins.get(i), i, (slot, proteinIndex, position) -> {
+                    int posting = next[slot]++;
+                    proteinIndexes[posting] = proteinIndex;
+                    positions[posting] = position;
+                });
+            }
+        });
+
+        return new KmerPostings(ProteomeStore.of(proteins), IntBuffer.wrap(offsets), IntBuffer.wrap(proteinIndexes), IntBuffer.wrap(positions), usedSlots);
+    }
+
+    /**
+     * Splits the proteins into consecutive ranges of about the same number of residues.
+     * @param proteins proteins
+     * @param slotCount number of slots, limits the ranges by the memory of their count tables
+     * @param parallelism number of threads
+     * @return first protein of every range, followed by the number of proteins
+     */
+    private static int[] partition(List<ProteinEntry> proteins, int slotCount, int parallelism) {
+        long memory_ranges = Math.max(1, Runtime.getRuntime().maxMemory() / 4 / (4L * Math.max(slotCount, 1)));
+        int ranges = (int) Math.min(Math.min(parallelism, proteins.size()), memory_ranges);
+        if (ranges <= 1) {
+            return new int[]{0, proteins.size()};
+        }
+        long residues = 0;
+        for (ProteinEntry protein : proteins) {
+            residues += protein.get_sequence().length();
+        }
+        int[] bounds = new int[ranges + 1];
+        int range = 1;
+        long seen = 0;
+        for (int i = 0; i < proteins.size() && range < ranges; i++) {
+            seen += proteins.get(i).get_sequence().length();
+            while (range < ranges && seen >= residues * range / ranges) {
+                bounds[range++] = i + 1;
+            }
+        }
+        while (range <= ranges) {
+            bounds[range++] = proteins.size();
+        }
+        return bounds;
+    }
+
+    //runs task(0) to task(count - 1) in the pool and waits until all of them are done.
+    private static void run(ForkJoinPool pool, int count, IntConsumer task) {
+        List<RecursiveAction> tasks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int index = i;
+            tasks.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    task.accept(index);
+                }
+            });
+        }
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                ForkJoinTask.invokeAll(tasks);
+            }
+        });
+    }
+
+    //counts the postings per slot, grows if the slots are not known in advance.
+    private static class Counter implements Visitor {
+        private int[] m_counts;
+
+        Counter(int slotCount) {
+            this.m_counts = new int[Math.max(slotCount, 1)];
+        }
+
+        @Override
+        public void visit(int slot, int proteinIndex, int position) {
+            if (slot >= m_counts.length) {
+                m_counts = Arrays.copyOf(m_counts, Math.max(slot + 1, m_counts.length * 2));
+            }
+            m_counts[slot]++;
+        }
+    }
+
+    //writes every posting to the next free entry of its slot.
+    private static class Filler implements Visitor {
+        private final int[] m_next;
+        private final int[] m_protein_index;
+        private final int[] m_position;
+
+        Filler(int[] offsets) {
+            this.m_next = Arrays.copyOf(offsets, offsets.length - 1);
+            this.m_protein_index = new int[offsets[offsets.length - 1]];
+            this.m_position = new int[offsets[offsets.length - 1]];
+        }
+
+        @Override
+        public void visit(int slot, int proteinIndex, int position) {
+            int posting = m_next[slot]++;
+            m_protein_index[posting] = proteinIndex;
+            m_position[posting] = position;
+        }
+    }
+
+    //first posting of a slot.
+    public final int start(int slot) {
+        return (slot < 0 || slot >= m_offsets.limit() - 1) ? 0 : m_offsets.get(slot);
+    }
+
+    //one past the last posting of a slot.
+    public final int end(int slot) {
+        return (slot < 0 || slot >= m_offsets.limit() - 1) ? 0 : m_offsets.get(slot + 1);
+    }
+
+    //number of postings of a slot.
+    public final int count(int slot) {
+        return end(slot) - start(slot);
+    }
+
+    /**
+     * Finds the first posting that is not before the given protein and position. The postings of a slot are
+     * sorted by protein and position, the search gallops from the first posting, so ascending searches through
+     * one slot cost about as much as a merge with the shorter list.
+     * @param from first posting to look at
+     * @param to one past the last posting of the slot
+     * @param proteinIndex protein index
+     * @param position position in the protein
+     * @return posting in [from, to], to if all postings are before
+     */
+    public final int seek(int from, int to, int proteinIndex, int position) {
+        int step = 1;
+        int low = from;
+        int high = from;
+        //gallop until the posting at high is not before the target.
+        while (high < to && before(high, proteinIndex, position)) {
+            low = high + 1;
+            high += step;
+            step <<= 1;
+        }
+        high = Math.min(high, to);
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (before(middle, proteinIndex, position)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private boolean before(int posting, int proteinIndex, int position) {
+        int protein = m_protein_index.get(posting);
+        return protein < proteinIndex || (protein == proteinIndex && m_position.get(posting) < position);
+    }
+
+    public final ProteinEntry protein(int posting) {
+        return m_store.protein(m_protein_index.get(posting));
+    }
+
+    public final int protein_index(int posting) {
+        return m_protein_index.get(posting);
+    }
+
+    public final int position(int posting) {
+        return m_position.get(posting);
+    }
+
+    public final ProteinEntry[] proteins() {
+        return m_store.proteins();
+    }
+
+    public final ProteomeStore store() {
+        return m_store;
+    }
+
+    //number of slots with at least one posting, i.e. the number of distinct kmers.
+    public final int used_slots() {
+        return m_used_slots;
+    }
+
+    //total number of postings.
+    public final int posting_count() {
+        return m_position.limit();
+    }
+
+    //number of slots.
+    public final int slot_count() {
+        return m_offsets.limit() - 1;
+    }
+
+    //read only views of the arrays, used to write the postings to an index file.
+    public final IntBuffer offsets() {
+        return m_offsets.asReadOnlyBuffer();
+    }
+
+    public final IntBuffer protein_indexes() {
+        return m_protein_index.asReadOnlyBuffer();
+    }
+
+    public final IntBuffer positions() {
+        return m_position.asReadOnlyBuffer();
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeObject(to_array(m_offsets));
+        out.writeObject(to_array(m_protein_index));
+        out.writeObject(to_array(m_position));
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        m_offsets = IntBuffer.wrap((int[]) in.readObject());
+        m_protein_index = IntBuffer.wrap((int[]) in.readObject());
+        m_position = IntBuffer.wrap((int[]) in.readObject());
+    }
+
+    private static int[] to_array(IntBuffer buffer) {
+        int[] array = new int[buffer.limit()];
+        buffer.duplicate().get(array);
+        return array;
+    }
+
+    /**
+     * Mutable {@link IKmerEntry} view of one posting. A single cursor is moved over the postings
+     * instead of creating an entry per posting.
+     */
+    public static class Cursor implements IKmerEntry {
+
+        private static final long serialVersionUID = -6087066012373580519L;
+
+        private final KmerPostings m_postings;
+        private int m_posting;
+
+        public Cursor(KmerPostings postings) {
+            this.m_postings = postings;
+        }
+
+        public Cursor move_to(int posting) {
+            this.m_posting = posting;
+            return this;
+        }
+
+        @Override
+        public ProteinEntry m_p_protein() {
+            return m_postings.protein(m_posting);
+        }
+
+        public int protein_index() {
+            return m_postings.protein_index(m_posting);
+        }
+
+        public ProteomeStore store() {
+            return m_postings.store();
+        }
+
+        @Override
+        public int m_pos_in_protein() {
+            return m_postings.position(m_posting);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.bigbio.pgatk.pepgenome.kmer;
+
+import org.bigbio.pgatk.pepgenome.common.ProteinEntry;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * This code is licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * ==Overview==
+ *
+ * One bit per kmer code (see {@link KmerEncoder}) telling whether the kmer occurs in the proteins. For 5-mers
+ * the set takes 20^5 bits (400 KB) and stays in the cache, so the neighbour keys generated for mismatch
+ * matching are rejected with a single bit test instead of a map lookup.
+ *
+ * Residues outside of the allowed amino acids share one code, for maps with string keys the set may therefore
+ * contain kmers the map does not have, never the other way round.
+ */
+public final class KmerPresence implements Serializable {
+
+    private static final long serialVersionUID = -1796511418357936702L;
+
+    private final int m_kmer_length;
+    private final long[] m_bits;
+
+    public KmerPresence(int kmerLength) {
+        this.m_kmer_length = kmerLength;
+        this.m_bits = new long[(KmerEncoder.table_size(kmerLength) + 63) >>> 6];
+    }
+
+    /**
+     * Digests the proteins.
+     * @param proteins proteins
+     * @param kmerLength length of the kmers
+     * @return set of all kmers of the proteins
+     */
+    public static KmerPresence of(List<ProteinEntry> proteins, int kmerLength) {
+        KmerPresence presence = new KmerPresence(kmerLength);
+        for (int i = 0; i < proteins.size(); i++) {
+            KmerEncoder.digest(proteins.get(i), i, kmerLength, (code, proteinIndex, position) -> presence.add(code));
+        }
+        return presence;
+    }
+
+    /**
+     * Collects the occupied slots of postings whose slots are kmer codes.
+     * @param postings postings of a map that uses the code as slot
+     * @param kmerLength length of the kmers
+     * @return set of all kmers with postings
+     */
+    public static KmerPresence of(KmerPostings postings, int kmerLength) {
+        KmerPresence presence = new KmerPresence(kmerLength);
+        for (int slot = 0; slot < postings.slot_count(); slot++) {
+            if (postings.count(slot) > 0) {
+                presence.add(slot);
+            }
+        }
+        return presence;
+    }
+
+    public void add(int code) {
+        m_bits[code >>> 6] |= 1L << code;
+    }
+
+    public boolean contains(int code) {
+        return (m_bits[code >>> 6] & (1L << code)) != 0;
+    }
+
+    public int kmer_length() {
+        return m_kmer_length;
+    }
+}
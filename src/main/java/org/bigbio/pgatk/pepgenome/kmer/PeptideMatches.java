@@ -0,0 +1,85 @@
+package org.bigbio.pgatk.pepgenome.kmer;
+
+import org.bigbio.pgatk.pepgenome.common.PositionMismatchT;
+import org.bigbio.pgatk.pepgenome.common.TranscriptsT;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This code is licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * ==Overview==
+ *
+ * Matches of one peptide lookup (see {@link IKmerMap#find_peptide(String)}): the gene id map of its hits, every
+ * position with its mismatches, and whether the peptide is a variant. A peptide is a variant if any of its hits has
+ * a mismatch, this does not depend on the order the hits were found in. Every lookup returns matches of its own,
+ * they are not changed by later lookups and can be handed to another thread.
+ */
+public final class PeptideMatches {
+
+    private static final PeptideMatches NONE = new PeptideMatches(Collections.emptyMap());
+
+    //gene id -> transcript id -> positions
+    private final Map<String, TranscriptsT> m_gene_id_map;
+
+    private final boolean m_variant;
+
+    /**
+     * @param geneIdMap gene id map of the hits, owned by the matches
+     */
+    public PeptideMatches(Map<String, TranscriptsT> geneIdMap) {
+        this.m_gene_id_map = Collections.unmodifiableMap(geneIdMap);
+        this.m_variant = has_mismatches(geneIdMap);
+    }
+
+    //true if any position of the gene id map has a mismatch.
+    private static boolean has_mismatches(Map<String, TranscriptsT> geneIdMap) {
+        for (TranscriptsT transcripts : geneIdMap.values()) {
+            for (List<PositionMismatchT> positions : transcripts.getM_entries().values()) {
+                for (PositionMismatchT position : positions) {
+                    if (position.mismatch_count() > 0) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Collects the hits of a lookup, in the order they were found.
+     * @param context lookup that found the hits
+     * @param store proteins the hits refer to
+     * @return matches of the lookup
+     */
+    public static PeptideMatches of(QueryContext context, ProteomeStore store) {
+        Map<String, TranscriptsT> gene_id_map = new TreeMap<>();
+        context.collect(gene_id_map, store);
+        return new PeptideMatches(gene_id_map);
+    }
+
+    //matches of a peptide without hits.
+    public static PeptideMatches none() {
+        return NONE;
+    }
+
+    public Map<String, TranscriptsT> gene_id_map() {
+        return m_gene_id_map;
+    }
+
+    //true if any hit has a mismatch, false if there are no hits.
+    public boolean is_variant() {
+        return m_variant;
+    }
+
+    public boolean is_empty() {
+        return m_gene_id_map.isEmpty();
+    }
+}
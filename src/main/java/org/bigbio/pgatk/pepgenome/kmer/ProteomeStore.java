@@ -0,0 +1,338 @@
+package org.bigbio.pgatk.pepgenome.kmer;
+
+import org.bigbio.pgatk.pepgenome.common.ProteinEntry;
+import org.bigbio.pgatk.pepgenome.common.SubstitutionMatrix;
+import org.bigbio.pgatk.pepgenome.common.constants.GenomeMapper;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This code is licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * ==Overview==
+ *
+ * All protein sequences of a kmer map packed into one byte array with an offset table, so a candidate
+ * (protein index, position) is verified by comparing bytes in place. The array holds no references, the
+ * garbage collector never has to scan it.
+ *
+ * Candidates are verified eight residues at a time (see {@link #match(ByteBuffer, int, int, int, int, QueryContext)}).
+ * With {@link GenomeMapper.PEPTIDE_MAPPER#SUBSTITUTIONS} set only the allowed substitutions count as mismatches.
+ *
+ * In peptide filter mode only the proteins of the target transcripts are scanned
+ * (see {@link #search_transcripts(String, String, int, QueryContext)}), no posting list is read. Peptides too
+ * short for the seeds of their mismatches are scanned in all proteins the same way.
+ */
+public class ProteomeStore implements Serializable {
+
+    private static final long serialVersionUID = 5135930770254446711L;
+
+    //byte shared by all characters outside of ASCII, amino acids never use it.
+    private static final byte OTHER = (byte) 0x7F;
+
+    //masks of the zero byte test: the high bit and the low seven bits of every byte of a word.
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+
+    private final ProteinEntry[] m_proteins;
+
+    //the residues of protein i are m_residues[m_offsets[i]] to m_residues[m_offsets[i + 1] - 1].
+    private final byte[] m_residues;
+    private final int[] m_offsets;
+
+    //little endian view of m_residues, read a word at a time. created on first use.
+    private transient ByteBuffer m_words;
+
+    //transcript id -> indices of its proteins, ascending. created on first use.
+    private transient Map<String, int[]> m_transcripts;
+
+    private ProteomeStore(ProteinEntry[] proteins, byte[] residues, int[] offsets) {
+        this.m_proteins = proteins;
+        this.m_residues = residues;
+        this.m_offsets = offsets;
+    }
+
+    /**
+     * Packs the sequences of the proteins.
+     * @param proteins proteins, they are referred to by their index in this list
+     * @return store
+     */
+    public static ProteomeStore of(List<ProteinEntry> proteins) {
+        return of(proteins.toArray(new ProteinEntry[0]));
+    }
+
+    /**
+     * Packs the sequences of the proteins.
+     * @param proteins proteins, they are referred to by their index in this array
+     * @return store
+     */
+    public static ProteomeStore of(ProteinEntry[] proteins) {
+        int[] offsets = new int[proteins.length + 1];
+        for (int i = 0; i < proteins.length; i++) {
+            offsets[i + 1] = offsets[i] + proteins[i].get_sequence().length();
+        }
+        byte[] residues = new byte[offsets[proteins.length]];
+        for (int i = 0; i < proteins.length; i++) {
+            String sequence = proteins[i].get_sequence();
+            for (int j = 0; j < sequence.length(); j++) {
+                residues[offsets[i] + j] = to_byte(sequence.charAt(j));
+            }
+        }
+        return new ProteomeStore(proteins, residues, offsets);
+    }
+
+    /**
+     * Packs a peptide like the residues of the store, for {@link #match(ByteBuffer, int, int, int, int, QueryContext)}.
+     * @param peptide peptide
+     * @param buffer buffer to reuse, null or too small to allocate a new one
+     * @return little endian buffer holding the peptide, padded to whole words
+     */
+    public static ByteBuffer pack(String peptide, ByteBuffer buffer) {
+        int capacity = (peptide.length() + 7) & ~7;
+        if (buffer == null || buffer.capacity() < capacity) {
+            buffer = ByteBuffer.allocate(Math.max(capacity, 64)).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        for (int i = 0; i < peptide.length(); i++) {
+            buffer.put(i, to_byte(peptide.charAt(i)));
+        }
+        return buffer;
+    }
+
+    /**
+     * Verification kernel: compares a packed peptide with a protein from the given start on, eight residues
+     * per step. The words are XORed, every byte that differs gets its high bit set by the zero byte test
+     * ((x &amp; 0x7F..) + 0x7F.. | x) &amp; 0x80.. and the mismatches of a word are counted with a popcount,
+     * so a candidate is rejected as soon as the budget is exceeded. The residues after the last whole word
+     * are compared one by one. If a substitution matrix is set, every mismatch has to be an allowed
+     * substitution of the protein residue.
+     * @param peptide packed peptide, see {@link #pack(String, ByteBuffer)}
+     * @param proteinIndex protein index
+     * @param start start of the peptide in the protein, the peptide has to lie within the protein
+     * @param peptideLength length of the peptide
+     * @param allowedMismatches allowed mismatches
+     * @param context receives the (peptide relative) positions of the mismatches, counts the verification
+     * @return true if at most allowedMismatches residues differ
+     */
+    public final boolean match(ByteBuffer peptide, int proteinIndex, int start, int peptideLength, int allowedMismatches, QueryContext context) {
+        context.count_verification();
+        SubstitutionMatrix substitutions = GenomeMapper.PEPTIDE_MAPPER.SUBSTITUTIONS;
+        ByteBuffer words = words();
+        int base = m_offsets[proteinIndex] + start;
+        int i = 0;
+        for (; i + 8 <= peptideLength; i += 8) {
+            long difference = peptide.getLong(i) ^ words.getLong(base + i);
+            if (difference != 0) {
+                long differing = (((difference & LOW_BITS) + LOW_BITS) | difference) & HIGH_BITS;
+                if (context.mismatch_count() + Long.bitCount(differing) > allowedMismatches) {
+                    return false;
+                }
+                while (differing != 0) {
+                    int position = i + (Long.numberOfTrailingZeros(differing) >>> 3);
+                    if (substitutions != null && !substitutions.allows(m_residues[base + position], peptide.get(position))) {
+                        return false;
+                    }
+                    context.add_mismatch(position);
+                    differing &= differing - 1;
+                }
+            }
+        }
+        //scalar tail.
+        for (; i < peptideLength; i++) {
+            if (peptide.get(i) != m_residues[base + i]) {
+                if (substitutions != null && !substitutions.allows(m_residues[base + i], peptide.get(i))) {
+                    return false;
+                }
+                context.add_mismatch(i);
+                if (context.mismatch_count() > allowedMismatches) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Peptide filter mode: finds the peptide in the proteins of the target transcripts only, by verifying
+     * every start of those proteins with the word kernel. The cost depends on the length of the target
+     * proteins instead of the posting lists of the seeds, and the mismatch budget of the peptide is applied
+     * exactly. Like in the kmer maps peptides shorter than {@link GenomeMapper.PEPTIDE_MAPPER#KMER_LENGTH} are
+     * not searched.
+     * @param peptide peptide (iso sequence)
+     * @param targetTranscriptIDs transcript ids separated by ',', ';', '|' or white space
+     * @param allowedMismatches allowed mismatches
+     * @param context receives the hits by protein and start
+     */
+    public final void search_transcripts(String peptide, String targetTranscriptIDs, int allowedMismatches, QueryContext context) {
+        scan(peptide, context.target_proteins(targetTranscriptIDs, this), allowedMismatches, context);
+    }
+
+    /**
+     * Finds the peptide in all proteins the same way, for peptides too short to be split into
+     * allowedMismatches + 1 seeds of a kmer map (see {@link SearchStrategy#PROTEOME_SCAN}).
+     * @param peptide peptide (iso sequence)
+     * @param allowedMismatches allowed mismatches
+     * @param context receives the hits by protein and start
+     */
+    public final void search_proteins(String peptide, int allowedMismatches, QueryContext context) {
+        scan(peptide, null, allowedMismatches, context);
+    }
+
+    //verifies every start of the proteins (all if null) with the word kernel.
+    private void scan(String peptide, int[] proteins, int allowedMismatches, QueryContext context) {
+        int peptide_length = peptide.length();
+        if (peptide_length < GenomeMapper.PEPTIDE_MAPPER.KMER_LENGTH) {
+            return;
+        }
+        if ((GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES > 1) && GenomeMapper.PEPTIDE_MAPPER.ONE_IN_FIVE_MODE) {
+            //same budget as the one in five matchers of the maps, which stop at the second mismatch.
+            allowedMismatches = Math.min(allowedMismatches, 1);
+        }
+        ByteBuffer packed = context.packed_peptide(peptide);
+        byte[] probe_residues = packed.array();
+        byte[] residues = m_residues;
+        //with at most allowedMismatches mismatches one of allowedMismatches + 1 non overlapping probes of the
+        //peptide is equal. probes of two residues let about one start in 400 per probe through to the kernel,
+        //single residues are used if the peptide is too short. a peptide of at most allowedMismatches residues
+        //has no probes, it matches at every start.
+        int width = (peptide_length >= 2 * (allowedMismatches + 1)) ? 2 : 1;
+        boolean probed = peptide_length > allowedMismatches;
+        int probe_end = (allowedMismatches + 1) * width;
+        int protein_count = (proteins != null) ? proteins.length : m_proteins.length;
+        for (int i = 0; i < protein_count; i++) {
+            int protein_index = (proteins != null) ? proteins[i] : i;
+            int offset = m_offsets[protein_index];
+            int last = length(protein_index) - peptide_length;
+            context.count_scanned_residues(Math.max(last + 1, 0));
+            for (int start = 0; start <= last; start++) {
+                int residue = offset + start;
+                int probe = 0;
+                while (probed && probe < probe_end && (probe_residues[probe] != residues[residue + probe]
+                        || (width == 2 && probe_residues[probe + 1] != residues[residue + probe + 1]))) {
+                    probe += width;
+                }
+                if (probed && probe >= probe_end) {
+                    continue;
+                }
+                context.clear_mismatches();
+                if (match(packed, protein_index, start, peptide_length, allowedMismatches, context)) {
+                    context.add_hit(protein_index, start);
+                }
+            }
+        }
+    }
+
+    /**
+     * Resolves the transcript ids of a filter target to proteins. Ids are compared as a whole, so an id
+     * that is part of another one does not select it. The version of an id (ENST00000374695.7) is dropped
+     * like it is for the transcript ids of the fasta headers.
+     * @param targetTranscriptIDs transcript ids separated by ',', ';', '|' or white space
+     * @return indices of the proteins of the transcripts, ascending and distinct
+     */
+    public final int[] transcript_proteins(String targetTranscriptIDs) {
+        Map<String, int[]> transcripts = transcripts();
+        int[] proteins = new int[4];
+        int count = 0;
+        int from = 0;
+        for (int i = 0; i <= targetTranscriptIDs.length(); i++) {
+            if (i < targetTranscriptIDs.length() && !is_transcript_separator(targetTranscriptIDs.charAt(i))) {
+                continue;
+            }
+            int[] indices = (i > from) ? transcripts.get(strip_version(targetTranscriptIDs.substring(from, i))) : null;
+            if (indices != null) {
+                if (count + indices.length > proteins.length) {
+                    proteins = Arrays.copyOf(proteins, Math.max(2 * proteins.length, count + indices.length));
+                }
+                System.arraycopy(indices, 0, proteins, count, indices.length);
+                count += indices.length;
+            }
+            from = i + 1;
+        }
+        Arrays.sort(proteins, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || proteins[distinct - 1] != proteins[i]) {
+                proteins[distinct++] = proteins[i];
+            }
+        }
+        return Arrays.copyOf(proteins, distinct);
+    }
+
+    private static String strip_version(String transcriptID) {
+        int dot = transcriptID.indexOf('.');
+        return (dot < 0) ? transcriptID : transcriptID.substring(0, dot);
+    }
+
+    private static boolean is_transcript_separator(char c) {
+        return c == ',' || c == ';' || c == '|' || Character.isWhitespace(c);
+    }
+
+    private synchronized Map<String, int[]> transcripts() {
+        if (m_transcripts == null) {
+            Map<String, int[]> transcripts = new HashMap<>();
+            for (int i = 0; i < m_proteins.length; i++) {
+                int[] indices = transcripts.get(m_proteins[i].get_transcript_id());
+                indices = (indices == null) ? new int[1] : Arrays.copyOf(indices, indices.length + 1);
+                indices[indices.length - 1] = i;
+                transcripts.put(m_proteins[i].get_transcript_id(), indices);
+            }
+            m_transcripts = transcripts;
+        }
+        return m_transcripts;
+    }
+
+    private ByteBuffer words() {
+        if (m_words == null) {
+            m_words = ByteBuffer.wrap(m_residues).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return m_words;
+    }
+
+    /**
+     * Converts a residue to the byte stored for it.
+     * @param residue amino acid
+     * @return byte value
+     */
+    public static byte to_byte(char residue) {
+        return (residue < OTHER) ? (byte) residue : OTHER;
+    }
+
+    public final int size() {
+        return m_proteins.length;
+    }
+
+    public final ProteinEntry protein(int proteinIndex) {
+        return m_proteins[proteinIndex];
+    }
+
+    public final ProteinEntry[] proteins() {
+        return m_proteins;
+    }
+
+    //index of the first residue of a protein in residues().
+    public final int start(int proteinIndex) {
+        return m_offsets[proteinIndex];
+    }
+
+    public final int length(int proteinIndex) {
+        return m_offsets[proteinIndex + 1] - m_offsets[proteinIndex];
+    }
+
+    //residue at a (0 based) position of a protein.
+    public final byte residue(int proteinIndex, int position) {
+        return m_residues[m_offsets[proteinIndex] + position];
+    }
+
+    //the packed residues of all proteins, not to be modified.
+    public final byte[] residues() {
+        return m_residues;
+    }
+}
@@ -0,0 +1,410 @@
+package org.bigbio.pgatk.pepgenome.kmer;
+
+import org.bigbio.pgatk.pepgenome.common.PositionMismatchT;
+import org.bigbio.pgatk.pepgenome.common.ProteinEntry;
+import org.bigbio.pgatk.pepgenome.common.TranscriptsT;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * This code is licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * ==Overview==
+ *
+ * Reusable buffers of a peptide lookup: the candidate keys as kmer codes (see {@link KmerEncoder}) with the
+ * seed planner choosing them, the candidates already verified, the mismatch positions of the candidate being
+ * verified and the accepted hits. In peptide filter mode the proteins of the last target are kept, consecutive
+ * peptides of the same target resolve it once. The planned {@link SearchStrategy} and the work done by the lookup
+ * are kept for the {@link SearchReport}.
+ * All buffers are primitive arrays that only grow, so once they are large enough a lookup allocates nothing
+ * per candidate; objects are only created for the hits when they are collected into the gene id map.
+ *
+ * A context is not thread safe, every thread gets its own one from {@link #get()}.
+ */
+public final class QueryContext {
+
+    private static final ThreadLocal<QueryContext> CONTEXTS = ThreadLocal.withInitial(QueryContext::new);
+
+    //ints stored per hit: protein index, start, first mismatch in m_hit_mismatches and number of mismatches.
+    private static final int HIT_STRIDE = 4;
+
+    //candidate keys: kmer code and (0 based) start of the kmer in the peptide.
+    private int[] m_key_codes = new int[64];
+    private int[] m_key_offsets = new int[64];
+    private int m_key_count = 0;
+
+    //current posting of every key, used when the posting lists of the keys are intersected.
+    private int[] m_key_cursors = new int[64];
+
+    //mismatch positions (relative to the peptide start) of the current candidate.
+    private int[] m_mismatches = new int[4];
+    private int m_mismatch_count = 0;
+
+    private int[] m_hits = new int[16 * HIT_STRIDE];
+    private int m_hit_count = 0;
+
+    //mismatch positions (relative to the peptide start) of all hits, every hit refers to its range.
+    private int[] m_hit_mismatches = new int[64];
+    private int m_hit_mismatch_count = 0;
+
+    private final SeedPlanner m_planner = new SeedPlanner();
+
+    //the peptide being verified, packed for the word kernel of the store.
+    private String m_peptide;
+    private ByteBuffer m_packed_peptide;
+
+    //target transcripts of the peptide filter mode, resolved to the proteins of a store.
+    private String m_target;
+    private ProteomeStore m_target_store;
+    private int[] m_target_proteins;
+    private long m_target_residues;
+
+    //strategy of the current lookup and its estimated cost, see KmerIntMap::plan
+    private SearchStrategy m_strategy;
+    private double m_estimated_cost;
+
+    //work of the current lookup: verified candidates, posting list seeks and residues scanned.
+    private int m_verifications = 0;
+    private int m_seeks = 0;
+    private long m_scanned_residues = 0;
+
+    //candidates (protein index, start) verified in the current lookup, an open addressing set. a slot belongs
+    //to the set if it carries the current generation, so the set is emptied by bumping the generation.
+    private long[] m_candidates = new long[1024];
+    private int[] m_candidate_generations = new int[1024];
+    private int m_generation = 1;
+    private int m_candidate_count = 0;
+
+    /**
+     * Returns the context of the calling thread.
+     * @return context, shared by all lookups of this thread
+     */
+    public static QueryContext get() {
+        return CONTEXTS.get();
+    }
+
+    //clears all buffers, called at the start of a lookup.
+    public void reset() {
+        m_key_count = 0;
+        m_mismatch_count = 0;
+        m_hit_count = 0;
+        m_hit_mismatch_count = 0;
+        m_verifications = 0;
+        m_seeks = 0;
+        m_scanned_residues = 0;
+        clear_candidates();
+    }
+
+    //empties the candidate set, for lookups that use it without the other buffers.
+    public void clear_candidates() {
+        m_candidate_count = 0;
+        if (++m_generation == 0) {
+            Arrays.fill(m_candidate_generations, 0);
+            m_generation = 1;
+        }
+    }
+
+    /**
+     * Adds a candidate to the set of the current lookup. A candidate can be reached through several keys, e.g.
+     * through more than one seed or neighbour key, it only has to be verified the first time.
+     * @param proteinIndex protein index
+     * @param start start of the peptide in the protein
+     * @return true if the candidate was not seen before in this lookup
+     */
+    public boolean add_candidate(int proteinIndex, int start) {
+        if (2 * (m_candidate_count + 1) > m_candidates.length) {
+            grow_candidates();
+        }
+        long candidate = ((long) proteinIndex << 32) | (start & 0xffffffffL);
+        int mask = m_candidates.length - 1;
+        int slot = candidate_slot(candidate, mask);
+        while (m_candidate_generations[slot] == m_generation) {
+            if (m_candidates[slot] == candidate) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        m_candidates[slot] = candidate;
+        m_candidate_generations[slot] = m_generation;
+        m_candidate_count++;
+        return true;
+    }
+
+    private static int candidate_slot(long candidate, int mask) {
+        return (int) ((candidate * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+
+    //doubles the set and moves the candidates of the current lookup.
+    private void grow_candidates() {
+        long[] candidates = m_candidates;
+        int[] generations = m_candidate_generations;
+        m_candidates = new long[candidates.length * 2];
+        m_candidate_generations = new int[candidates.length * 2];
+        int mask = m_candidates.length - 1;
+        for (int i = 0; i < candidates.length; i++) {
+            if (generations[i] == m_generation) {
+                int slot = candidate_slot(candidates[i], mask);
+                while (m_candidate_generations[slot] == m_generation) {
+                    slot = (slot + 1) & mask;
+                }
+                m_candidates[slot] = candidates[i];
+                m_candidate_generations[slot] = m_generation;
+            }
+        }
+    }
+
+    //chooses the seeds of long peptides, see PossibleKeyGenerator::generate_key_codes
+    public SeedPlanner planner() {
+        return m_planner;
+    }
+
+    /**
+     * Returns the peptide packed for {@link ProteomeStore#match(ByteBuffer, int, int, int, int, QueryContext)}.
+     * It is only packed again when a different peptide is passed.
+     * @param peptide peptide being verified
+     * @return packed peptide
+     */
+    public ByteBuffer packed_peptide(String peptide) {
+        if (peptide != m_peptide) {
+            m_packed_peptide = ProteomeStore.pack(peptide, m_packed_peptide);
+            m_peptide = peptide;
+        }
+        return m_packed_peptide;
+    }
+
+    /**
+     * Returns the proteins of the target transcripts, see {@link ProteomeStore#transcript_proteins(String)}.
+     * They are only resolved again when the target or the store changes.
+     * @param targetTranscriptIDs transcript ids of the filter target
+     * @param store proteins to resolve the ids in
+     * @return indices of the proteins of the transcripts, ascending
+     */
+    public int[] target_proteins(String targetTranscriptIDs, ProteomeStore store) {
+        if (store != m_target_store || !targetTranscriptIDs.equals(m_target)) {
+            m_target_proteins = store.transcript_proteins(targetTranscriptIDs);
+            m_target_residues = 0;
+            for (int protein_index : m_target_proteins) {
+                m_target_residues += store.length(protein_index);
+            }
+            m_target = targetTranscriptIDs;
+            m_target_store = store;
+        }
+        return m_target_proteins;
+    }
+
+    //total length of the proteins of the last target passed to target_proteins.
+    public long target_residues() {
+        return m_target_residues;
+    }
+
+    /**
+     * Sets the strategy of the current lookup.
+     * @param strategy planned strategy, null if the peptide can not be searched
+     * @param estimatedCost expected cost of the strategy
+     */
+    public void set_plan(SearchStrategy strategy, double estimatedCost) {
+        m_strategy = strategy;
+        m_estimated_cost = estimatedCost;
+    }
+
+    public SearchStrategy strategy() {
+        return m_strategy;
+    }
+
+    public double estimated_cost() {
+        return m_estimated_cost;
+    }
+
+    //counts a candidate passed to the verification kernel.
+    public void count_verification() {
+        m_verifications++;
+    }
+
+    public void count_seeks(int seeks) {
+        m_seeks += seeks;
+    }
+
+    public void count_scanned_residues(int residues) {
+        m_scanned_residues += residues;
+    }
+
+    public int verifications() {
+        return m_verifications;
+    }
+
+    public int seeks() {
+        return m_seeks;
+    }
+
+    public long scanned_residues() {
+        return m_scanned_residues;
+    }
+
+    //removes the keys, for lookups that generate keys without the other buffers.
+    public void clear_keys() {
+        m_key_count = 0;
+    }
+
+    public void add_key(int code, int offset) {
+        if (m_key_count == m_key_codes.length) {
+            m_key_codes = Arrays.copyOf(m_key_codes, m_key_count * 2);
+            m_key_offsets = Arrays.copyOf(m_key_offsets, m_key_count * 2);
+            m_key_cursors = Arrays.copyOf(m_key_cursors, m_key_count * 2);
+        }
+        m_key_codes[m_key_count] = code;
+        m_key_offsets[m_key_count] = offset;
+        m_key_count++;
+    }
+
+    public int key_count() {
+        return m_key_count;
+    }
+
+    public int key_code(int key) {
+        return m_key_codes[key];
+    }
+
+    //start of the key in the peptide, the peptide starts offset residues before the kmer in the protein.
+    public int key_offset(int key) {
+        return m_key_offsets[key];
+    }
+
+    public int key_cursor(int key) {
+        return m_key_cursors[key];
+    }
+
+    public void set_key_cursor(int key, int posting) {
+        m_key_cursors[key] = posting;
+    }
+
+    public void clear_mismatches() {
+        m_mismatch_count = 0;
+    }
+
+    public void add_mismatch(int position) {
+        if (m_mismatch_count == m_mismatches.length) {
+            m_mismatches = Arrays.copyOf(m_mismatches, m_mismatch_count * 2);
+        }
+        m_mismatches[m_mismatch_count++] = position;
+    }
+
+    public int mismatch_count() {
+        return m_mismatch_count;
+    }
+
+    public int mismatch(int index) {
+        return m_mismatches[index];
+    }
+
+    //records the current candidate with its mismatches as a hit.
+    public void add_hit(int proteinIndex, int start) {
+        if ((m_hit_count + 1) * HIT_STRIDE > m_hits.length) {
+            m_hits = Arrays.copyOf(m_hits, m_hits.length * 2);
+        }
+        if (m_hit_mismatch_count + m_mismatch_count > m_hit_mismatches.length) {
+            m_hit_mismatches = Arrays.copyOf(m_hit_mismatches, Math.max(m_hit_mismatches.length * 2, m_hit_mismatch_count + m_mismatch_count));
+        }
+        int i = m_hit_count * HIT_STRIDE;
+        m_hits[i] = proteinIndex;
+        m_hits[i + 1] = start;
+        m_hits[i + 2] = m_hit_mismatch_count;
+        m_hits[i + 3] = m_mismatch_count;
+        System.arraycopy(m_mismatches, 0, m_hit_mismatches, m_hit_mismatch_count, m_mismatch_count);
+        m_hit_mismatch_count += m_mismatch_count;
+        m_hit_count++;
+    }
+
+    public int hit_count() {
+        return m_hit_count;
+    }
+
+    /**
+     * Removes the hits outside of the given proteins, keeping the order of the others.
+     * @param proteins protein indices, ascending
+     */
+    public void retain_hits(int[] proteins) {
+        int kept = 0;
+        for (int hit = 0; hit < m_hit_count; hit++) {
+            if (Arrays.binarySearch(proteins, m_hits[hit * HIT_STRIDE]) >= 0) {
+                if (kept != hit) {
+                    System.arraycopy(m_hits, hit * HIT_STRIDE, m_hits, kept * HIT_STRIDE, HIT_STRIDE);
+                }
+                kept++;
+            }
+        }
+        m_hit_count = kept;
+    }
+
+    /**
+     * Sorts the hits by protein and start and removes repeated hits of the same position, e.g. a peptide found
+     * through several of its seeds. Sorted in place (heap sort), nothing is allocated.
+     */
+    public void sort_hits() {
+        for (int i = m_hit_count / 2 - 1; i >= 0; i--) {
+            sift_down(i, m_hit_count);
+        }
+        for (int end = m_hit_count - 1; end > 0; end--) {
+            swap_hits(0, end);
+            sift_down(0, end);
+        }
+        int unique = 0;
+        for (int hit = 0; hit < m_hit_count; hit++) {
+            if (unique == 0 || compare_hits(unique - 1, hit) != 0) {
+                if (unique != hit) {
+                    System.arraycopy(m_hits, hit * HIT_STRIDE, m_hits, unique * HIT_STRIDE, HIT_STRIDE);
+                }
+                unique++;
+            }
+        }
+        m_hit_count = unique;
+    }
+
+    private void sift_down(int root, int end) {
+        int child;
+        while ((child = 2 * root + 1) < end) {
+            if (child + 1 < end && compare_hits(child, child + 1) < 0) {
+                child++;
+            }
+            if (compare_hits(root, child) >= 0) {
+                return;
+            }
+            swap_hits(root, child);
+            root = child;
+        }
+    }
+
+    private int compare_hits(int a, int b) {
+        int protein = Integer.compare(m_hits[a * HIT_STRIDE], m_hits[b * HIT_STRIDE]);
+        return (protein != 0) ? protein : Integer.compare(m_hits[a * HIT_STRIDE + 1], m_hits[b * HIT_STRIDE + 1]);
+    }
+
+    private void swap_hits(int a, int b) {
+        for (int i = 0; i < HIT_STRIDE; i++) {
+            int tmp = m_hits[a * HIT_STRIDE + i];
+            m_hits[a * HIT_STRIDE + i] = m_hits[b * HIT_STRIDE + i];
+            m_hits[b * HIT_STRIDE + i] = tmp;
+        }
+    }
+
+    /**
+     * Inserts all hits into a gene id map, in the order they were found.
+     * @param geneIdMap gene id -> transcript id -> positions
+     * @param store proteins the hits refer to
+     */
+    public void collect(Map<String, TranscriptsT> geneIdMap, ProteomeStore store) {
+        for (int hit = 0; hit < m_hit_count; hit++) {
+            int i = hit * HIT_STRIDE;
+            ProteinEntry protein = store.protein(m_hits[i]);
+            geneIdMap.computeIfAbsent(protein.get_gene_id(), k -> new TranscriptsT())
+                    .getM_entries().computeIfAbsent(protein.get_transcript_id(), j -> new ArrayList<>())
+                    .add(new PositionMismatchT(m_hits[i + 1], m_hit_mismatches, m_hits[i + 2], m_hits[i + 3]));
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package org.bigbio.pgatk.pepgenome.kmer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This code is licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * ==Overview==
+ *
+ * Run report of the search planner: per {@link SearchStrategy} the number of peptides it was chosen for, their
+ * estimated and actual cost and the time spent. Costs are work units of the planner, one verified candidate
+ * being one unit (see KmerIntMap::plan), so a strategy whose actual cost is far from its estimate, or whose time
+ * per unit differs from the others, points at a cost constant to tune.
+ *
+ * The report of a run is shared by all maps and threads, see {@link #get()}. Only the int engine records its
+ * searches (KmerIntMap, also behind KmerMultiMap and the index file); the tree, suffix array, MapDB and batch
+ * maps do not plan their searches and leave the report empty.
+ */
+public final class SearchReport {
+
+    private static final SearchStrategy[] STRATEGIES = SearchStrategy.values();
+
+    private static final SearchReport RUN = new SearchReport();
+
+    private final LongAdder[] m_peptides = new LongAdder[STRATEGIES.length];
+    private final DoubleAdder[] m_estimated = new DoubleAdder[STRATEGIES.length];
+    private final DoubleAdder[] m_actual = new DoubleAdder[STRATEGIES.length];
+    private final LongAdder[] m_nanos = new LongAdder[STRATEGIES.length];
+
+    private SearchReport() {
+        for (int i = 0; i < STRATEGIES.length; i++) {
+            m_peptides[i] = new LongAdder();
+            m_estimated[i] = new DoubleAdder();
+            m_actual[i] = new DoubleAdder();
+            m_nanos[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Returns the report of the run.
+     * @return report, shared by all lookups
+     */
+    public static SearchReport get() {
+        return RUN;
+    }
+
+    /**
+     * Records a searched peptide.
+     * @param strategy strategy the peptide was searched with
+     * @param estimated cost estimated by the planner
+     * @param actual work done by the search, in the units of the estimate
+     * @param nanos time of the search
+     */
+    public void record(SearchStrategy strategy, double estimated, double actual, long nanos) {
+        int i = strategy.ordinal();
+        m_peptides[i].increment();
+        m_estimated[i].add(estimated);
+        m_actual[i].add(actual);
+        m_nanos[i].add(nanos);
+    }
+
+    public long peptides(SearchStrategy strategy) {
+        return m_peptides[strategy.ordinal()].sum();
+    }
+
+    public double estimated_cost(SearchStrategy strategy) {
+        return m_estimated[strategy.ordinal()].sum();
+    }
+
+    public double actual_cost(SearchStrategy strategy) {
+        return m_actual[strategy.ordinal()].sum();
+    }
+
+    public long nanos(SearchStrategy strategy) {
+        return m_nanos[strategy.ordinal()].sum();
+    }
+
+    //true if no peptide was recorded since the last reset.
+    public boolean is_empty() {
+        for (LongAdder peptides : m_peptides) {
+            if (peptides.sum() > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //forgets all recorded peptides, e.g. after the report of an input file was written.
+    public void reset() {
+        for (int i = 0; i < STRATEGIES.length; i++) {
+            m_peptides[i].reset();
+            m_estimated[i].reset();
+            m_actual[i].reset();
+            m_nanos[i].reset();
+        }
+    }
+
+    /**
+     * One line per strategy that was used: peptides, average estimated and actual cost and time per peptide.
+     * @return lines of the report
+     */
+    public List<String> lines() {
+        List<String> lines = new ArrayList<>();
+        for (SearchStrategy strategy : STRATEGIES) {
+            long peptides = peptides(strategy);
+            if (peptides == 0) {
+                continue;
+            }
+            lines.add(String.format(Locale.ROOT, "%-22s %9d peptides, cost estimated %10.1f actual %10.1f, %8.2f us per peptide",
+                    strategy, peptides, estimated_cost(strategy) / peptides, actual_cost(strategy) / peptides,
+                    nanos(strategy) / 1000.0 / peptides));
+        }
+        return lines;
+    }
+}
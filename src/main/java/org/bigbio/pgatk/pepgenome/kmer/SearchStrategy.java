@@ -0,0 +1,45 @@
+package org.bigbio.pgatk.pepgenome.kmer;
+
+/**
+ * This code is licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * ==Overview==
+ *
+ * Ways the int kmer map can search a peptide. Every peptide is searched with the strategy of the lowest
+ * expected cost among the ones that can find all of its matches (see KmerIntMap::plan), the decisions are
+ * counted in the {@link SearchReport}. In a batch lookup peptides with a common prefix can be searched together
+ * instead (see KmerIntMap::find_peptides).
+ */
+public enum SearchStrategy {
+    //exact matching: the postings of the rarest kmer window are verified.
+    RAREST_SEED("rarest seed"),
+    //exact matching: the postings of several non overlapping windows are intersected, the full match is verified.
+    EXACT("exact full match"),
+    //exact matching of a batch: the postings of the rarest kmer of the common prefix of several peptides are verified once for all.
+    SHARED_PREFIX("shared prefix seed"),
+    //mismatches: allowed_mismatches + 1 non overlapping kmer seeds, one of them matches exactly.
+    SEEDS("pigeonhole seeds"),
+    //mismatches: allowed_mismatches + 1 seeds of a short seed map (3 or 2 residues), for peptides too short for kmer seeds.
+    SHORT_SEEDS("short pigeonhole seeds"),
+    //mismatches: every key within the allowed mismatches of the first kmer.
+    NEIGHBOURS("neighbour keys"),
+    //peptide filter mode: the proteins of the target transcripts are scanned without the index.
+    SCAN("target scan"),
+    //mismatches: every start of every protein is verified, for peptides too short for seeds of 2 residues.
+    PROTEOME_SCAN("proteome scan");
+
+    private final String m_name;
+
+    SearchStrategy(String name) {
+        this.m_name = name;
+    }
+
+    @Override
+    public String toString() {
+        return m_name;
+    }
+}
@@ -0,0 +1,105 @@
+package org.bigbio.pgatk.pepgenome.kmer;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * This code is licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * ==Overview==
+ *
+ * Chooses the seeds of a peptide: the given number of non overlapping kmer windows with the fewest postings
+ * in total. With n allowed mismatches n + 1 non overlapping windows always contain one that matches exactly,
+ * wherever they are, so the rarest windows can be used instead of the fixed partition 0, k, 2k, ...
+ * For exact matching a single seed is the rarest window.
+ *
+ * Dynamic program over the windows, cost[j][i] being the fewest postings of j seeds among the first i windows.
+ * Ties are broken towards earlier windows, equal counts give the fixed partition. The buffers are reused.
+ */
+public final class SeedPlanner implements Serializable {
+
+    private static final long serialVersionUID = -3619265442404497383L;
+
+    private static final long NONE = Long.MAX_VALUE;
+
+    //postings of the window starting at residue i, filled by the caller.
+    private int[] m_counts = new int[64];
+
+    private long[] m_cost = new long[256];
+    private boolean[] m_take = new boolean[256];
+
+    //starts of the chosen seeds, ascending.
+    private int[] m_starts = new int[4];
+
+    //postings of the chosen seeds.
+    private long m_total = 0;
+
+    /**
+     * Returns the buffer for the window counts.
+     * @param windows number of windows (peptide length - kmer length + 1)
+     * @return buffer of at least windows entries
+     */
+    public int[] counts(int windows) {
+        if (m_counts.length < windows) {
+            m_counts = new int[Math.max(windows, 2 * m_counts.length)];
+        }
+        return m_counts;
+    }
+
+    /**
+     * Chooses the seeds, the window counts have to be filled before.
+     * @param windows number of windows
+     * @param kmerLength length of the windows
+     * @param seeds number of seeds, (seeds - 1) * kmerLength + 1 may not exceed windows
+     */
+    public void plan(int windows, int kmerLength, int seeds) {
+        int width = windows + 1;
+        int size = (seeds + 1) * width;
+        if (m_cost.length < size) {
+            m_cost = new long[Math.max(size, 2 * m_cost.length)];
+            m_take = new boolean[m_cost.length];
+        }
+        if (m_starts.length < seeds) {
+            m_starts = new int[seeds];
+        }
+        Arrays.fill(m_cost, 0, width, 0);
+        for (int j = 1; j <= seeds; j++) {
+            int row = j * width;
+            m_cost[row] = NONE;
+            m_take[row] = false;
+            for (int i = 1; i <= windows; i++) {
+                //window i - 1 as the last seed, the previous seeds end before it starts.
+                int before = i - kmerLength;
+                long previous = (before >= 0) ? m_cost[row - width + before] : ((j == 1) ? 0 : NONE);
+                long take = (previous == NONE) ? NONE : previous + m_counts[i - 1];
+                long skip = m_cost[row + i - 1];
+                m_take[row + i] = take < skip;
+                m_cost[row + i] = Math.min(take, skip);
+            }
+        }
+        m_total = m_cost[seeds * width + windows];
+        int i = windows;
+        for (int j = seeds; j > 0; ) {
+            if (m_take[j * width + i]) {
+                m_starts[--j] = i - 1;
+                i = Math.max(i - kmerLength, 0);
+            } else {
+                i--;
+            }
+        }
+    }
+
+    //total postings of the seeds of the last plan.
+    public long total() {
+        return m_total;
+    }
+
+    //start of a seed in the peptide, the seeds are ascending.
+    public int start(int seed) {
+        return m_starts[seed];
+    }
+}
@@ -0,0 +1,200 @@
+package org.bigbio.pgatk.pepgenome.kmer;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * This code is licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * ==Overview==
+ *
+ * Suffix array over a byte text. The array is built by prefix doubling with counting sorts, so the
+ * construction needs four int arrays of the text length and O(n log n) time. The occurrences of any
+ * pattern are a contiguous range of the array and are found by binary search, comparisons skip the
+ * prefix already shared with both borders of the search interval.
+ */
+public class SuffixArray implements Serializable {
+
+    private static final long serialVersionUID = -1712063519564873404L;
+
+    //largest byte value of the text + 1.
+    private static final int ALPHABET = 128;
+
+    private final byte[] m_text;
+
+    //start of the suffixes in lexicographic order.
+    private final int[] m_suffixes;
+
+    public SuffixArray(byte[] text) {
+        this.m_text = text;
+        this.m_suffixes = build(text);
+    }
+
+    /**
+     * Converts a character to the byte stored in the text. Characters above the alphabet share its
+     * last value.
+     * @param c character
+     * @return byte value
+     */
+    public static byte to_byte(char c) {
+        return (byte) ((c < ALPHABET) ? c : ALPHABET - 1);
+    }
+
+    private static int[] build(byte[] text) {
+        int n = text.length;
+        int[] sa = new int[n];
+        if (n == 0) {
+            return sa;
+        }
+        int[] rank = new int[n];
+        int[] tmp = new int[n];
+        int[] counts = new int[Math.max(n, ALPHABET) + 1];
+
+        //ranks of the first character, suffixes sorted by it.
+        for (int i = 0; i < n; i++) {
+            rank[i] = text[i];
+            counts[rank[i] + 1]++;
+        }
+        for (int i = 1; i <= ALPHABET; i++) {
+            counts[i] += counts[i - 1];
+        }
+        for (int i = 0; i < n; i++) {
+            sa[counts[rank[i]]++] = i;
+        }
+        int classes = rerank(sa, rank, tmp, 0, n);
+        int[] swap = rank;
+        rank = tmp;
+        tmp = swap;
+
+        //sorted by the first h characters -> sorted by the first 2h characters.
+        for (int h = 1; classes < n; h <<= 1) {
+            //order by the second half: suffixes without one first, then in the order of their second half.
+            int p = 0;
+            for (int i = n - h; i < n; i++) {
+                tmp[p++] = i;
+            }
+            for (int j = 0; j < n; j++) {
+                if (sa[j] >= h) {
+                    tmp[p++] = sa[j] - h;
+                }
+            }
+            //stable counting sort by the first half.
+            Arrays.fill(counts, 0, classes + 1, 0);
+            for (int i = 0; i < n; i++) {
+                counts[rank[i]]++;
+            }
+            for (int i = 1; i < classes; i++) {
+                counts[i] += counts[i - 1];
+            }
+            for (int j = n - 1; j >= 0; j--) {
+                sa[--counts[rank[tmp[j]]]] = tmp[j];
+            }
+            classes = rerank(sa, rank, tmp, h, n);
+            swap = rank;
+            rank = tmp;
+            tmp = swap;
+        }
+        return sa;
+    }
+
+    //writes the new ranks of the sorted suffixes to next and returns the number of distinct ranks.
+    private static int rerank(int[] sa, int[] rank, int[] next, int h, int n) {
+        next[sa[0]] = 0;
+        int classes = 1;
+        for (int j = 1; j < n; j++) {
+            int a = sa[j - 1];
+            int b = sa[j];
+            boolean same = rank[a] == rank[b];
+            if (same && h > 0) {
+                int ra = (a + h < n) ? rank[a + h] : -1;
+                int rb = (b + h < n) ? rank[b + h] : -1;
+                same = ra == rb;
+            }
+            if (!same) {
+                classes++;
+            }
+            next[b] = classes - 1;
+        }
+        return classes;
+    }
+
+    public final int length() {
+        return m_text.length;
+    }
+
+    public final byte[] text() {
+        return m_text;
+    }
+
+    //start of the suffix of rank index.
+    public final int suffix(int index) {
+        return m_suffixes[index];
+    }
+
+    /**
+     * Returns the first suffix index whose suffix starts with the pattern, or that is larger than the pattern.
+     * @param pattern pattern
+     * @return first index of the pattern range
+     */
+    public final int lower_bound(CharSequence pattern) {
+        return bound(pattern, false);
+    }
+
+    /**
+     * Returns the first suffix index whose suffix is larger than the pattern and does not start with it.
+     * @param pattern pattern
+     * @return one past the last index of the pattern range
+     */
+    public final int upper_bound(CharSequence pattern) {
+        return bound(pattern, true);
+    }
+
+    /**
+     * Returns the number of occurrences of the pattern in the text.
+     * @param pattern pattern
+     * @return number of occurrences
+     */
+    public final int count(CharSequence pattern) {
+        return upper_bound(pattern) - lower_bound(pattern);
+    }
+
+    private int bound(CharSequence pattern, boolean upper) {
+        int lo = 0;
+        int hi = m_suffixes.length;
+        //characters of the pattern shared with the suffixes just below lo and at hi.
+        int lcp_lo = 0;
+        int lcp_hi = 0;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int matched = Math.min(lcp_lo, lcp_hi);
+            int cmp = 0;
+            int pos = m_suffixes[mid] + matched;
+            while (matched < pattern.length()) {
+                if (pos >= m_text.length) {
+                    //suffix is a proper prefix of the pattern and therefore smaller.
+                    cmp = 1;
+                    break;
+                }
+                cmp = to_byte(pattern.charAt(matched)) - m_text[pos];
+                if (cmp != 0) {
+                    break;
+                }
+                matched++;
+                pos++;
+            }
+            //pattern compared to the suffix: a suffix starting with the pattern counts as equal.
+            if (cmp > 0 || (cmp == 0 && upper)) {
+                lo = mid + 1;
+                lcp_lo = matched;
+            } else {
+                hi = mid;
+                lcp_hi = matched;
+            }
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,173 @@
+package org.bigbio.pgatk.pepgenome.kmer.inmemory;
+
+import org.bigbio.pgatk.pepgenome.common.PositionMismatchT;
+import org.bigbio.pgatk.pepgenome.common.ProteinEntry;
+import org.bigbio.pgatk.pepgenome.common.TranscriptsT;
+import org.bigbio.pgatk.pepgenome.common.constants.GenomeMapper;
+import org.bigbio.pgatk.pepgenome.kmer.AhoCorasick;
+import org.bigbio.pgatk.pepgenome.kmer.IKmerMap;
+import org.bigbio.pgatk.pepgenome.kmer.KmerPostings;
+import org.bigbio.pgatk.pepgenome.kmer.PeptideMatches;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This code is licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * ==Overview==
+ *
+ * Batch mode: the peptides of an input file are known before the first lookup, so instead of digesting the
+ * proteins into kmers an {@link AhoCorasick} automaton is built over the distinct peptides and every added
+ * protein is scanned once. The occurrences are stored as {@link KmerPostings} with one slot per peptide.
+ *
+ * Only exact matches are precomputed. Lookups with mismatches, in peptide filter mode or of peptides that
+ * were not part of the batch are passed to the kmer map given on construction. Results are reported in the
+ * same order as the kmer maps (by protein, then by position).
+ */
+public class KmerBatchMap implements IKmerMap, Serializable {
+
+    private static final long serialVersionUID = -8904713529186232545L;
+
+    //answers everything that was not precomputed.
+    private final IKmerMap m_fallback;
+
+    //peptide -> slot of its occurrences in m_postings.
+    private final Map<String, Integer> m_peptides = new HashMap<>();
+
+    private final AhoCorasick m_automaton;
+
+    //all added proteins, scanned when the postings are built.
+    private ArrayList<ProteinEntry> m_proteins = new ArrayList<>();
+
+    //occurrences of every peptide, null until the proteins are scanned.
+    private volatile KmerPostings m_postings;
+
+    /**
+     * @param peptides iso sequences of the peptides to precompute, peptides shorter than a kmer are left to the fallback
+     * @param fallback kmer map of the same proteins
+     */
+    public KmerBatchMap(Collection<String> peptides, IKmerMap fallback) {
+        this.m_fallback = fallback;
+        ArrayList<String> patterns = new ArrayList<>();
+        for (String peptide : peptides) {
+            if (peptide.length() >= GenomeMapper.PEPTIDE_MAPPER.KMER_LENGTH && !m_peptides.containsKey(peptide)) {
+                m_peptides.put(peptide, patterns.size());
+                patterns.add(peptide);
+            }
+        }
+        this.m_automaton = new AhoCorasick(patterns);
+    }
+
+    //adds a protein to scan. the fallback map is expected to hold the same proteins already.
+    public void add_protein(ProteinEntry protein) {
+        m_proteins.add(protein);
+        m_postings = null;
+    }
+
+    /**
+     * Scans all added proteins for the peptides. Called on first use, calling it again
+     * is only needed after proteins have been added.
+     */
+    public synchronized void build_index() {
+        m_postings = KmerPostings.build(m_proteins, m_automaton.pattern_count(), new Scanner(m_automaton, m_proteins.size()));
+    }
+
+    //scans every protein once and records the occurrences, so the second pass of the postings only replays them.
+    private static class Scanner implements KmerPostings.Digester {
+        private final AhoCorasick m_automaton;
+
+        //occurrences of protein i are the entries m_offsets[i] to m_offsets[i + 1] - 1.
+        private final int[] m_offsets;
+        private int[] m_pattern = new int[1024];
+        private int[] m_start = new int[1024];
+        private int m_count = 0;
+        private int m_scanned = 0;
+
+        Scanner(AhoCorasick automaton, int proteinCount) {
+            this.m_automaton = automaton;
+            this.m_offsets = new int[proteinCount + 1];
+        }
+
+        @Override
+        public void digest(ProteinEntry protein, int proteinIndex, KmerPostings.Visitor visitor) {
+            if (proteinIndex == m_scanned) {
+                m_automaton.scan(protein.get_sequence(), this::record);
+                m_offsets[++m_scanned] = m_count;
+            }
+            for (int i = m_offsets[proteinIndex]; i < m_offsets[proteinIndex + 1]; i++) {
+                visitor.visit(m_pattern[i], proteinIndex, m_start[i]);
+            }
+        }
+
+        private void record(int pattern, int start) {
+            if (m_count == m_pattern.length) {
+                m_pattern = Arrays.copyOf(m_pattern, m_count * 2);
+                m_start = Arrays.copyOf(m_start, m_count * 2);
+            }
+            m_pattern[m_count] = pattern;
+            m_start[m_count] = start;
+            m_count++;
+        }
+    }
+
+    //the scanner is not thread safe, lookups of other threads wait for the scan instead of starting their own one.
+    private KmerPostings postings() {
+        KmerPostings postings = m_postings;
+        if (postings == null) {
+            synchronized (this) {
+                if (m_postings == null) {
+                    build_index();
+                }
+                postings = m_postings;
+            }
+        }
+        return postings;
+    }
+
+    //searches for all matches, precomputed ones are only used if no mismatches are allowed.
+    public final PeptideMatches find_peptide(String peptide_string) {
+        Integer slot = (GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES == 0) ? m_peptides.get(peptide_string) : null;
+        if (slot == null) {
+            return m_fallback.find_peptide(peptide_string);
+        }
+
+        Map<String, TranscriptsT> gene_id_map = new TreeMap<>();
+        KmerPostings postings = postings();
+        for (int posting = postings.start(slot); posting < postings.end(slot); posting++) {
+            insert_into_gene_id_map(gene_id_map, postings.protein(posting), postings.position(posting));
+        }
+        return new PeptideMatches(gene_id_map);
+    }
+
+    //peptide filter mode is not precomputed.
+    public final PeptideMatches find_peptide(String peptide_string, String targetTranscriptID, int allowedMismatches) {
+        return m_fallback.find_peptide(peptide_string, targetTranscriptID, allowedMismatches);
+    }
+
+    //inserts a found peptide into the gene id map of a lookup. only exact matches are precomputed.
+    private static void insert_into_gene_id_map(Map<String, TranscriptsT> geneIdMap, ProteinEntry protein, int pos_in_protein) {
+        geneIdMap.computeIfAbsent(protein.get_gene_id(), k -> new TranscriptsT())
+                .getM_entries().computeIfAbsent(protein.get_transcript_id(), j -> new ArrayList<>())
+                .add(new PositionMismatchT(pos_in_protein, -1, -1));
+    }
+
+    // returns true if a kmer (key) is in the digested proteins
+    public final boolean contains(String key) {
+        return m_fallback.contains(key);
+    }
+
+    //returns the number of kmers of the fallback map
+    public final int size() {
+        return m_fallback.size();
+    }
+}
@@ -0,0 +1,679 @@
+package org.bigbio.pgatk.pepgenome.kmer.inmemory;
+
+import org.bigbio.pgatk.pepgenome.PossibleKeyGenerator;
+import org.bigbio.pgatk.pepgenome.common.ProteinEntry;
+import org.bigbio.pgatk.pepgenome.common.constants.GenomeMapper;
+import org.bigbio.pgatk.pepgenome.kmer.IKmerMap;
+import org.bigbio.pgatk.pepgenome.kmer.KmerCounts;
+import org.bigbio.pgatk.pepgenome.kmer.KmerEncoder;
+import org.bigbio.pgatk.pepgenome.kmer.KmerPostings;
+import org.bigbio.pgatk.pepgenome.kmer.KmerPresence;
+import org.bigbio.pgatk.pepgenome.kmer.PeptideMatches;
+import org.bigbio.pgatk.pepgenome.kmer.ProteomeStore;
+import org.bigbio.pgatk.pepgenome.kmer.QueryContext;
+import org.bigbio.pgatk.pepgenome.kmer.SearchReport;
+import org.bigbio.pgatk.pepgenome.kmer.SearchStrategy;
+import org.bigbio.pgatk.pepgenome.kmer.SeedPlanner;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * This code is licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * ==Overview==
+ *
+ * Kmer map that encodes every kmer as an int (see {@link KmerEncoder}) and uses the code directly as
+ * slot of the {@link KmerPostings}, so neither the keys nor the postings are objects and a lookup is a
+ * single array access. The added proteins are collected and the postings are built on first use.
+ *
+ * Every peptide is searched with the cheapest {@link SearchStrategy} that finds all of its matches, estimated
+ * from the posting lists of its windows (see {@link #plan(String, String, int, QueryContext)}). The decisions
+ * with their estimated and actual cost are recorded in the {@link SearchReport}.
+ *
+ * Lookups only read the postings, every lookup keeps its buffers in the {@link QueryContext} of its thread and
+ * returns matches of its own. The lazily built parts of the index are published once they are complete, so the
+ * map can be queried from several threads.
+ */
+public class KmerIntMap implements IKmerMap, KmerCounts, Serializable {
+
+    private static final long serialVersionUID = -3482264135770823411L;
+
+    //exact matching of peptides with room for several seeds intersects the posting lists of at most this many.
+    public static final int MAX_INTERSECTED_SEEDS = 3;
+
+    //lengths of the seeds of the short seed maps, see SearchStrategy.SHORT_SEEDS. the longest one the peptide
+    //can be split into is used, shorter peptides are scanned (see SearchStrategy.PROTEOME_SCAN).
+    public static final int SHORT_SEED_LENGTH = 3;
+    public static final int MIN_SHORT_SEED_LENGTH = 2;
+
+    //planning: neighbour keys are counted in the postings if there are at most this many, else estimated by the
+    //average posting list.
+    public static final int COUNTED_NEIGHBOUR_KEYS = 256;
+
+    //cost of a key lookup, counted in verified candidates.
+    private static final double KEY_COST = 1.0;
+
+    //cost of a seek in the posting list of another seed of the exact full match, counted in verified candidates.
+    private static final double SEEK_COST = 0.5;
+
+    //cost of a scanned start of a target protein per probe (allowed mismatches + 1), counted in verified candidates.
+    private static final double SCAN_COST = 0.06;
+
+    //weight of the expected cost of the short seed map: its candidates come from a few long lists and go
+    //through the candidate set, they are slower to verify than the ones of the neighbour keys.
+    private static final double SHORT_SEED_COST_FACTOR = 2.0;
+
+    //length of the kmers, fixed when the map is created.
+    private final int m_kmer_length;
+
+    //all added proteins, the postings refer to them by index.
+    private ArrayList<ProteinEntry> m_proteins = new ArrayList<>();
+
+    //kmer code -> postings, null until the proteins are indexed.
+    private volatile KmerPostings m_postings;
+
+    //codes with postings, null until the postings are indexed.
+    private volatile KmerPresence m_presence;
+
+    //seed length -> map of the seeds of the same proteins, an entry is null until a short peptide needs it.
+    //the array is replaced, not modified, when a map is added.
+    private volatile KmerIntMap[] m_short_seeds = new KmerIntMap[SHORT_SEED_LENGTH + 1];
+
+    private ProteinMatcher proteinMatcher;
+
+    public KmerIntMap() {
+        this(GenomeMapper.PEPTIDE_MAPPER.KMER_LENGTH);
+    }
+
+    public KmerIntMap(int kmerLength) {
+        this.m_kmer_length = kmerLength;
+        //fails early if the table for this kmer length can not be addressed.
+        KmerEncoder.table_size(kmerLength);
+
+        if ((GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES > 1) && GenomeMapper.PEPTIDE_MAPPER.ONE_IN_FIVE_MODE) {
+            proteinMatcher = new MatcherOneInFiveMode();
+        } else {
+            proteinMatcher = new MatcherNormal();
+        }
+    }
+
+    /**
+     * Creates the map from postings that were built before (see {@link org.bigbio.pgatk.pepgenome.io.KmerIndexFile}).
+     * @param kmerLength length of the kmers the postings were built with
+     * @param postings postings, the proteins of the map are the proteins of the postings
+     */
+    public KmerIntMap(int kmerLength, KmerPostings postings) {
+        this(kmerLength);
+        this.m_proteins = new ArrayList<>(Arrays.asList(postings.proteins()));
+        this.m_postings = postings;
+    }
+
+    //adds a protein to the map. the proteins are digested when the postings are built.
+    public void add_protein(ProteinEntry protein) {
+        m_proteins.add(protein);
+        m_postings = null;
+        m_presence = null;
+        m_short_seeds = new KmerIntMap[SHORT_SEED_LENGTH + 1];
+    }
+
+    /**
+     * Digests all added proteins and builds the postings, in parallel on the common fork join pool (the digester
+     * only encodes the kmers of a protein). Called on first use, calling it again is only needed after proteins
+     * have been added.
+     */
+    public synchronized void build_index() {
+        KmerPostings postings = KmerPostings.build(m_proteins, KmerEncoder.table_size(m_kmer_length), this::digest, ForkJoinPool.commonPool());
+        m_presence = null;
+        m_short_seeds = new KmerIntMap[SHORT_SEED_LENGTH + 1];
+        //published last: a lookup that sees the postings does not see the presence of the previous build.
+        m_postings = postings;
+    }
+
+    //calls the visitor with the code of every kmer in the protein.
+    private void digest(ProteinEntry protein, int proteinIndex, KmerPostings.Visitor visitor) {
+        KmerEncoder.digest(protein, proteinIndex, m_kmer_length, visitor);
+    }
+
+    public final int get_kmer_length() {
+        return m_kmer_length;
+    }
+
+    //returns the postings, they are built if proteins were added since the last build. lookups of other
+    //threads wait for the build instead of starting their own one.
+    public final KmerPostings postings() {
+        KmerPostings postings = m_postings;
+        if (postings == null) {
+            synchronized (this) {
+                if (m_postings == null) {
+                    build_index();
+                }
+                postings = m_postings;
+            }
+        }
+        return postings;
+    }
+
+    //returns the codes that have postings. threads racing for it compute the same set, any of them is kept.
+    public final KmerPresence presence() {
+        KmerPresence presence = m_presence;
+        if (presence == null) {
+            presence = KmerPresence.of(postings(), m_kmer_length);
+            m_presence = presence;
+        }
+        return presence;
+    }
+
+    //returns the map of the short seeds of a length, it is built on first use.
+    private KmerIntMap short_seeds(int seedLength) {
+        KmerIntMap short_seeds = m_short_seeds[seedLength];
+        if (short_seeds == null) {
+            synchronized (this) {
+                if (m_short_seeds[seedLength] == null) {
+                    KmerIntMap map = new KmerIntMap(seedLength);
+                    for (ProteinEntry protein : m_proteins) {
+                        map.add_protein(protein);
+                    }
+                    map.build_index();
+                    KmerIntMap[] maps = m_short_seeds.clone();
+                    maps[seedLength] = map;
+                    m_short_seeds = maps;
+                }
+                short_seeds = m_short_seeds[seedLength];
+            }
+        }
+        return short_seeds;
+    }
+
+    /**
+     * Length of the short seeds a peptide is split into: the longest one, shorter than the kmers, of which
+     * allowedMismatches + 1 fit into the peptide.
+     * @param peptideLength length of the peptide
+     * @param allowedMismatches allowed mismatches
+     * @return seed length, 0 if the peptide is too short for seeds of MIN_SHORT_SEED_LENGTH residues
+     */
+    private int short_seed_length(int peptideLength, int allowedMismatches) {
+        int seed_length = Math.min(Math.min(SHORT_SEED_LENGTH, m_kmer_length - 1), peptideLength / (allowedMismatches + 1));
+        return (seed_length >= MIN_SHORT_SEED_LENGTH) ? seed_length : 0;
+    }
+
+    /**
+     * Expected work of a lookup with the cheapest strategy, see {@link #plan(String, String, int, QueryContext)}.
+     * @param peptide_string peptide
+     * @param targetTranscriptID transcripts of the peptide filter mode, null for all
+     * @param allowedMismatches allowed mismatches
+     * @param context provides the seed planner
+     * @return expected cost, Double.MAX_VALUE if the peptide can not be searched
+     */
+    public final double expected_cost(String peptide_string, String targetTranscriptID, int allowedMismatches, QueryContext context) {
+        return (plan(peptide_string, targetTranscriptID, allowedMismatches, context) != null) ? context.estimated_cost() : Double.MAX_VALUE;
+    }
+
+    /**
+     * Cost based planner: estimates every strategy that finds all matches of the peptide and sets the cheapest
+     * one as the plan of the context. Costs are counted in verified candidates, a key lookup costs KEY_COST,
+     * a seek in a posting list SEEK_COST and a scanned start of a protein SCAN_COST per probe. Every peptide
+     * of at least a kmer is searched with the full budget: peptides too short for the seeds of the kmers or
+     * the short seeds are scanned in all proteins.
+     * @param peptide_string peptide
+     * @param targetTranscriptID transcripts of the peptide filter mode, null for all
+     * @param allowedMismatches allowed mismatches
+     * @param context receives the plan
+     * @return chosen strategy, null if the peptide is shorter than a kmer
+     */
+    public final SearchStrategy plan(String peptide_string, String targetTranscriptID, int allowedMismatches, QueryContext context) {
+        SearchStrategy best = null;
+        double best_cost = Double.MAX_VALUE;
+        if (peptide_string.length() >= m_kmer_length) {
+            for (SearchStrategy strategy : SearchStrategy.values()) {
+                double cost = estimate(strategy, peptide_string, targetTranscriptID, allowedMismatches, context);
+                if (cost < best_cost) {
+                    best = strategy;
+                    best_cost = cost;
+                }
+            }
+        }
+        context.set_plan(best, best_cost);
+        return best;
+    }
+
+    //expected cost of a strategy, Double.MAX_VALUE if it can not find all matches of the peptide.
+    private double estimate(SearchStrategy strategy, String peptide_string, String targetTranscriptID, int allowedMismatches, QueryContext context) {
+        int peptide_length = peptide_string.length();
+        int seeds = allowedMismatches + 1;
+        SeedPlanner planner = context.planner();
+        switch (strategy) {
+            case RAREST_SEED:
+                if (allowedMismatches != 0) {
+                    return Double.MAX_VALUE;
+                }
+                PossibleKeyGenerator.plan_seeds(peptide_string, m_kmer_length, 1, this, planner);
+                return KEY_COST + planner.total();
+            case EXACT: {
+                if (allowedMismatches != 0 || peptide_length < 2 * m_kmer_length) {
+                    return Double.MAX_VALUE;
+                }
+                //the rarest list is walked, mostly one seek per posting rejects it, the peptide is verified once.
+                int exact_seeds = Math.min(peptide_length / m_kmer_length, MAX_INTERSECTED_SEEDS);
+                PossibleKeyGenerator.plan_seeds(peptide_string, m_kmer_length, exact_seeds, this, planner);
+                int rarest = Integer.MAX_VALUE;
+                for (int key = 0; key < exact_seeds; key++) {
+                    rarest = Math.min(rarest, count(KmerEncoder.encode(peptide_string, planner.start(key), m_kmer_length)));
+                }
+                return exact_seeds * KEY_COST + rarest * SEEK_COST + Math.min(rarest, 1);
+            }
+            case SEEDS:
+                if (allowedMismatches == 0 || peptide_length < seeds * m_kmer_length) {
+                    return Double.MAX_VALUE;
+                }
+                PossibleKeyGenerator.plan_seeds(peptide_string, m_kmer_length, seeds, this, planner);
+                return seeds * KEY_COST + planner.total();
+            case SHORT_SEEDS: {
+                //only for peptides too short for kmer seeds, the short seeds hold more candidates. with one in five
+                //matching the neighbour keys are kept.
+                int seed_length = short_seed_length(peptide_length, allowedMismatches);
+                if (allowedMismatches == 0 || seed_length == 0
+                        || peptide_length >= seeds * m_kmer_length
+                        || (GenomeMapper.PEPTIDE_MAPPER.ONE_IN_FIVE_MODE && PossibleKeyGenerator.has_neighbour_keys(allowedMismatches))) {
+                    return Double.MAX_VALUE;
+                }
+                return SHORT_SEED_COST_FACTOR * short_seeds(seed_length).estimate(SearchStrategy.SEEDS, peptide_string, null, allowedMismatches, context);
+            }
+            case NEIGHBOURS:
+                if (allowedMismatches == 0 || !PossibleKeyGenerator.has_neighbour_keys(allowedMismatches)) {
+                    return Double.MAX_VALUE;
+                }
+                int neighbour_keys = PossibleKeyGenerator.neighbour_key_count(m_kmer_length, allowedMismatches);
+                if (neighbour_keys <= COUNTED_NEIGHBOUR_KEYS) {
+                    //the neighbours of a peptide are mostly kmers of the proteome, far more common than the average one.
+                    context.clear_keys();
+                    PossibleKeyGenerator.generate_neighbour_codes(peptide_string, allowedMismatches, m_kmer_length, presence(), context);
+                    long candidates = 0;
+                    for (int key = 0; key < context.key_count(); key++) {
+                        candidates += count(context.key_code(key));
+                    }
+                    return context.key_count() * KEY_COST + candidates;
+                }
+                double average = (double) postings().posting_count() / KmerEncoder.table_size(m_kmer_length);
+                return neighbour_keys * (KEY_COST + average);
+            case SHARED_PREFIX:
+                //planned for a group of peptides, see find_peptides.
+                return Double.MAX_VALUE;
+            case SCAN:
+                if (targetTranscriptID == null) {
+                    return Double.MAX_VALUE;
+                }
+                context.target_proteins(targetTranscriptID, postings().store());
+                return context.target_residues() * SCAN_COST * seeds;
+            case PROTEOME_SCAN:
+                //the last resort of peptides too short for seeds, the target scan covers the filter mode.
+                if (targetTranscriptID != null) {
+                    return Double.MAX_VALUE;
+                }
+                return postings().store().residues().length * SCAN_COST * seeds;
+            default:
+                return Double.MAX_VALUE;
+        }
+    }
+
+    //work of the last lookup in the units of estimate.
+    private double work(SearchStrategy strategy, int allowedMismatches, QueryContext context) {
+        double work = KEY_COST * context.key_count() + context.verifications() + SEEK_COST * context.seeks()
+                + SCAN_COST * (allowedMismatches + 1) * context.scanned_residues();
+        return (strategy == SearchStrategy.SHORT_SEEDS) ? SHORT_SEED_COST_FACTOR * work : work;
+    }
+
+    //number of postings of a kmer code, the slots are the codes.
+    public final int count(int code) {
+        return postings().count(code);
+    }
+
+    //searches for all matches (imperfect matching, set via PEPTIDE_MAPPER).
+    public final PeptideMatches find_peptide(String peptide_string) {
+        return find_peptide(peptide_string, null, GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES, QueryContext.get());
+    }
+
+    //peptide filter mode: only the transcripts listed in targetTranscriptID ("all" for every transcript) are searched.
+    public final PeptideMatches find_peptide(String peptide_string, String targetTranscriptID, int allowedMismatches) {
+        String target = targetTranscriptID.contentEquals("all") ? null : targetTranscriptID;
+        return find_peptide(peptide_string, target, allowedMismatches, QueryContext.get());
+    }
+
+    private PeptideMatches find_peptide(String peptide_string, String targetTranscriptID, int allowedMismatches, QueryContext context) {
+        //the matches map a gene_id to all related transcript ids and all the peptides and their
+        //position in the protein sequence
+        search(peptide_string, targetTranscriptID, allowedMismatches, context);
+        return PeptideMatches.of(context, postings().store());
+    }
+
+    /**
+     * Batch lookup (imperfect matching, set via PEPTIDE_MAPPER). The peptides are sorted, so peptides that share
+     * their first kmer, e.g. missed cleavages of the same peptide, are neighbours. Without mismatches such a group
+     * is searched through the rarest kmer of its common prefix if that is cheaper than the plans of its peptides
+     * (see {@link SearchStrategy#SHARED_PREFIX}), all other peptides are searched one by one.
+     * @param peptides iso sequences of the peptides to search
+     * @return peptide -> its matches, for every distinct peptide
+     */
+    @Override
+    public Map<String, PeptideMatches> find_peptides(Collection<String> peptides) {
+        int allowedMismatches = GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES;
+        String[] sorted = new TreeSet<>(peptides).toArray(new String[0]);
+        Map<String, PeptideMatches> matches = new HashMap<>(2 * sorted.length);
+        QueryContext context = QueryContext.get();
+        int first = 0;
+        while (first < sorted.length) {
+            int end = first + 1;
+            if (allowedMismatches == 0 && sorted[first].length() >= m_kmer_length) {
+                while (end < sorted.length && sorted[end].regionMatches(0, sorted[first], 0, m_kmer_length)) {
+                    end++;
+                }
+            }
+            if (end - first == 1 || !search_shared_prefix(sorted, first, end, matches, context)) {
+                for (int i = first; i < end; i++) {
+                    search(sorted[i], null, allowedMismatches, context);
+                    matches.put(sorted[i], PeptideMatches.of(context, postings().store()));
+                }
+            }
+            first = end;
+        }
+        return matches;
+    }
+
+    /**
+     * Exact matching of sorted peptides sharing their first kmer: the posting list of the rarest kmer of their
+     * common prefix is walked once, the prefix is verified once per candidate and only the candidates that pass
+     * are compared with the rest of every peptide. Hits are found in the same order as by the single peptide search.
+     * @param sorted sorted peptides
+     * @param first first peptide of the group
+     * @param end one past the last peptide of the group
+     * @param matches receives the matches of the peptides of the group
+     * @param context buffers of the lookup
+     * @return false without searching if the planned searches of the single peptides are cheaper
+     */
+    private boolean search_shared_prefix(String[] sorted, int first, int end, Map<String, PeptideMatches> matches, QueryContext context) {
+        KmerPostings postings = postings();
+        ProteomeStore store = postings.store();
+        //the peptides are sorted, the prefix the first and the last one share is shared by all of them.
+        String shared = sorted[first];
+        int prefix = 0;
+        while (prefix < shared.length() && prefix < sorted[end - 1].length() && shared.charAt(prefix) == sorted[end - 1].charAt(prefix)) {
+            prefix++;
+        }
+        int slot = KmerEncoder.encode(shared, 0, m_kmer_length);
+        int offset = 0;
+        for (int start = 1; start + m_kmer_length <= prefix; start++) {
+            int code = KmerEncoder.encode(shared, start, m_kmer_length);
+            if (count(code) < count(slot)) {
+                slot = code;
+                offset = start;
+            }
+        }
+        int peptides = end - first;
+        int candidates = count(slot);
+        double shared_cost = KEY_COST + candidates;
+        double own_cost = 0;
+        for (int i = first; i < end && own_cost <= shared_cost; i++) {
+            own_cost += expected_cost(sorted[i], null, 0, context);
+        }
+        if (own_cost <= shared_cost) {
+            return false;
+        }
+
+        context.reset();
+        long started = System.nanoTime();
+        ByteBuffer packed = context.packed_peptide(shared);
+        //hits of the group: peptide, protein index and start.
+        int[] hits = new int[3 * 16];
+        int hit_count = 0;
+        for (int posting = postings.start(slot); posting < postings.end(slot); posting++) {
+            int protein_index = postings.protein_index(posting);
+            int start = postings.position(posting) - offset;
+            int length = store.length(protein_index) - start;
+            if (start < 0 || prefix > length) {
+                continue;
+            }
+            context.clear_mismatches();
+            if (!store.match(packed, protein_index, start, prefix, 0, context)) {
+                continue;
+            }
+            for (int i = 0; i < peptides; i++) {
+                if (matches_suffix(sorted[first + i], prefix, store, protein_index, start, length)) {
+                    if (3 * (hit_count + 1) > hits.length) {
+                        hits = Arrays.copyOf(hits, hits.length * 2);
+                    }
+                    hits[3 * hit_count] = i;
+                    hits[3 * hit_count + 1] = protein_index;
+                    hits[3 * hit_count + 2] = start;
+                    hit_count++;
+                }
+            }
+        }
+        //the group is reported as if every peptide had done its share of the work.
+        double work = KEY_COST + context.verifications();
+        long nanos = System.nanoTime() - started;
+        for (int i = 0; i < peptides; i++) {
+            SearchReport.get().record(SearchStrategy.SHARED_PREFIX, shared_cost / peptides, work / peptides, nanos / peptides);
+        }
+
+        for (int i = 0; i < peptides; i++) {
+            context.reset();
+            for (int hit = 0; hit < hit_count; hit++) {
+                if (hits[3 * hit] == i) {
+                    context.clear_mismatches();
+                    context.add_hit(hits[3 * hit + 1], hits[3 * hit + 2]);
+                }
+            }
+            matches.put(sorted[first + i], PeptideMatches.of(context, store));
+        }
+        return true;
+    }
+
+    //compares the residues of the peptide after the verified prefix with the protein.
+    private static boolean matches_suffix(String peptide, int prefix, ProteomeStore store, int proteinIndex, int start, int length) {
+        if (peptide.length() > length) {
+            return false;
+        }
+        for (int i = prefix; i < peptide.length(); i++) {
+            if (store.residue(proteinIndex, start + i) != ProteomeStore.to_byte(peptide.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Searches the peptide with the planned strategy and leaves the hits in the context instead of the gene id map.
+     * @param peptide_string peptide (iso sequence)
+     * @param targetTranscriptID only hits in the proteins of these transcripts are kept (see
+     *                           {@link ProteomeStore#transcript_proteins(String)}), null for all
+     * @param allowedMismatches allowed mismatches
+     * @param context receives the hits, it is reset first
+     */
+    public final void search(String peptide_string, String targetTranscriptID, int allowedMismatches, QueryContext context) {
+        SearchStrategy strategy = plan(peptide_string, targetTranscriptID, allowedMismatches, context);
+        context.reset();
+        if (strategy == null) {
+            return;
+        }
+        long started = System.nanoTime();
+        search(strategy, peptide_string, targetTranscriptID, allowedMismatches, context);
+        SearchReport.get().record(strategy, context.estimated_cost(), work(strategy, allowedMismatches, context), System.nanoTime() - started);
+    }
+
+    private void search(SearchStrategy strategy, String peptide_string, String targetTranscriptID, int allowedMismatches, QueryContext context) {
+        //keys, mismatches and hits are kept in the buffers of the context, nothing is allocated per candidate.
+        switch (strategy) {
+            case SCAN:
+                postings().store().search_transcripts(peptide_string, targetTranscriptID, allowedMismatches, context);
+                return;
+            case PROTEOME_SCAN:
+                postings().store().search_proteins(peptide_string, allowedMismatches, context);
+                return;
+            case SHORT_SEEDS:
+                //the short seed maps hold the same proteins in the same order, their hits refer to this map as well.
+                short_seeds(short_seed_length(peptide_string.length(), allowedMismatches)).search(SearchStrategy.SEEDS, peptide_string, null, allowedMismatches, context);
+                break;
+            case EXACT:
+                search_intersected(peptide_string, context);
+                break;
+            case RAREST_SEED:
+                PossibleKeyGenerator.generate_seed_codes(peptide_string, 1, m_kmer_length, presence(), this, context);
+                verify_keys(peptide_string, allowedMismatches, context);
+                break;
+            case SEEDS:
+                PossibleKeyGenerator.generate_seed_codes(peptide_string, allowedMismatches + 1, m_kmer_length, presence(), this, context);
+                verify_keys(peptide_string, allowedMismatches, context);
+                break;
+            case NEIGHBOURS:
+                PossibleKeyGenerator.generate_neighbour_codes(peptide_string, allowedMismatches, m_kmer_length, presence(), context);
+                verify_keys(peptide_string, allowedMismatches, context);
+                break;
+        }
+        if (targetTranscriptID != null) {
+            context.retain_hits(context.target_proteins(targetTranscriptID, postings().store()));
+        }
+    }
+
+    //verifies the postings of the keys of the context.
+    private void verify_keys(String peptide_string, int allowedMismatches, QueryContext context) {
+        KmerPostings postings = postings();
+        ProteomeStore store = postings.store();
+        int peptide_length = peptide_string.length();
+        //with several keys a candidate can be reached more than once, it is verified only the first time.
+        boolean dedup = context.key_count() > 1;
+        for (int key = 0; key < context.key_count(); key++) {
+            int slot = context.key_code(key);
+            //the peptide is matched backwards from the key by the start of the key in the peptide.
+            //see PossibleKeyGenerator::set_original_key
+            int offset = context.key_offset(key);
+            for (int posting = postings.start(slot); posting < postings.end(slot); posting++) {
+                int protein_index = postings.protein_index(posting);
+                int start = postings.position(posting) - offset;
+                if (dedup && !context.add_candidate(protein_index, start)) {
+                    continue;
+                }
+                context.clear_mismatches();
+                if (proteinMatcher.match(peptide_string, store, protein_index, start, context, peptide_length, allowedMismatches)) {
+                    context.add_hit(protein_index, start);
+                }
+            }
+        }
+    }
+
+    /**
+     * Exact matching of a long peptide: the rarest non overlapping seeds are aligned by their start in the
+     * peptide, a posting of the rarest seed is only verified if every other seed has a posting at the same
+     * peptide start (protein, position - offset). The other lists are galloped through (see
+     * {@link KmerPostings#seek(int, int, int, int)}), so the work hardly depends on how repetitive a seed is.
+     * Hits are found in the same order as by the single seed search.
+     * @param peptide_string peptide, at least two kmers long
+     * @param context receives the hits
+     */
+    private void search_intersected(String peptide_string, QueryContext context) {
+        KmerPostings postings = postings();
+        ProteomeStore store = postings.store();
+        int peptide_length = peptide_string.length();
+        int seeds = Math.min(peptide_length / m_kmer_length, MAX_INTERSECTED_SEEDS);
+        SeedPlanner planner = context.planner();
+        PossibleKeyGenerator.plan_seeds(peptide_string, m_kmer_length, seeds, this, planner);
+
+        int rarest = 0;
+        for (int key = 0; key < seeds; key++) {
+            int code = KmerEncoder.encode(peptide_string, planner.start(key), m_kmer_length);
+            context.add_key(code, planner.start(key));
+            context.set_key_cursor(key, postings.start(code));
+            if (postings.count(code) < postings.count(context.key_code(rarest))) {
+                rarest = key;
+            }
+        }
+        int slot = context.key_code(rarest);
+        int offset = context.key_offset(rarest);
+        candidates:
+        for (int posting = postings.start(slot); posting < postings.end(slot); posting++) {
+            int protein_index = postings.protein_index(posting);
+            int start = postings.position(posting) - offset;
+            for (int key = 0; key < seeds; key++) {
+                if (key == rarest) {
+                    continue;
+                }
+                int end = postings.end(context.key_code(key));
+                int position = start + context.key_offset(key);
+                int cursor = postings.seek(context.key_cursor(key), end, protein_index, position);
+                context.set_key_cursor(key, cursor);
+                context.count_seeks(1);
+                if (cursor == end) {
+                    //the other seed has no postings left, neither has the peptide.
+                    return;
+                }
+                if (postings.protein_index(cursor) != protein_index || postings.position(cursor) != position) {
+                    continue candidates;
+                }
+            }
+            context.clear_mismatches();
+            if (proteinMatcher.match(peptide_string, store, protein_index, start, context, peptide_length, 0)) {
+                context.add_hit(protein_index, start);
+            }
+        }
+    }
+
+    //returns the slot (code) of a key or -1 if the key can not be a kmer of this map.
+    private int slot(String key) {
+        if (key.length() != m_kmer_length) {
+            return -1;
+        }
+        return KmerEncoder.encode(key, 0, m_kmer_length);
+    }
+
+    // returns true if a kmer (key) is in the digested proteins
+    public final boolean contains(String key) {
+        return postings().count(slot(key)) > 0;
+    }
+
+    //returns the number of distinct kmers that were created during digestion
+    public final int size() {
+        return postings().used_slots();
+    }
+
+    public interface ProteinMatcher {
+        //matches the peptide against a protein of the store starting at start, residues are compared in place.
+        //the mismatch positions are added to the context.
+        boolean match(String peptideString, ProteomeStore store, int proteinIndex, int start, QueryContext context, int peptideLength, int allowedMismatches);
+    }
+
+    public static class MatcherNormal implements ProteinMatcher {
+
+        @Override
+        public boolean match(String peptideString, ProteomeStore store, int proteinIndex, int start, QueryContext context, int peptideLength, int allowedMismatches) {
+            if (start < 0 || peptideLength > store.length(proteinIndex) - start) {
+                return false;
+            }
+            return store.match(context.packed_peptide(peptideString), proteinIndex, start, peptideLength, allowedMismatches, context);
+        }
+    }
+
+    public static class MatcherOneInFiveMode implements ProteinMatcher {
+
+        @Override
+        //matching with one in five stop criterion, same criterion as KmerTreeMap.MatcherOneInFiveMode.
+        //the criterion compares the previous mismatch position minus the current one, which is always
+        //negative, with the allowed mismatches: every second mismatch stops the matching. the word kernel
+        //with a budget of at most one mismatch gives the same result.
+        public boolean match(String peptideString, ProteomeStore store, int proteinIndex, int start, QueryContext context, int peptideLength, int allowedMismatches) {
+            if (start < 0 || peptideLength > store.length(proteinIndex) - start) {
+                return false;
+            }
+            return store.match(context.packed_peptide(peptideString), proteinIndex, start, peptideLength, Math.min(allowedMismatches, 1), context);
+        }
+    }
+}
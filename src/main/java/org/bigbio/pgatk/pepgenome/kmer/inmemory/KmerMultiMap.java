@@ -0,0 +1,215 @@
+package org.bigbio.pgatk.pepgenome.kmer.inmemory;
+
+import org.bigbio.pgatk.pepgenome.common.ProteinEntry;
+import org.bigbio.pgatk.pepgenome.common.constants.GenomeMapper;
+import org.bigbio.pgatk.pepgenome.kmer.IKmerMap;
+import org.bigbio.pgatk.pepgenome.kmer.KmerEncoder;
+import org.bigbio.pgatk.pepgenome.kmer.PeptideMatches;
+import org.bigbio.pgatk.pepgenome.kmer.QueryContext;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This code is licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * ==Overview==
+ *
+ * Multi resolution kmer map: one {@link KmerIntMap} per kmer length. Every lookup is answered by the
+ * resolution with the fewest expected candidates for the peptide length and mismatches: long kmers have
+ * short posting lists, short kmers split more peptides into exactly matching seeds and need fewer neighbour
+ * keys. Without explicit lengths the kmer length is tuned from the proteome when the maps are built.
+ *
+ * Like the other kmer maps only peptides of at least {@link GenomeMapper.PEPTIDE_MAPPER#KMER_LENGTH} residues
+ * are searched. Hits are reported by protein and position, every position once.
+ */
+public class KmerMultiMap implements IKmerMap, Serializable {
+
+    private static final long serialVersionUID = 2893416006158322745L;
+
+    //auto tuning: the shortest kmer length whose expected posting list is at most this long is used.
+    public static final double AUTO_MAX_CANDIDATES = 2.0;
+
+    //auto tuning: range of the kmer lengths tried. the table of a 6-mer map already has 20^6 slots (256 MB).
+    public static final int AUTO_MIN_KMER_LENGTH = 3;
+    public static final int AUTO_MAX_KMER_LENGTH = 6;
+
+    //requested kmer lengths, empty for auto tuning.
+    private final int[] m_kmer_lengths;
+
+    //all added proteins, every resolution holds them in this order.
+    private ArrayList<ProteinEntry> m_proteins = new ArrayList<>();
+
+    //one map per resolution by ascending kmer length, null until the proteins are indexed.
+    private volatile KmerIntMap[] m_maps;
+
+    /**
+     * @param kmerLengths kmer lengths to index, none to choose the kmer length from the proteome (see {@link #auto_kmer_length(List)})
+     */
+    public KmerMultiMap(int... kmerLengths) {
+        this.m_kmer_lengths = kmerLengths.clone();
+        for (int kmerLength : kmerLengths) {
+            //fails early if the table for this kmer length can not be addressed.
+            KmerEncoder.table_size(kmerLength);
+        }
+    }
+
+    //adds a protein to the map. the proteins are digested when the maps are built.
+    public void add_protein(ProteinEntry protein) {
+        m_proteins.add(protein);
+        m_maps = null;
+    }
+
+    /**
+     * Builds the map of every resolution. Called on first use, calling it again
+     * is only needed after proteins have been added.
+     */
+    public synchronized void build_index() {
+        int[] lengths = m_kmer_lengths;
+        if (lengths.length == 0) {
+            int tuned = auto_kmer_length(m_proteins);
+            //shorter peptides still need a resolution they can be split into.
+            lengths = (tuned > GenomeMapper.PEPTIDE_MAPPER.KMER_LENGTH) ? new int[]{GenomeMapper.PEPTIDE_MAPPER.KMER_LENGTH, tuned} : new int[]{tuned};
+        }
+        lengths = Arrays.stream(lengths).distinct().sorted().toArray();
+        KmerIntMap[] maps = new KmerIntMap[lengths.length];
+        for (int i = 0; i < lengths.length; i++) {
+            maps[i] = new KmerIntMap(lengths[i]);
+            for (ProteinEntry protein : m_proteins) {
+                maps[i].add_protein(protein);
+            }
+            maps[i].build_index();
+        }
+        m_maps = maps;
+    }
+
+    //lookups of other threads wait for the build instead of starting their own one.
+    private KmerIntMap[] maps() {
+        KmerIntMap[] maps = m_maps;
+        if (maps == null) {
+            synchronized (this) {
+                if (m_maps == null) {
+                    build_index();
+                }
+                maps = m_maps;
+            }
+        }
+        return maps;
+    }
+
+    /**
+     * Chooses the kmer length from the proteome: the expected posting list of a kmer drawn from the proteins
+     * (sum of the squared kmer counts divided by the number of kmers) shrinks with the kmer length, while the
+     * table grows by a factor of 20. The shortest length whose expected list is at most
+     * {@link #AUTO_MAX_CANDIDATES} long is used.
+     * @param proteins proteins to index
+     * @return kmer length between {@link #AUTO_MIN_KMER_LENGTH} and {@link #AUTO_MAX_KMER_LENGTH}
+     */
+    public static int auto_kmer_length(List<ProteinEntry> proteins) {
+        int max_length = Math.min(AUTO_MAX_KMER_LENGTH, KmerEncoder.MAX_KMER_LENGTH);
+        for (int kmerLength = AUTO_MIN_KMER_LENGTH; kmerLength < max_length; kmerLength++) {
+            if (expected_postings(proteins, kmerLength) <= AUTO_MAX_CANDIDATES) {
+                return kmerLength;
+            }
+        }
+        return max_length;
+    }
+
+    //expected length of the posting list of a kmer drawn from the proteins.
+    private static double expected_postings(List<ProteinEntry> proteins, int kmerLength) {
+        int[] counts = new int[KmerEncoder.table_size(kmerLength)];
+        for (int i = 0; i < proteins.size(); i++) {
+            KmerEncoder.digest(proteins.get(i), i, kmerLength, (code, proteinIndex, position) -> counts[code]++);
+        }
+        long kmers = 0;
+        double squares = 0;
+        for (int count : counts) {
+            kmers += count;
+            squares += (double) count * count;
+        }
+        return (kmers == 0) ? 0 : squares / kmers;
+    }
+
+    //kmer lengths of the built resolutions.
+    public final int[] kmer_lengths() {
+        KmerIntMap[] maps = maps();
+        int[] lengths = new int[maps.length];
+        for (int i = 0; i < maps.length; i++) {
+            lengths[i] = maps[i].get_kmer_length();
+        }
+        return lengths;
+    }
+
+    //searches for all matches (imperfect matching, set via PEPTIDE_MAPPER).
+    public final PeptideMatches find_peptide(String peptide_string) {
+        return find_peptide(peptide_string, null, GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES, QueryContext.get());
+    }
+
+    //peptide filter mode: only the transcripts listed in targetTranscriptID ("all" for every transcript) are searched.
+    public final PeptideMatches find_peptide(String peptide_string, String targetTranscriptID, int allowedMismatches) {
+        String target = targetTranscriptID.contentEquals("all") ? null : targetTranscriptID;
+        return find_peptide(peptide_string, target, allowedMismatches, QueryContext.get());
+    }
+
+    private PeptideMatches find_peptide(String peptide_string, String targetTranscriptID, int allowedMismatches, QueryContext context) {
+        KmerIntMap map = (peptide_string.length() >= GenomeMapper.PEPTIDE_MAPPER.KMER_LENGTH) ? choose(peptide_string, targetTranscriptID, allowedMismatches, context) : null;
+        if (map == null) {
+            return PeptideMatches.none();
+        }
+        map.search(peptide_string, targetTranscriptID, allowedMismatches, context);
+        //the resolutions find the same positions, but in a different order and repetition.
+        context.sort_hits();
+        return PeptideMatches.of(context, map.postings().store());
+    }
+
+    //returns the resolution with the fewest expected candidates or null if the peptide is shorter than every kmer.
+    private KmerIntMap choose(String peptide_string, String targetTranscriptID, int allowedMismatches, QueryContext context) {
+        KmerIntMap best = null;
+        double best_cost = Double.MAX_VALUE;
+        for (KmerIntMap map : maps()) {
+            double cost = map.expected_cost(peptide_string, targetTranscriptID, allowedMismatches, context);
+            if (cost < best_cost) {
+                best = map;
+                best_cost = cost;
+            }
+        }
+        return best;
+    }
+
+    // returns true if a kmer (key) of one of the resolutions is in the digested proteins
+    public final boolean contains(String key) {
+        for (KmerIntMap map : maps()) {
+            if (map.get_kmer_length() == key.length()) {
+                return map.contains(key);
+            }
+        }
+        return false;
+    }
+
+    //number of distinct kmers of every resolution, in the order of kmer_lengths.
+    public final int[] sizes() {
+        KmerIntMap[] maps = maps();
+        int[] sizes = new int[maps.length];
+        for (int i = 0; i < maps.length; i++) {
+            sizes[i] = maps[i].size();
+        }
+        return sizes;
+    }
+
+    //returns the number of distinct kmers of the resolution with the default kmer length, or of the shortest one
+    //if that length is not built. the sizes of all resolutions are returned by sizes.
+    public final int size() {
+        for (KmerIntMap map : maps()) {
+            if (map.get_kmer_length() == GenomeMapper.PEPTIDE_MAPPER.KMER_LENGTH) {
+                return map.size();
+            }
+        }
+        return maps()[0].size();
+    }
+}
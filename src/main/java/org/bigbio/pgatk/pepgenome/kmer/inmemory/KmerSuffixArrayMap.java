@@ -0,0 +1,249 @@
+package org.bigbio.pgatk.pepgenome.kmer.inmemory;
+
+import org.bigbio.pgatk.pepgenome.PossibleKeyGenerator;
+import org.bigbio.pgatk.pepgenome.common.ProteinEntry;
+import org.bigbio.pgatk.pepgenome.common.constants.GenomeMapper;
+import org.bigbio.pgatk.pepgenome.kmer.IKmerMap;
+import org.bigbio.pgatk.pepgenome.kmer.KmerCounts;
+import org.bigbio.pgatk.pepgenome.kmer.KmerPresence;
+import org.bigbio.pgatk.pepgenome.kmer.PeptideMatches;
+import org.bigbio.pgatk.pepgenome.kmer.ProteomeStore;
+import org.bigbio.pgatk.pepgenome.kmer.QueryContext;
+import org.bigbio.pgatk.pepgenome.kmer.SuffixArray;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * This code is licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * ==Overview==
+ *
+ * Kmer map backed by a {@link SuffixArray} over all protein sequences, concatenated and separated by
+ * a 0 byte. Without mismatches the whole peptide is looked up in the suffix array, every occurrence is
+ * a hit and nothing has to be verified. With mismatches the suffix array is only used to find the
+ * occurrences of the keys of the {@link PossibleKeyGenerator}, which are verified like in the other maps.
+ *
+ * Hits are reported in the same order as the kmer maps (by protein, then by position), so the
+ * results do not depend on the engine.
+ */
+public class KmerSuffixArrayMap implements IKmerMap, Serializable {
+
+    private static final long serialVersionUID = 6373826118094713271L;
+
+    //separates the proteins in the text, never part of a peptide.
+    private static final byte SEPARATOR = 0;
+
+    //all added proteins, the text holds them in this order.
+    private ArrayList<ProteinEntry> m_proteins = new ArrayList<>();
+
+    //start of every protein in the text.
+    private int[] m_protein_starts;
+
+    //packed residues of m_proteins, used to verify candidates.
+    private ProteomeStore m_store;
+
+    //suffix array of the text, null until the proteins are indexed. published after the other parts of the index.
+    private volatile SuffixArray m_suffix_array;
+
+    //number of distinct kmers, -1 until counted.
+    private volatile int m_size = -1;
+
+    //kmers of the map and their counts, handed to the key generator of every lookup.
+    private KmerPresence m_presence;
+    private KmerCounts m_counts;
+
+    private KmerIntMap.ProteinMatcher proteinMatcher;
+
+    public KmerSuffixArrayMap() {
+        if ((GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES > 1) && GenomeMapper.PEPTIDE_MAPPER.ONE_IN_FIVE_MODE) {
+            proteinMatcher = new KmerIntMap.MatcherOneInFiveMode();
+        } else {
+            proteinMatcher = new KmerIntMap.MatcherNormal();
+        }
+    }
+
+    //adds a protein to the map. the suffix array is built when the map is first used.
+    public void add_protein(ProteinEntry protein) {
+        m_proteins.add(protein);
+        m_suffix_array = null;
+        m_size = -1;
+    }
+
+    /**
+     * Concatenates all added proteins and builds the suffix array. Called on first use, calling it again
+     * is only needed after proteins have been added.
+     */
+    public synchronized void build_index() {
+        int length = 0;
+        for (ProteinEntry protein : m_proteins) {
+            length += protein.get_sequence().length() + 1;
+        }
+        byte[] text = new byte[length];
+        m_protein_starts = new int[m_proteins.size()];
+        int pos = 0;
+        for (int i = 0; i < m_proteins.size(); i++) {
+            String sequence = m_proteins.get(i).get_sequence();
+            m_protein_starts[i] = pos;
+            for (int j = 0; j < sequence.length(); j++) {
+                text[pos++] = SuffixArray.to_byte(sequence.charAt(j));
+            }
+            text[pos++] = SEPARATOR;
+        }
+        m_store = ProteomeStore.of(m_proteins);
+        m_presence = KmerPresence.of(m_proteins, GenomeMapper.PEPTIDE_MAPPER.KMER_LENGTH);
+        m_counts = KmerCounts.Table.of(m_proteins, GenomeMapper.PEPTIDE_MAPPER.KMER_LENGTH);
+        m_suffix_array = new SuffixArray(text);
+    }
+
+    //lookups of other threads wait for the build instead of starting their own one.
+    private SuffixArray suffix_array() {
+        SuffixArray suffix_array = m_suffix_array;
+        if (suffix_array == null) {
+            synchronized (this) {
+                if (m_suffix_array == null) {
+                    build_index();
+                }
+                suffix_array = m_suffix_array;
+            }
+        }
+        return suffix_array;
+    }
+
+    //searches for all matches (imperfect matching, set via PEPTIDE_MAPPER).
+    public final PeptideMatches find_peptide(String peptide_string) {
+        return find_peptide(peptide_string, null, GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES);
+    }
+
+    //peptide filter mode: only the transcripts listed in targetTranscriptID ("all" for every transcript) are searched.
+    public final PeptideMatches find_peptide(String peptide_string, String targetTranscriptID, int allowedMismatches) {
+        //the matches map a gene_id to all related transcript ids and all the peptides and their
+        //position in the protein sequence
+        String target = (targetTranscriptID == null || targetTranscriptID.contentEquals("all")) ? null : targetTranscriptID;
+
+        //mismatches and hits are kept in the buffers of the context.
+        QueryContext context = QueryContext.get();
+        context.reset();
+        suffix_array();
+
+        if (target != null) {
+            //only the proteins of the target transcripts are scanned, the suffix array is not searched.
+            m_store.search_transcripts(peptide_string, target, allowedMismatches, context);
+        } else if (allowedMismatches == 0) {
+            //peptides shorter than a kmer are not searched, like in the kmer maps.
+            if (peptide_string.length() >= GenomeMapper.PEPTIDE_MAPPER.KMER_LENGTH) {
+                for (int occurrence : occurrences(peptide_string)) {
+                    int protein_index = protein_index(occurrence);
+                    context.add_hit(protein_index, occurrence - m_protein_starts[protein_index]);
+                }
+            }
+        } else {
+            //the generator keeps the state of the peptide, every lookup has its own one.
+            PossibleKeyGenerator key_gen = new PossibleKeyGenerator(this);
+            key_gen.set_presence(m_presence);
+            key_gen.set_counts(m_counts);
+            int set_key_returned = key_gen.set_original_key(peptide_string, allowedMismatches);
+            String curr_key;
+            int peptide_length = peptide_string.length();
+
+            if (set_key_returned >= 0) {
+                while ((curr_key = key_gen.get_next_key()) != null) {
+                    int offset = (set_key_returned == 1) ? key_gen.get_key_offset() : 0;
+                    for (int occurrence : occurrences(curr_key)) {
+                        int protein_index = protein_index(occurrence);
+                        //with set_key_returned == 1 the peptide is matched backwards from the key.
+                        //see PossibleKeyGenerator::set_original_key
+                        int start = occurrence - m_protein_starts[protein_index] - offset;
+                        //a candidate reached through several keys is verified only the first time.
+                        if (!context.add_candidate(protein_index, start)) {
+                            continue;
+                        }
+                        context.clear_mismatches();
+                        if (proteinMatcher.match(peptide_string, m_store, protein_index, start, context, peptide_length, allowedMismatches)) {
+                            context.add_hit(protein_index, start);
+                        }
+                    }
+                }
+            }
+        }
+        return PeptideMatches.of(context, m_store);
+    }
+
+    //returns the text positions of all occurrences of the pattern in ascending order.
+    private int[] occurrences(String pattern) {
+        SuffixArray suffix_array = suffix_array();
+        int from = suffix_array.lower_bound(pattern);
+        int to = suffix_array.upper_bound(pattern);
+        int[] positions = new int[to - from];
+        for (int i = from; i < to; i++) {
+            positions[i - from] = suffix_array.suffix(i);
+        }
+        Arrays.sort(positions);
+        return positions;
+    }
+
+    //index of the protein that contains a text position.
+    private int protein_index(int textPosition) {
+        int index = Arrays.binarySearch(m_protein_starts, textPosition);
+        return (index >= 0) ? index : -index - 2;
+    }
+
+    // returns true if a kmer (key) is in the digested proteins
+    public final boolean contains(String key) {
+        return suffix_array().count(key) > 0;
+    }
+
+    //returns the number of distinct kmers in the digested proteins
+    public final int size() {
+        if (m_size < 0) {
+            m_size = count_kmers(GenomeMapper.PEPTIDE_MAPPER.KMER_LENGTH);
+        }
+        return m_size;
+    }
+
+    //suffixes sharing a kmer are neighbours in the suffix array, so every kmer is counted where it first appears.
+    private int count_kmers(int kmerLength) {
+        SuffixArray suffix_array = suffix_array();
+        byte[] text = suffix_array.text();
+        int count = 0;
+        int previous = -1;
+        for (int i = 0; i < suffix_array.length(); i++) {
+            int start = suffix_array.suffix(i);
+            if (!is_kmer(text, start, kmerLength)) {
+                continue;
+            }
+            if (previous < 0 || !same_prefix(text, previous, start, kmerLength)) {
+                count++;
+            }
+            previous = start;
+        }
+        return count;
+    }
+
+    //true if the kmer at start lies within one protein.
+    private static boolean is_kmer(byte[] text, int start, int kmerLength) {
+        if (start + kmerLength > text.length) {
+            return false;
+        }
+        for (int i = start; i < start + kmerLength; i++) {
+            if (text[i] == SEPARATOR) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean same_prefix(byte[] text, int a, int b, int length) {
+        for (int i = 0; i < length; i++) {
+            if (text[a + i] != text[b + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
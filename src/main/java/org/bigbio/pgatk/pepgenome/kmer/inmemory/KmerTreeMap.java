@@ -1,7 +1,6 @@
 package org.bigbio.pgatk.pepgenome.kmer.inmemory;
 
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.lang3.ArrayUtils;
 import org.bigbio.pgatk.pepgenome.PossibleKeyGenerator;
 import org.bigbio.pgatk.pepgenome.common.PositionMismatchT;
 import org.bigbio.pgatk.pepgenome.common.ProteinEntry;
@@ -10,10 +9,16 @@ import org.bigbio.pgatk.pepgenome.common.Utils;
 import org.bigbio.pgatk.pepgenome.common.constants.GenomeMapper;
 import org.bigbio.pgatk.pepgenome.kmer.IKmerEntry;
 import org.bigbio.pgatk.pepgenome.kmer.IKmerMap;
-import org.bigbio.pgatk.pepgenome.kmer.KmerEntry;
+import org.bigbio.pgatk.pepgenome.kmer.KmerCounts;
+import org.bigbio.pgatk.pepgenome.kmer.KmerPresence;
+import org.bigbio.pgatk.pepgenome.kmer.KmerPostings;
+import org.bigbio.pgatk.pepgenome.kmer.PeptideMatches;
+import org.bigbio.pgatk.pepgenome.kmer.ProteomeStore;
+import org.bigbio.pgatk.pepgenome.kmer.QueryContext;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -24,29 +29,23 @@ public class KmerTreeMap implements IKmerMap, Serializable {
     //kmerMap
     //in the gencode fasta file, data analysis showed that the average size of the list is 18 elements (for approx. 93 000 proteins)
     //and the map size is at approx 1.8m elements.
-    private Map<String, IKmerEntry[]> m_kmers = new TreeMap<>();
+    //kmer -> slot of its postings in m_postings.
+    private Map<String, Integer> m_kmers = new TreeMap<>();
 
-    //gene_id map
-    private Map<String, TranscriptsT> m_gene_id_map = new TreeMap<>();
+    //all added proteins, digested when the postings are built.
+    private ArrayList<ProteinEntry> m_proteins = new ArrayList<>();
 
-    //the keygenerator will generate keys for one and two mismatch matching.
-    private PossibleKeyGenerator m_key_gen;
+    //postings of all kmers, null until the proteins are indexed. published after the kmers, presence and counts.
+    private volatile KmerPostings m_postings;
 
-    private ProteinMatcher proteinMatcher;
-
-    public boolean getIsVariant() {
-        return isVariant;
-    }
+    //kmers of the map and their counts, handed to the key generator of every lookup.
+    private KmerPresence m_presence;
+    private KmerCounts m_counts;
 
-    public void setIsVariant(boolean isVariant) {
-        isVariant = isVariant;
-    }
-
-    private boolean isVariant;
+    private ProteinMatcher proteinMatcher;
 
     public KmerTreeMap() {
 
-        this.m_key_gen = new PossibleKeyGenerator(this);
         if ((GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES > 1) && GenomeMapper.PEPTIDE_MAPPER.ONE_IN_FIVE_MODE) {
             proteinMatcher = new MatcherOneInFiveMode();
         } else {
@@ -56,134 +55,189 @@ public class KmerTreeMap implements IKmerMap, Serializable {
 
     }
 
-    //digests and adds a protein to the map.
+    //adds a protein to the map. the proteins are digested when the postings are built.
     public void add_protein(ProteinEntry protein) {
-        //this function digests a protein sequence and builds a KmerTreeMap with the bits.
+        m_proteins.add(protein);
+        m_postings = null;
+    }
+
+    /**
+     * Digests all added proteins and builds the postings in two passes (count, then fill).
+     * Called on first use, calling it again is only needed after proteins have been added.
+     */
+    public synchronized void build_index() {
+        //the slots are handed out through a hash map, the tree is only built once all kmers are known.
+        Map<String, Integer> kmers = new HashMap<>();
+        KmerPostings postings = KmerPostings.build(m_proteins, 0, (protein, proteinIndex, visitor) -> digest(kmers, protein, proteinIndex, visitor));
+        m_kmers = new TreeMap<>(kmers);
+        m_presence = KmerPresence.of(m_proteins, GenomeMapper.PEPTIDE_MAPPER.KMER_LENGTH);
+        m_counts = KmerCounts.Table.of(m_proteins, GenomeMapper.PEPTIDE_MAPPER.KMER_LENGTH);
+        m_postings = postings;
+    }
+
+    //this function digests a protein sequence and hands every kmer with its slot to the visitor.
+    private static void digest(Map<String, Integer> kmers, ProteinEntry protein, int proteinIndex, KmerPostings.Visitor visitor) {
         String protein_sequence = protein.get_sequence();
 
         if (protein_sequence.length() >= GenomeMapper.PEPTIDE_MAPPER.KMER_LENGTH) {
             //<= n!
             int n = protein_sequence.length() - GenomeMapper.PEPTIDE_MAPPER.KMER_LENGTH;
             String key;
-            IKmerEntry[] kmerEntries;
-            KmerEntry curr_kmer;
 
             for (int i = 0; i <= n; i++) {
                 key = Utils.getCppStyleSubString(protein_sequence, i, GenomeMapper.PEPTIDE_MAPPER.KMER_LENGTH);
-                //if the kmer doesnt exist yet, create kmerEntries
-                kmerEntries = m_kmers.computeIfAbsent(key, k -> new KmerEntry[0]);
-                curr_kmer = new KmerEntry(Utils.getCppStyleSubStringByShift(protein_sequence, i), protein, i);
-                //add the current KmerEntry
-                m_kmers.put(key, ArrayUtils.add(kmerEntries, curr_kmer));
+                //if the kmer doesnt exist yet, it gets the next slot
+                Integer slot = kmers.get(key);
+                if (slot == null) {
+                    slot = kmers.size();
+                    kmers.put(key, slot);
+                }
+                visitor.visit(slot, proteinIndex, i);
             }
         }
     }
 
+    //lookups of other threads wait for the build instead of starting their own one.
+    private KmerPostings postings() {
+        KmerPostings postings = m_postings;
+        if (postings == null) {
+            synchronized (this) {
+                if (m_postings == null) {
+                    build_index();
+                }
+                postings = m_postings;
+            }
+        }
+        return postings;
+    }
+
+    //the keys of a lookup are generated by a generator of its own, the generator keeps the state of the peptide.
+    private PossibleKeyGenerator key_generator() {
+        postings();
+        PossibleKeyGenerator key_gen = new PossibleKeyGenerator(this);
+        key_gen.set_presence(m_presence);
+        key_gen.set_counts(m_counts);
+        return key_gen;
+    }
+
     //TODO ||Edited version of find_peptide for exp2 worfklow only.  Original (default) below||
-    //searches for all matches (imperfect matching, set via PEPTIDE_MAPPER) and returns a map that contains all finds.
-    public final Map<String, TranscriptsT> find_peptide(String peptide_string, String targetTranscriptID, int allowedMismatches) {
+    //searches for all matches (imperfect matching, set via PEPTIDE_MAPPER).
+    public final PeptideMatches find_peptide(String peptide_string, String targetTranscriptID, int allowedMismatches) {
         //this function generates a gene_id_map.
         //this map will map a gene_id to all related transcript ids and all the peptides and their
         //position in the protein sequence
 
-        if (!m_gene_id_map.isEmpty()) {
-            m_gene_id_map.clear();
+        if (!targetTranscriptID.contentEquals("all")) {
+            return find_in_transcripts(peptide_string, targetTranscriptID, allowedMismatches);
         }
 
+        Map<String, TranscriptsT> gene_id_map = new TreeMap<>();
         // TODO ||Key generator used here - Added allowedMismatches parameter, so new method version required.||
-        int set_key_returned = m_key_gen.set_original_key(peptide_string, allowedMismatches);
-        int backwards_multiplier = 0;
+        PossibleKeyGenerator key_gen = key_generator();
+        int set_key_returned = key_gen.set_original_key(peptide_string, allowedMismatches);
 
         String curr_key;
         ArrayList<Integer> mismatches = new ArrayList<>();
 
         int peptide_length = peptide_string.length();
+        KmerPostings postings = postings();
+        KmerPostings.Cursor entry = new KmerPostings.Cursor(postings);
+        //with mismatches a candidate can be reached through several keys, it is verified only the first time.
+        QueryContext context = QueryContext.get();
+        context.clear_candidates();
+        boolean dedup = allowedMismatches > 0;
 
         if (set_key_returned >= 0) {
-            while ((curr_key = m_key_gen.get_next_key()) != null) {
-                IKmerEntry[] kmerEntries = m_kmers.get(curr_key);
-                if (kmerEntries != null) {
+            while ((curr_key = key_gen.get_next_key()) != null) {
+                Integer slot = m_kmers.get(curr_key);
+                if (slot != null) {
 
                     //TODO ||Definitely making it this far, but failing before next condition below||
-                    for (IKmerEntry entry : kmerEntries) {
-
-                        // TODO ||If entry's trans ID = filter id, etc. do this block, otherwise skip||
-                        //System.out.println("targetTranscriptID: "+targetTranscriptID); //---Constant for one peptide
-                        //System.out.println("entry.m_p_protein().get_transcript_id(): "+entry.m_p_protein().get_transcript_id()); //---Varies per iteration
-                        //System.out.println("curr_key: "+curr_key);
-                        //System.out.println("entry's protein ID: "+entry.m_p_protein().get_gene_id());
-                        if (targetTranscriptID.contains(entry.m_p_protein().get_transcript_id()) || targetTranscriptID.contentEquals("all"))  {
-
-                            //System.out.println("KmerTreeMap.find_peptide: Target trans IDs contain entry's protein's trans ID"); //Not reaching here - error point
-
-                            //System.out.println(set_key_returned); //Testing
-                            if (set_key_returned == 0) {
-
-                                //TODO ||Peptide to protein matching here, insert entry and mismatches into gene id map||
-                                if (proteinMatcher.match(peptide_string, entry, mismatches, peptide_length, allowedMismatches)) {
-                                    System.out.println("KmerTreeMap.find_peptide: positive peptide match");
-                                    insert_into_gene_id_map(entry, mismatches);
-                                }
-                                //TODO ||Same as above||
-                            } else if (set_key_returned == 1) {
-                                //this mode is used when only allowed_mismatches + 1 keys are generated.
-                                //see PossibleKeyGenerator::set_original_key
-                                int offset = backwards_multiplier * GenomeMapper.PEPTIDE_MAPPER.KMER_LENGTH;
-                                if (proteinMatcher.match_backwards(peptide_string, entry, mismatches, peptide_length, offset, allowedMismatches)) {
-                                    insert_into_gene_id_map(entry, mismatches, offset);
-                                }
-                            }
-                            mismatches.clear();
-                        }
-                        else {
-                            //System.out.println("KmerTreeMap.find_peptide: Target trans IDs DOES NOT contain entry's protein's trans ID"); //Not reaching here - error point
+                    for (int posting = postings.start(slot); posting < postings.end(slot); posting++) {
+                        entry.move_to(posting);
+                        int start = entry.m_pos_in_protein() - ((set_key_returned == 1) ? key_gen.get_key_offset() : 0);
+                        if (dedup && !context.add_candidate(entry.protein_index(), start)) {
                             continue;
                         }
 
+                        //System.out.println(set_key_returned); //Testing
+                        if (set_key_returned == 0) {
 
+                            //TODO ||Peptide to protein matching here, insert entry and mismatches into gene id map||
+                            if (proteinMatcher.match(peptide_string, entry, mismatches, peptide_length, allowedMismatches)) {
+                                System.out.println("KmerTreeMap.find_peptide: positive peptide match");
+                                insert_into_gene_id_map(gene_id_map, entry, mismatches, 0);
+                            }
+                            //TODO ||Same as above||
+                        } else if (set_key_returned == 1) {
+                            //this mode is used when only allowed_mismatches + 1 keys are generated.
+                            //see PossibleKeyGenerator::set_original_key
+                            int offset = key_gen.get_key_offset();
+                            if (proteinMatcher.match_backwards(peptide_string, entry, mismatches, peptide_length, offset, allowedMismatches)) {
+                                insert_into_gene_id_map(gene_id_map, entry, mismatches, offset);
+                            }
+                        }
+                        mismatches.clear();
                     }
                 }
-                backwards_multiplier++;
             }
         }
-        return m_gene_id_map;
+        return new PeptideMatches(gene_id_map);
+    }
+
+    //peptide filter mode: scans the proteins of the target transcripts (see ProteomeStore::search_transcripts)
+    //instead of the postings of the keys, ids are compared as a whole.
+    private PeptideMatches find_in_transcripts(String peptide_string, String targetTranscriptID, int allowedMismatches) {
+        ProteomeStore store = postings().store();
+        QueryContext context = QueryContext.get();
+        context.reset();
+        store.search_transcripts(peptide_string, targetTranscriptID, allowedMismatches, context);
+        return PeptideMatches.of(context, store);
     }
 
     // DEFAULT, ORIGINAL
-    //searches for all matches (imperfect matching, set via PEPTIDE_MAPPER) and returns a map that contains all finds.
-    public final Map<String, TranscriptsT> find_peptide(String peptide_string) {
+    //searches for all matches (imperfect matching, set via PEPTIDE_MAPPER).
+    public final PeptideMatches find_peptide(String peptide_string) {
         //this function generates a gene_id_map.
         //this map will map a gene_id to all related transcript ids and all the peptides and their
         //position in the protein sequence
+        Map<String, TranscriptsT> gene_id_map = new TreeMap<>();
 
-        if (!m_gene_id_map.isEmpty()) {
-            m_gene_id_map.clear();
-        }
-
-        int set_key_returned = m_key_gen.set_original_key(peptide_string);
-        int backwards_multiplier = 0;
+        PossibleKeyGenerator key_gen = key_generator();
+        int set_key_returned = key_gen.set_original_key(peptide_string);
 
         String curr_key;
         ArrayList<Integer> mismatches = new ArrayList<>();
 
         int peptide_length = peptide_string.length();
+        KmerPostings postings = postings();
+        KmerPostings.Cursor entry = new KmerPostings.Cursor(postings);
+        //with mismatches a candidate can be reached through several keys, it is verified only the first time.
+        QueryContext context = QueryContext.get();
+        context.clear_candidates();
+        boolean dedup = GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES > 0;
 
         if (set_key_returned >= 0) {
-            while ((curr_key = m_key_gen.get_next_key()) != null) {
-                IKmerEntry[] kmerEntries = m_kmers.get(curr_key);
-                if (kmerEntries != null) {
-                    for (IKmerEntry entry : kmerEntries) {
+            while ((curr_key = key_gen.get_next_key()) != null) {
+                Integer slot = m_kmers.get(curr_key);
+                if (slot != null) {
+                    for (int posting = postings.start(slot); posting < postings.end(slot); posting++) {
+                        entry.move_to(posting);
+                        int start = entry.m_pos_in_protein() - ((set_key_returned == 1) ? key_gen.get_key_offset() : 0);
+                        if (dedup && !context.add_candidate(entry.protein_index(), start)) {
+                            continue;
+                        }
                         if (set_key_returned == 0) {
                             if (proteinMatcher.match(peptide_string, entry, mismatches, peptide_length)) {
-                                insert_into_gene_id_map(entry, mismatches);
+                                insert_into_gene_id_map(gene_id_map, entry, mismatches, 0);
 
                             }
                         } else if (set_key_returned == 1) {
                             //this mode is used when only allowed_mismatches + 1 keys are generated.
                             //see PossibleKeyGenerator::set_original_key
-                            int offset = backwards_multiplier * GenomeMapper.PEPTIDE_MAPPER.KMER_LENGTH;
+                            int offset = key_gen.get_key_offset();
                             if (proteinMatcher.match_backwards(peptide_string, entry, mismatches, peptide_length, offset)) {
-                                insert_into_gene_id_map(entry, mismatches, offset);
+                                insert_into_gene_id_map(gene_id_map, entry, mismatches, offset);
 
                             }
                         }
@@ -192,20 +246,14 @@ public class KmerTreeMap implements IKmerMap, Serializable {
                         mismatches.clear();
                     }
                 }
-                backwards_multiplier++;
             }
         }
-        return m_gene_id_map;
-    }
-
-    //inserts a found peptide into the current gene id map.
-    public void insert_into_gene_id_map(IKmerEntry entry, ArrayList<Integer> mismatches) {
-        insert_into_gene_id_map(entry, mismatches, 0);
+        return new PeptideMatches(gene_id_map);
     }
 
     //TODO ||EDITED (exp2) insert_into_gene_id_map method||
-    //inserts a found peptide into the current gene id map.
-    public void insert_into_gene_id_map(IKmerEntry entry, ArrayList<Integer> mismatches, int offset) {
+    //inserts a found peptide into the gene id map of a lookup.
+    private static void insert_into_gene_id_map(Map<String, TranscriptsT> geneIdMap, IKmerEntry entry, ArrayList<Integer> mismatches, int offset) {
         //inserts a found position into the gene id map
         int pos_in_protein = entry.m_pos_in_protein() - offset;
         String gene_id = entry.m_p_protein().get_gene_id();
@@ -214,26 +262,18 @@ public class KmerTreeMap implements IKmerMap, Serializable {
 
 
 
-        ArrayList<PositionMismatchT> pMismatchTS = m_gene_id_map.computeIfAbsent(gene_id, k -> new TranscriptsT())
+        ArrayList<PositionMismatchT> pMismatchTS = geneIdMap.computeIfAbsent(gene_id, k -> new TranscriptsT())
                 .getM_entries().computeIfAbsent(transcript_id, j -> new ArrayList<>());
 
-        //care: if the PositionMismatchT struct is changed to accomodate more than 2 mismatches this has to be updated as well.
-        pMismatchTS.add(new PositionMismatchT(
-                pos_in_protein,
-                (mismatches.size() > 0) ? pos_in_protein + mismatches.get(0) : -1,
-                (mismatches.size() > 1) ? pos_in_protein + mismatches.get(1) : -1));
+        pMismatchTS.add(new PositionMismatchT(pos_in_protein, mismatches));
 
         //TODO ||EDITED.  See method below for original.||
         if (!mismatches.isEmpty()) {
             System.out.println("KmerTreeMap: Variant identified");
             System.out.println(mismatches.size());
-            isVariant = true;
-        } else {
-            //System.out.println("KmerTreeMap: NOT variant");
-            //System.out.println(mismatches.size());
-            isVariant = false;
         }
-
+        //System.out.println("KmerTreeMap: NOT variant");
+        //System.out.println(mismatches.size());
     }
 
     /*
@@ -248,60 +288,59 @@ public class KmerTreeMap implements IKmerMap, Serializable {
         ArrayList<PositionMismatchT> pMismatchTS = m_gene_id_map.computeIfAbsent(gene_id, k -> new TranscriptsT())
                 .getM_entries().computeIfAbsent(transcript_id, j -> new ArrayList<>());
 
-        //care: if the PositionMismatchT struct is changed to accomodate more than 2 mismatches this has to be updated as well.
-        pMismatchTS.add(new PositionMismatchT(
-                pos_in_protein,
-                (mismatches.size() > 0) ? pos_in_protein + mismatches.get(0) : -1,
-                (mismatches.size() > 1) ? pos_in_protein + mismatches.get(1) : -1));
+        pMismatchTS.add(new PositionMismatchT(pos_in_protein, mismatches));
     }
 
      */
 
     // returns true if a kmer (key) is in the digested proteins
     public final boolean contains(String key) {
+        postings();
         return m_kmers.containsKey(key);
     }
 
     //returns the number of fragments that were created during digestion
     public final int size() {
+        postings();
         return m_kmers.size();
     }
 
 
     interface ProteinMatcher {
         //TODO ||Original||
-        boolean match(String peptideString, IKmerEntry kmerEntry, ArrayList<Integer> mismatches, int peptideLength);
+        boolean match(String peptideString, KmerPostings.Cursor kmerEntry, ArrayList<Integer> mismatches, int peptideLength);
         //TODO ||Edited||
-        boolean match(String peptideString, IKmerEntry kmerEntry, ArrayList<Integer> mismatches, int peptideLength, int allowedMismatches);
+        boolean match(String peptideString, KmerPostings.Cursor kmerEntry, ArrayList<Integer> mismatches, int peptideLength, int allowedMismatches);
         //TODO ||Original||
-        boolean match_backwards(String peptideString, IKmerEntry kmerEntry, ArrayList<Integer> mismatches, int peptideLength, int offset);
+        boolean match_backwards(String peptideString, KmerPostings.Cursor kmerEntry, ArrayList<Integer> mismatches, int peptideLength, int offset);
         //TODO ||Edited||
-        boolean match_backwards(String peptideString, IKmerEntry kmerEntry, ArrayList<Integer> mismatches, int peptideLength, int offset, int allowedMismatches);
+        boolean match_backwards(String peptideString, KmerPostings.Cursor kmerEntry, ArrayList<Integer> mismatches, int peptideLength, int offset, int allowedMismatches);
     }
 
     class MatcherNormal implements ProteinMatcher {
 
+        //verifies with the word kernel of the store (see ProteomeStore::match), the mismatches of a match are
+        //copied to the list of the caller.
+        private boolean verify(String peptideString, KmerPostings.Cursor kmerEntry, ArrayList<Integer> mismatches, int peptideLength, int start, int allowedMismatches) {
+            QueryContext context = QueryContext.get();
+            context.clear_mismatches();
+            if (!kmerEntry.store().match(context.packed_peptide(peptideString), kmerEntry.protein_index(), start, peptideLength, allowedMismatches, context)) {
+                return false;
+            }
+            for (int i = 0; i < context.mismatch_count(); i++) {
+                mismatches.add(context.mismatch(i));
+            }
+            return true;
+        }
+
         //TODO ||Edited - Mismatch logic||
         @Override
         //the basic forward matching algorithm
-        public boolean match(String peptideString, IKmerEntry kmerEntry, ArrayList<Integer> mismatches, int peptideLength, int allowedMismatches) {
+        public boolean match(String peptideString, KmerPostings.Cursor kmerEntry, ArrayList<Integer> mismatches, int peptideLength, int allowedMismatches) {
             //System.out.println("KmerTreeMap.ProteinMatcher.match EDITED used");
-            int protein_length = kmerEntry.m_p_protein().get_sequence().length() - kmerEntry.m_pos_in_protein();
+            int protein_length = kmerEntry.store().length(kmerEntry.protein_index()) - kmerEntry.m_pos_in_protein();
             if (peptideLength <= protein_length) {
-                String p_protein = Utils.getCppStyleSubStringByShift(kmerEntry.m_p_protein().get_sequence(), kmerEntry.m_pos_in_protein());
-                for (int i = 0; i < peptideLength; i++) {
-                    if (peptideString.charAt(i) != p_protein.charAt(i)) {
-                        mismatches.add(i);
-
-                        if (mismatches.size() > allowedMismatches) {
-                            return false;
-                        }
-                    }
-                }
-
-
-
-                return true;
+                return verify(peptideString, kmerEntry, mismatches, peptideLength, kmerEntry.m_pos_in_protein(), allowedMismatches);
             }
             return false;
         }
@@ -309,20 +348,11 @@ public class KmerTreeMap implements IKmerMap, Serializable {
         //TODO ||Original||
         @Override
         //the basic forward matching algorithm
-        public boolean match(String peptideString, IKmerEntry kmerEntry, ArrayList<Integer> mismatches, int peptideLength) {
+        public boolean match(String peptideString, KmerPostings.Cursor kmerEntry, ArrayList<Integer> mismatches, int peptideLength) {
             //System.out.println("KmerTreeMap.ProteinMatcher.match ORIGINAL used");
-            int protein_length = kmerEntry.m_p_protein().get_sequence().length() - kmerEntry.m_pos_in_protein();
+            int protein_length = kmerEntry.store().length(kmerEntry.protein_index()) - kmerEntry.m_pos_in_protein();
             if (peptideLength <= protein_length) {
-                String p_protein = Utils.getCppStyleSubStringByShift(kmerEntry.m_p_protein().get_sequence(), kmerEntry.m_pos_in_protein());
-                for (int i = 0; i < peptideLength; i++) {
-                    if (peptideString.charAt(i) != p_protein.charAt(i)) {
-                        mismatches.add(i);
-                        if (mismatches.size() > GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES) {
-                            return false;
-                        }
-                    }
-                }
-                return true;
+                return verify(peptideString, kmerEntry, mismatches, peptideLength, kmerEntry.m_pos_in_protein(), GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES);
             }
             return false;
         }
@@ -330,21 +360,12 @@ public class KmerTreeMap implements IKmerMap, Serializable {
         //TODO ||Edited||
         @Override
         //backwards matching functionality. this is possible by using cstrings.
-        public boolean match_backwards(String peptideString, IKmerEntry kmerEntry, ArrayList<Integer> mismatches, int peptideLength, int offset, int allowedMismatches) {
+        public boolean match_backwards(String peptideString, KmerPostings.Cursor kmerEntry, ArrayList<Integer> mismatches, int peptideLength, int offset, int allowedMismatches) {
             //System.out.println("KmerTreeMap.ProteinMatcher.match_backwards EDITED used");
             if (kmerEntry.m_pos_in_protein() >= offset) {
-                int protein_length = kmerEntry.m_p_protein().get_sequence().length() - kmerEntry.m_pos_in_protein() + offset;
+                int protein_length = kmerEntry.store().length(kmerEntry.protein_index()) - kmerEntry.m_pos_in_protein() + offset;
                 if (peptideLength <= protein_length) {
-                    String p_protein = Utils.getCppStyleSubStringByShift(kmerEntry.m_p_protein().get_sequence(), (kmerEntry.m_pos_in_protein() - offset));
-                    for (int i = 0; i < peptideLength; i++) {
-                        if (peptideString.charAt(i) != p_protein.charAt(i)) {
-                            mismatches.add(i);
-                            if (mismatches.size() > allowedMismatches) {
-                                return false;
-                            }
-                        }
-                    }
-                    return true;
+                    return verify(peptideString, kmerEntry, mismatches, peptideLength, kmerEntry.m_pos_in_protein() - offset, allowedMismatches);
                 }
             }
             return false;
@@ -353,21 +374,12 @@ public class KmerTreeMap implements IKmerMap, Serializable {
         //TODO ||Original||
         @Override
         //backwards matching functionality. this is possible by using cstrings.
-        public boolean match_backwards(String peptideString, IKmerEntry kmerEntry, ArrayList<Integer> mismatches, int peptideLength, int offset) {
+        public boolean match_backwards(String peptideString, KmerPostings.Cursor kmerEntry, ArrayList<Integer> mismatches, int peptideLength, int offset) {
             //System.out.println("KmerTreeMap.ProteinMatcher.match_backwards ORIGINAL used");
             if (kmerEntry.m_pos_in_protein() >= offset) {
-                int protein_length = kmerEntry.m_p_protein().get_sequence().length() - kmerEntry.m_pos_in_protein() + offset;
+                int protein_length = kmerEntry.store().length(kmerEntry.protein_index()) - kmerEntry.m_pos_in_protein() + offset;
                 if (peptideLength <= protein_length) {
-                    String p_protein = Utils.getCppStyleSubStringByShift(kmerEntry.m_p_protein().get_sequence(), (kmerEntry.m_pos_in_protein() - offset));
-                    for (int i = 0; i < peptideLength; i++) {
-                        if (peptideString.charAt(i) != p_protein.charAt(i)) {
-                            mismatches.add(i);
-                            if (mismatches.size() > GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES) {
-                                return false;
-                            }
-                        }
-                    }
-                    return true;
+                    return verify(peptideString, kmerEntry, mismatches, peptideLength, kmerEntry.m_pos_in_protein() - offset, GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES);
                 }
             }
             return false;
@@ -378,24 +390,29 @@ public class KmerTreeMap implements IKmerMap, Serializable {
 
         //TODO ||EDITED: Needed to add in method here.||
         @Override
-        public boolean match(String peptideString, IKmerEntry kmerEntry, ArrayList<Integer> mismatches, int peptideLength, int allowedMismatches) {
+        public boolean match(String peptideString, KmerPostings.Cursor kmerEntry, ArrayList<Integer> mismatches, int peptideLength, int allowedMismatches) {
             return false;
         }
         //TODO ||EDITED: Needed to add in method here.||
         @Override
-        public boolean match_backwards(String peptideString, IKmerEntry kmerEntry, ArrayList<Integer> mismatches, int peptideLength, int offset, int allowedMismatches) {
+        public boolean match_backwards(String peptideString, KmerPostings.Cursor kmerEntry, ArrayList<Integer> mismatches, int peptideLength, int offset, int allowedMismatches) {
             return false;
         }
 
         @Override
         //forward matching with one in five stop criterion
-        public boolean match(String peptideString, IKmerEntry kmerEntry, ArrayList<Integer> mismatches, int peptideLength) {
+        public boolean match(String peptideString, KmerPostings.Cursor kmerEntry, ArrayList<Integer> mismatches, int peptideLength) {
             System.out.println("KmerTreeMap.ProteinMatcher.match 1in5 used");
-            int protein_length = kmerEntry.m_p_protein().get_sequence().length() - kmerEntry.m_pos_in_protein();
+            int protein_length = kmerEntry.store().length(kmerEntry.protein_index()) - kmerEntry.m_pos_in_protein();
             if (peptideLength <= protein_length) {
-                String p_protein = Utils.getCppStyleSubStringByShift(kmerEntry.m_p_protein().get_sequence(), kmerEntry.m_pos_in_protein());
+                byte[] residues = kmerEntry.store().residues();
+                int start = kmerEntry.store().start(kmerEntry.protein_index()) + kmerEntry.m_pos_in_protein();
                 for (int i = 0; i < peptideLength; i++) {
-                    if (peptideString.charAt(i) != p_protein.charAt(i)) {
+                    if (ProteomeStore.to_byte(peptideString.charAt(i)) != residues[start + i]) {
+                        if (GenomeMapper.PEPTIDE_MAPPER.SUBSTITUTIONS != null
+                                && !GenomeMapper.PEPTIDE_MAPPER.SUBSTITUTIONS.allows(residues[start + i], ProteomeStore.to_byte(peptideString.charAt(i)))) {
+                            return false;
+                        }
                         if (mismatches.size() != 0) {
                             if ((mismatches.get(mismatches.size() - 1) - i) <= GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES) {
                                 return false;
@@ -414,14 +431,19 @@ public class KmerTreeMap implements IKmerMap, Serializable {
 
         @Override
         //backwards matching functionality with one in five stop criterion.
-        public boolean match_backwards(String peptideString, IKmerEntry kmerEntry, ArrayList<Integer> mismatches, int peptideLength, int offset) {
+        public boolean match_backwards(String peptideString, KmerPostings.Cursor kmerEntry, ArrayList<Integer> mismatches, int peptideLength, int offset) {
             System.out.println("KmerTreeMap.ProteinMatcher.match_backwards 1in5 used");
             if (kmerEntry.m_pos_in_protein() >= offset) {
-                int protein_length = kmerEntry.m_p_protein().get_sequence().length() - kmerEntry.m_pos_in_protein() + offset;
+                int protein_length = kmerEntry.store().length(kmerEntry.protein_index()) - kmerEntry.m_pos_in_protein() + offset;
                 if (peptideLength <= protein_length) {
-                    String p_protein = Utils.getCppStyleSubStringByShift(kmerEntry.m_p_protein().get_sequence(), (kmerEntry.m_pos_in_protein() - offset));
+                    byte[] residues = kmerEntry.store().residues();
+                    int start = kmerEntry.store().start(kmerEntry.protein_index()) + kmerEntry.m_pos_in_protein() - offset;
                     for (int i = 0; i < peptideLength; i++) {
-                        if (peptideString.charAt(i) != p_protein.charAt(i)) {
+                        if (ProteomeStore.to_byte(peptideString.charAt(i)) != residues[start + i]) {
+                            if (GenomeMapper.PEPTIDE_MAPPER.SUBSTITUTIONS != null
+                                    && !GenomeMapper.PEPTIDE_MAPPER.SUBSTITUTIONS.allows(residues[start + i], ProteomeStore.to_byte(peptideString.charAt(i)))) {
+                                return false;
+                            }
                             if (mismatches.size() != 0) {
                                 if ((mismatches.get(mismatches.size() - 1) - i) <= GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES) {
                                     return false;
@@ -0,0 +1,243 @@
+package org.bigbio.pgatk.pepgenome.kmer.mapdb;
+
+import org.bigbio.pgatk.pepgenome.PossibleKeyGenerator;
+import org.bigbio.pgatk.pepgenome.common.ProteinEntry;
+import org.bigbio.pgatk.pepgenome.common.constants.GenomeMapper;
+import org.bigbio.pgatk.pepgenome.kmer.IKmerMap;
+import org.bigbio.pgatk.pepgenome.kmer.KmerEncoder;
+import org.bigbio.pgatk.pepgenome.kmer.KmerPostings;
+import org.bigbio.pgatk.pepgenome.kmer.KmerPresence;
+import org.bigbio.pgatk.pepgenome.kmer.PeptideMatches;
+import org.bigbio.pgatk.pepgenome.kmer.ProteomeStore;
+import org.bigbio.pgatk.pepgenome.kmer.QueryContext;
+import org.bigbio.pgatk.pepgenome.kmer.inmemory.KmerIntMap;
+import org.mapdb.BTreeMap;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.Serializer;
+
+import java.util.ArrayList;
+
+/**
+ * This code is licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * ==Overview==
+ *
+ * Disk backed kmer map: a MapDB BTree in a temporary (memory mapped if supported) file maps the code of every
+ * kmer (see {@link KmerEncoder}) to its packed postings, protein index and position alternating. Only the
+ * proteins stay on the heap.
+ *
+ * The tree is bulk loaded in ascending code order through a MapDB sink. The code space is split into chunks of
+ * at most {@link #MAX_CHUNK_POSTINGS} postings, the proteins are digested once per chunk and only the postings
+ * of the current chunk are held in memory.
+ *
+ * The tree is only read by lookups (MapDB trees can be read concurrently), so the loaded map can be queried
+ * from several threads.
+ */
+public class KmerMapDbMap implements IKmerMap {
+
+    //maximal number of postings held in memory while the tree is loaded.
+    public static final int MAX_CHUNK_POSTINGS = 1 << 24;
+
+    private static final String TREE_NAME = "kmers";
+
+    //length of the kmers, fixed when the map is created.
+    private final int m_kmer_length;
+
+    //all added proteins, the postings refer to them by index.
+    private ArrayList<ProteinEntry> m_proteins = new ArrayList<>();
+
+    //packed residues of m_proteins, used to verify candidates.
+    private ProteomeStore m_store;
+
+    private DB m_db;
+
+    //kmer code -> packed postings, null until the proteins are indexed. published after the store and presence.
+    private volatile BTreeMap<Integer, int[]> m_kmers;
+
+    //number of distinct kmers.
+    private int m_size;
+
+    //codes in the tree, keys that are not in it are skipped without a tree lookup.
+    private KmerPresence m_presence;
+
+    private KmerIntMap.ProteinMatcher proteinMatcher;
+
+    public KmerMapDbMap() {
+        this(GenomeMapper.PEPTIDE_MAPPER.KMER_LENGTH);
+    }
+
+    public KmerMapDbMap(int kmerLength) {
+        this.m_kmer_length = kmerLength;
+        //fails early if the kmer length can not be encoded.
+        KmerEncoder.table_size(kmerLength);
+
+        if ((GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES > 1) && GenomeMapper.PEPTIDE_MAPPER.ONE_IN_FIVE_MODE) {
+            proteinMatcher = new KmerIntMap.MatcherOneInFiveMode();
+        } else {
+            proteinMatcher = new KmerIntMap.MatcherNormal();
+        }
+    }
+
+    //adds a protein to the map. the proteins are digested when the tree is loaded.
+    public void add_protein(ProteinEntry protein) {
+        m_proteins.add(protein);
+        close();
+    }
+
+    /**
+     * Digests all added proteins and bulk loads the tree. Called on first use, calling it again
+     * is only needed after proteins have been added.
+     */
+    public synchronized void build_index() {
+        close();
+        m_db = DBMaker.tempFileDB()
+                .fileMmapEnableIfSupported()
+                .fileDeleteAfterClose()
+                .closeOnJvmShutdown()
+                .make();
+        DB.TreeMapSink<Integer, int[]> sink = m_db.treeMap(TREE_NAME, Serializer.INTEGER, Serializer.INT_ARRAY).createFromSink();
+
+        //postings per code, used to cut the code space into chunks.
+        int[] counts = new int[KmerEncoder.table_size(m_kmer_length)];
+        for (int i = 0; i < m_proteins.size(); i++) {
+            KmerEncoder.digest(m_proteins.get(i), i, m_kmer_length, (code, proteinIndex, position) -> counts[code]++);
+        }
+
+        m_presence = new KmerPresence(m_kmer_length);
+        for (int code = 0; code < counts.length; code++) {
+            if (counts[code] > 0) {
+                m_presence.add(code);
+            }
+        }
+
+        m_size = 0;
+        int from = 0;
+        while (from < counts.length) {
+            int to = from;
+            long postings = 0;
+            while (to < counts.length && (to == from || postings + counts[to] <= MAX_CHUNK_POSTINGS)) {
+                postings += counts[to++];
+            }
+            load_chunk(sink, from, to);
+            from = to;
+        }
+        m_store = ProteomeStore.of(m_proteins);
+        m_kmers = sink.create();
+    }
+
+    //digests the proteins and writes the postings of all codes in [from, to) to the sink.
+    private void load_chunk(DB.TreeMapSink<Integer, int[]> sink, int from, int to) {
+        KmerPostings chunk = KmerPostings.build(m_proteins, to - from, (protein, proteinIndex, visitor) ->
+                KmerEncoder.digest(protein, proteinIndex, m_kmer_length, (code, index, position) -> {
+                    if (code >= from && code < to) {
+                        visitor.visit(code - from, index, position);
+                    }
+                }));
+        for (int slot = 0; slot < to - from; slot++) {
+            int count = chunk.count(slot);
+            if (count == 0) {
+                continue;
+            }
+            int[] packed = new int[2 * count];
+            for (int i = 0; i < count; i++) {
+                packed[2 * i] = chunk.protein_index(chunk.start(slot) + i);
+                packed[2 * i + 1] = chunk.position(chunk.start(slot) + i);
+            }
+            sink.put(from + slot, packed);
+            m_size++;
+        }
+    }
+
+    //lookups of other threads wait for the load instead of starting their own one.
+    private BTreeMap<Integer, int[]> kmers() {
+        BTreeMap<Integer, int[]> kmers = m_kmers;
+        if (kmers == null) {
+            synchronized (this) {
+                if (m_kmers == null) {
+                    build_index();
+                }
+                kmers = m_kmers;
+            }
+        }
+        return kmers;
+    }
+
+    /**
+     * Closes the database, the temporary file is deleted. The tree is loaded again on the next lookup.
+     */
+    public synchronized void close() {
+        if (m_db != null) {
+            m_db.close();
+            m_db = null;
+            m_kmers = null;
+        }
+    }
+
+    //searches for all matches (imperfect matching, set via PEPTIDE_MAPPER).
+    public final PeptideMatches find_peptide(String peptide_string) {
+        return find_peptide(peptide_string, null, GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES, QueryContext.get());
+    }
+
+    //peptide filter mode: only the transcripts listed in targetTranscriptID ("all" for every transcript) are searched.
+    public final PeptideMatches find_peptide(String peptide_string, String targetTranscriptID, int allowedMismatches) {
+        String target = targetTranscriptID.contentEquals("all") ? null : targetTranscriptID;
+        return find_peptide(peptide_string, target, allowedMismatches, QueryContext.get());
+    }
+
+    private PeptideMatches find_peptide(String peptide_string, String targetTranscriptID, int allowedMismatches, QueryContext context) {
+        //the matches map a gene_id to all related transcript ids and all the peptides and their
+        //position in the protein sequence
+        BTreeMap<Integer, int[]> kmers = kmers();
+        int peptide_length = peptide_string.length();
+
+        context.reset();
+        if (targetTranscriptID != null) {
+            //only the proteins of the target transcripts are scanned, no keys are generated.
+            m_store.search_transcripts(peptide_string, targetTranscriptID, allowedMismatches, context);
+        } else {
+            PossibleKeyGenerator.generate_key_codes(peptide_string, allowedMismatches, m_kmer_length, m_presence, null, context);
+        }
+        //with several keys a candidate can be reached more than once, it is verified only the first time.
+        boolean dedup = context.key_count() > 1;
+        for (int key = 0; key < context.key_count(); key++) {
+            int[] postings = kmers.get(context.key_code(key));
+            if (postings == null) {
+                continue;
+            }
+            //the peptide is matched backwards from the key by the start of the key in the peptide.
+            //see PossibleKeyGenerator::set_original_key
+            int offset = context.key_offset(key);
+            for (int i = 0; i < postings.length; i += 2) {
+                int start = postings[i + 1] - offset;
+                if (dedup && !context.add_candidate(postings[i], start)) {
+                    continue;
+                }
+                context.clear_mismatches();
+                if (proteinMatcher.match(peptide_string, m_store, postings[i], start, context, peptide_length, allowedMismatches)) {
+                    context.add_hit(postings[i], start);
+                }
+            }
+        }
+        return PeptideMatches.of(context, m_store);
+    }
+
+    // returns true if a kmer (key) is in the digested proteins
+    public final boolean contains(String key) {
+        if (key.length() != m_kmer_length) {
+            return false;
+        }
+        kmers();
+        return m_presence.contains(KmerEncoder.encode(key, 0, m_kmer_length));
+    }
+
+    //returns the number of distinct kmers that were created during digestion
+    public final int size() {
+        kmers();
+        return m_size;
+    }
+}
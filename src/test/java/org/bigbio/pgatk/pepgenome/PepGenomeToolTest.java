@@ -11,6 +11,7 @@ import org.junit.runners.MethodSorters;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
 
@@ -140,6 +141,47 @@ public class PepGenomeToolTest {
 
     }
 
+    @Test
+    public void mainIndex() throws IOException {
+        log.info("IndexTest");
+        File indexFile = File.createTempFile("pepgenome", ".idx");
+        indexFile.deleteOnExit();
+
+        //the first run writes the index, the second one maps the peptides with it.
+        map("-index", "build", indexFile.getAbsolutePath());
+        assertMapsLikeCPogo("-index", "use", indexFile.getAbsolutePath());
+    }
+
+    @Test
+    public void mainIntEngine() throws IOException {
+        log.info("IntEngineTest");
+        assertMapsLikeCPogo("-engine", "int");
+    }
+
+    @Test
+    public void mainKmerResolutions() throws IOException {
+        log.info("KmerResolutionsTest");
+        assertMapsLikeCPogo("-kmer", "4,6");
+    }
+
+    @Test
+    public void mainSuffixArrayEngine() throws IOException {
+        log.info("SuffixArrayEngineTest");
+        assertMapsLikeCPogo("-engine", "sa");
+    }
+
+    @Test
+    public void mainBatchMode() throws IOException {
+        log.info("BatchModeTest");
+        assertMapsLikeCPogo("-batch", "1");
+    }
+
+    @Test
+    public void mainThreads() throws IOException {
+        log.info("ThreadsTest");
+        assertMapsLikeCPogo("-threads", "4");
+    }
+
     @Test
     public void mainInMemorySparkMode() throws IOException {
         log.info("InMemoryTest-SparkMode");
@@ -234,6 +276,40 @@ public class PepGenomeToolTest {
 
     }
 
+    //maps the small test file with the given options.
+    private void map(String... options) {
+        List<String> argList = new ArrayList<>(Arrays.asList("-in", fileIn, "-fasta", fileFasta, "-gtf", fileGTF));
+        argList.addAll(Arrays.asList(options));
+        PepGenomeTool.main(argList.toArray(new String[0]));
+    }
+
+    //maps the small test file with the given options and compares the bed file with the one of cPogo.
+    private void assertMapsLikeCPogo(String... options) throws IOException {
+        map(options);
+
+        List<List<String>> bedLines = TestUtils.getBedLines(new File(fileIn.replace(".txt", ".bed")));
+        Assert.assertEquals(29, bedLines.size());
+
+        List<List<String>> cPogoLines = TestUtils.getBedLines(new File(fileCPogo));
+        Assert.assertEquals(bedLines.size(), cPogoLines.size());
+
+        for (List<String> bedLine1 : bedLines) {
+            boolean found = false;
+            for (List<String> cbedLine : cPogoLines) {
+                if (bedLine1.get(3).equalsIgnoreCase(cbedLine.get(3))) {
+                    found = compareBedLines(bedLine1, cbedLine);
+                    log.info(bedLine1.get(3) + " -- " + found);
+                    if (found)
+                        break;
+                }
+            }
+            Assert.assertTrue(found);
+        }
+
+        deleteAfterTest();
+        log.info(" ");
+    }
+
     private boolean compareBedLines(List<String> bedLine, List<String> cbedLine) {
         return cbedLine.containsAll(bedLine);
     }
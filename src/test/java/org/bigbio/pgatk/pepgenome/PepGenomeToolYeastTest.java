@@ -0,0 +1,279 @@
+package org.bigbio.pgatk.pepgenome;
+
+import org.apache.log4j.Logger;
+import org.bigbio.pgatk.pepgenome.io.PeptideMappingPipeline;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.FixMethodOrder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runners.MethodSorters;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+
+/**
+ * This code is licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * ==Overview==
+ *
+ * Maps peptides of the yeast proteome with mismatches and compares the output files of different
+ * options, which have to produce the same results.
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class PepGenomeToolYeastTest {
+
+    private static final Logger log = Logger.getLogger(PepGenomeToolYeastTest.class);
+
+    private static String fileFasta = null;
+    private static String fileGTF = null;
+    private static List<String> proteins = null;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        fileFasta = TestUtils.unGzip(new File(Objects.requireNonNull(PepGenomeToolYeastTest.class.getClassLoader().getResource("taxonomies/Saccharomyces_cerevisiae.R64-1-1.pep.all.fa.gz")).toURI())).getAbsolutePath();
+        fileGTF = TestUtils.unGzip(new File(Objects.requireNonNull(PepGenomeToolYeastTest.class.getClassLoader().getResource("taxonomies/Saccharomyces_cerevisiae.R64-1-1.94.gtf.gz")).toURI())).getAbsolutePath();
+        proteins = read_sequences(fileFasta);
+    }
+
+    @Test
+    public void mismatchColoursAgreeAcrossEngines() throws IOException {
+        log.info("MismatchColoursTest");
+        List<String> rows = peptides(300, 1);
+        File tree = map("tree", rows, "-mm", "2");
+        Assert.assertTrue(new File(tree, "peptides_2MM.bed").length() > 0);
+
+        //the bed colour of a peptide with exact and mismatched hits must not depend on the order of the hits.
+        String[][] engines = {{"-engine", "int"}, {"-kmer", "4,6"}, {"-engine", "sa"}, {"-inm", "1"}};
+        for (String[] engine : engines) {
+            List<String> options = new ArrayList<>(Arrays.asList(engine));
+            options.addAll(Arrays.asList("-mm", "2"));
+            File other = map(engine[1].replace(",", "_"), rows, options.toArray(new String[0]));
+            assertSameFiles(tree, other, ".bed");
+        }
+    }
+
+    @Test
+    public void indexMatchesFastaAndFallsBack() throws IOException {
+        log.info("IndexTest");
+        List<String> rows = peptides(300, 7);
+        File fasta = map("fasta", rows, "-engine", "int", "-mm", "1");
+
+        File built = new File(folder.getRoot(), "yeast.idx");
+        map("build", rows, "-index", "build", built.getAbsolutePath(), "-mm", "1");
+        assertSameFiles(fasta, map("use", rows, "-index", "use", built.getAbsolutePath(), "-mm", "1"), "");
+
+        //an index of another fasta file is not used, the fasta file is read instead.
+        File otherFasta = folder.newFile("other.fa");
+        Files.copy(new File(fileFasta).toPath(), otherFasta.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.write(otherFasta.toPath(), ">T0 pep gene:G0 transcript:T0 \nMKTAYIAKQR\n".getBytes(), StandardOpenOption.APPEND);
+        File other = new File(folder.getRoot(), "other.idx");
+        File otherIn = new File(folder.newFolder("other"), "peptides.txt");
+        Files.write(otherIn.toPath(), rows);
+        PepGenomeTool.main(new String[]{"-in", otherIn.getAbsolutePath(), "-fasta", otherFasta.getAbsolutePath(), "-gtf", fileGTF, "-index", "build", other.getAbsolutePath()});
+        Assert.assertTrue(other.length() > 0);
+        assertSameFiles(fasta, map("fallback", rows, "-index", "use", other.getAbsolutePath(), "-mm", "1"), "");
+    }
+
+    @Test
+    public void mismatchBedMatchesBaseline() throws Exception {
+        log.info("MismatchBaselineTest");
+        //bed files of the release before the seed selection. the peptides have either no exact hit or no mismatched
+        //one, peptides with both were coloured by the hit found last there.
+        List<String> rows = Files.readAllLines(resource("taxonomies/yeast-mismatches.txt").toPath());
+        for (String mismatches : new String[]{"1", "2"}) {
+            File expected = resource("taxonomies/expected/yeast-mismatches_" + mismatches + "MM.bed");
+            for (String engine : new String[]{"tree", "int"}) {
+                File dir = map(engine + mismatches, rows, "-engine", engine, "-mm", mismatches);
+                Assert.assertEquals(engine + " -mm " + mismatches, new String(Files.readAllBytes(expected.toPath())), new String(Files.readAllBytes(new File(dir, "peptides_" + mismatches + "MM.bed").toPath())));
+            }
+        }
+    }
+
+    @Test
+    public void shortPeptidesWithThreeMismatches() throws IOException {
+        log.info("ThreeMismatchesTest");
+        //peptides too short for kmer seeds of 3 mismatches are searched with all 3. the filter mode scan of every
+        //transcript verifies every start of every protein, it finds the same hits.
+        List<String> rows = peptides(40, 5, 7, 11);
+        rows.add("s0\tLDETYKGVE\t1\t1");
+        File mismatches = map("mm3", rows, "-mm", "3");
+        Assert.assertTrue(new File(mismatches, "peptides_3MM.bed").length() > 0);
+
+        String transcripts = String.join(",", transcript_ids(fileFasta));
+        List<String> filterRows = new ArrayList<>();
+        for (String row : rows) {
+            filterRows.add(row.startsWith("Sample") ? row : row + "\t3\t" + transcripts);
+        }
+        File filter = map("filter", filterRows, "-mm", "3", "-filter", "true");
+        assertSameFiles(filter, mismatches, ".bed");
+    }
+
+    @Test
+    public void threadsMatchOneThread() throws IOException {
+        log.info("ThreadsTest");
+        //several batches of rows, with peptides of earlier batches repeated in later ones.
+        List<String> rows = peptides(2 * PeptideMappingPipeline.BATCH_SIZE + 500, 2);
+        rows.addAll(peptides(PeptideMappingPipeline.BATCH_SIZE, 2).subList(1, PeptideMappingPipeline.BATCH_SIZE + 1));
+        File serial = map("serial", rows, "-mm", "1", "-threads", "1");
+        Assert.assertTrue(new File(serial, "peptides_1MM.bed").length() > 0);
+        File threads = map("threads", rows, "-mm", "1", "-threads", "4");
+        assertSameFiles(serial, threads, "");
+    }
+
+    @Test
+    public void tissuesMatchOneThread() throws IOException {
+        log.info("TissuesTest");
+        //few peptides in many tissues: the rows of a peptide are spread over all batches, the tissues first
+        //appear in different batches.
+        List<String> peptides = peptides(80, 5);
+        Random random = new Random(6);
+        List<String> rows = new ArrayList<>();
+        rows.add(peptides.get(0));
+        for (int i = 0; i < 3 * PeptideMappingPipeline.BATCH_SIZE; i++) {
+            String[] row = peptides.get(1 + random.nextInt(peptides.size() - 1)).split("\t");
+            int tissues = 1 + Math.min(i / 300, 9);
+            rows.add("t" + random.nextInt(tissues) + "\t" + row[1] + "\t" + row[2] + "\t" + (i % 17));
+        }
+        File serial = map("serial", rows, "-mm", "1", "-threads", "1");
+        List<String> gct = Files.readAllLines(new File(serial, "peptides_1MM.gct").toPath());
+        Assert.assertTrue(gct.get(2).endsWith("\tt9"));
+        File threads = map("threads", rows, "-mm", "1", "-threads", "4");
+        assertSameFiles(serial, threads, "");
+    }
+
+    @Test
+    public void concurrentFilesMatchSequentialFiles() throws IOException {
+        log.info("FilesTest");
+        //the files share peptides, each one is mapped into results of its own.
+        List<List<String>> files = Arrays.asList(peptides(600, 3), peptides(400, 4), peptides(600, 3).subList(0, 300));
+        File sequential = map_files("sequential", files, "-mm", "1", "-files", "1");
+        File concurrent = map_files("concurrent", files, "-mm", "1", "-files", "3", "-threads", "2");
+        for (int i = 0; i < files.size(); i++) {
+            Assert.assertTrue(new File(sequential, "peptides" + i + "_1MM.bed").length() > 0);
+        }
+        assertSameFiles(sequential, concurrent, "");
+    }
+
+    private static File resource(String name) throws Exception {
+        return new File(Objects.requireNonNull(PepGenomeToolYeastTest.class.getClassLoader().getResource(name)).toURI());
+    }
+
+    //writes the rows into a folder of its own and maps them, the output files are written next to the input.
+    private File map(String name, List<String> rows, String... options) throws IOException {
+        File dir = folder.newFolder(name);
+        File fileIn = new File(dir, "peptides.txt");
+        Files.write(fileIn.toPath(), rows);
+
+        List<String> argList = new ArrayList<>(Arrays.asList("-in", fileIn.getAbsolutePath(), "-fasta", fileFasta, "-gtf", fileGTF));
+        argList.addAll(Arrays.asList(options));
+        PepGenomeTool.main(argList.toArray(new String[0]));
+        return dir;
+    }
+
+    //writes every file of rows into the same folder and maps them without merging.
+    private File map_files(String name, List<List<String>> files, String... options) throws IOException {
+        File dir = folder.newFolder(name);
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            File fileIn = new File(dir, "peptides" + i + ".txt");
+            Files.write(fileIn.toPath(), files.get(i));
+            paths.add(fileIn.getAbsolutePath());
+        }
+
+        List<String> argList = new ArrayList<>(Arrays.asList("-in", String.join(",", paths), "-fasta", fileFasta, "-gtf", fileGTF));
+        argList.addAll(Arrays.asList(options));
+        PepGenomeTool.main(argList.toArray(new String[0]));
+        return dir;
+    }
+
+    //compares every output file with the given suffix byte for byte.
+    private static void assertSameFiles(File expectedDir, File actualDir, String suffix) throws IOException {
+        String[] names = Objects.requireNonNull(expectedDir.list((dir, name) -> name.endsWith(suffix)));
+        Assert.assertTrue(names.length > 0);
+        for (String name : names) {
+            File actual = new File(actualDir, name);
+            Assert.assertTrue(actual + " is missing", actual.exists());
+            Assert.assertEquals(actualDir.getName() + "/" + name, new String(Files.readAllBytes(new File(expectedDir, name).toPath())), new String(Files.readAllBytes(actual.toPath())));
+        }
+    }
+
+    //tab input rows of random yeast peptides, half of them with a substitution, spread over four samples.
+    private static List<String> peptides(int count, long seed) {
+        return peptides(count, seed, 6, 25);
+    }
+
+    //the same with peptides of the given lengths.
+    private static List<String> peptides(int count, long seed, int minLength, int maxLength) {
+        Random random = new Random(seed);
+        List<String> rows = new ArrayList<>();
+        rows.add("Sample\tPeptide\tPSMs\tQuant");
+        while (rows.size() <= count) {
+            String sequence = proteins.get(random.nextInt(proteins.size()));
+            int length = minLength + random.nextInt(maxLength - minLength + 1);
+            if (sequence.length() <= length) {
+                continue;
+            }
+            int start = random.nextInt(sequence.length() - length);
+            char[] peptide = sequence.substring(start, start + length).toCharArray();
+            if (random.nextBoolean()) {
+                peptide[random.nextInt(length)] = 'A';
+            }
+            rows.add("s" + random.nextInt(4) + "\t" + new String(peptide) + "\t" + (1 + random.nextInt(5)) + "\t" + random.nextInt(10));
+        }
+        return rows;
+    }
+
+    //transcript ids of the fasta headers.
+    private static List<String> transcript_ids(String fasta) throws IOException {
+        List<String> ids = new ArrayList<>();
+        for (String line : Files.readAllLines(new File(fasta).toPath())) {
+            int start = line.startsWith(">") ? line.indexOf("transcript:") : -1;
+            if (start >= 0) {
+                int end = line.indexOf(' ', start);
+                ids.add(line.substring(start + "transcript:".length(), (end < 0) ? line.length() : end));
+            }
+        }
+        return ids;
+    }
+
+    private static List<String> read_sequences(String fasta) throws IOException {
+        List<String> sequences = new ArrayList<>();
+        StringBuilder sequence = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(new FileReader(fasta))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(">")) {
+                    if (sequence.length() > 0) {
+                        sequences.add(sequence.toString());
+                    }
+                    sequence.setLength(0);
+                } else {
+                    sequence.append(line.trim());
+                }
+            }
+        }
+        if (sequence.length() > 0) {
+            sequences.add(sequence.toString());
+        }
+        return sequences;
+    }
+}
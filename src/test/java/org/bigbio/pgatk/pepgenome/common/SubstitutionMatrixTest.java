@@ -0,0 +1,70 @@
+package org.bigbio.pgatk.pepgenome.common;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * This code is licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * ==Overview==
+ *
+ * Tests the built in single nucleotide matrix and the matrix files of -subst.
+ */
+public class SubstitutionMatrixTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void singleNucleotide() throws IOException {
+        SubstitutionMatrix matrix = SubstitutionMatrix.single_nucleotide();
+        //TGG (W) -> TGT (C), TTT (F) -> TTA (L), GAT (D) -> GAA (E).
+        Assert.assertTrue(matrix.allows('W', 'C'));
+        Assert.assertTrue(matrix.allows('F', 'J'));
+        Assert.assertTrue(matrix.allows('D', 'E'));
+        Assert.assertTrue(matrix.allows('K', 'K'));
+        //W and A differ in two bases, no codon of K reaches W.
+        Assert.assertFalse(matrix.allows('W', 'A'));
+        Assert.assertFalse(matrix.allows('K', 'W'));
+        //the residues are compared as iso sequences, I and L are stored as J.
+        Assert.assertFalse(matrix.allows('M', 'L'));
+        Assert.assertTrue(matrix.allows('M', 'J'));
+        Assert.assertTrue(matrix.allows((byte) 'W', (byte) 'C'));
+        Assert.assertFalse(matrix.allows((byte) 'W', (byte) 0x80));
+
+        Assert.assertEquals(matrix.size(), SubstitutionMatrix.of(SubstitutionMatrix.SINGLE_NUCLEOTIDE).size());
+        Assert.assertEquals(1 + 2.0 / 3, SubstitutionMatrix.single_nucleotide().variants(new char[]{'D', 'E', 'W'}), 1e-9);
+    }
+
+    @Test
+    public void matrixFile() throws IOException {
+        File file = folder.newFile("substitutions.txt");
+        Files.write(file.toPath(), Arrays.asList("# reference > variant", "A>V", "", "de NQ", "L,K", "G\tS"));
+        SubstitutionMatrix matrix = SubstitutionMatrix.of(file.getAbsolutePath());
+        Assert.assertTrue(matrix.allows('A', 'V'));
+        Assert.assertFalse(matrix.allows('V', 'A'));
+        Assert.assertTrue(matrix.allows('D', 'N'));
+        Assert.assertTrue(matrix.allows('E', 'Q'));
+        Assert.assertTrue(matrix.allows('J', 'K'));
+        Assert.assertTrue(matrix.allows('G', 'S'));
+        Assert.assertEquals(7, matrix.size());
+    }
+
+    @Test(expected = IOException.class)
+    public void invalidLine() throws IOException {
+        File file = folder.newFile("substitutions.txt");
+        Files.write(file.toPath(), Arrays.asList("A>V", "A>V>W"));
+        SubstitutionMatrix.of(file.getAbsolutePath());
+    }
+}
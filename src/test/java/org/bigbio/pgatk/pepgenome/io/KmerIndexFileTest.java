@@ -0,0 +1,123 @@
+package org.bigbio.pgatk.pepgenome.io;
+
+import org.bigbio.pgatk.pepgenome.CoordinateWrapper;
+import org.bigbio.pgatk.pepgenome.common.ProteinEntry;
+import org.bigbio.pgatk.pepgenome.common.constants.GenomeMapper;
+import org.bigbio.pgatk.pepgenome.kmer.KmerPostings;
+import org.bigbio.pgatk.pepgenome.kmer.inmemory.KmerIntMap;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * This code is licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * ==Overview==
+ *
+ * Writes the index of a small fasta file, reads it back and checks that index files of other fasta files,
+ * kmer lengths or versions are refused.
+ */
+public class KmerIndexFileTest {
+
+    private static final char[] RESIDUES = GenomeMapper.PEPTIDE_MAPPER.ALLOWED_AMINO_ACIDS;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File fasta;
+    private File index;
+    private KmerIntMap map;
+
+    @Before
+    public void setUp() throws Exception {
+        Random random = new Random(31);
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            lines.add(">T" + i + " pep gene:G" + i + " transcript:T" + i + " ");
+            StringBuilder sequence = new StringBuilder();
+            int length = 20 + random.nextInt(200);
+            for (int j = 0; j < length; j++) {
+                sequence.append(RESIDUES[random.nextInt(RESIDUES.length)]);
+            }
+            lines.add(sequence.toString());
+        }
+        fasta = folder.newFile("proteins.fa");
+        Files.write(fasta.toPath(), lines);
+        index = new File(folder.getRoot(), "proteins.idx");
+
+        CoordinateWrapper coordinates = new CoordinateWrapper();
+        coordinates.read_fasta_file(fasta.getAbsolutePath());
+        map = new KmerIntMap();
+        coordinates.add_all_proteins_to_kmer_map(map);
+        KmerIndexFile.write(index.getAbsolutePath(), fasta.getAbsolutePath(), map);
+    }
+
+    @Test
+    public void readsWhatWasWritten() throws Exception {
+        CoordinateWrapper coordinates = new CoordinateWrapper();
+        KmerIntMap read = KmerIndexFile.read(index.getAbsolutePath(), fasta.getAbsolutePath(), GenomeMapper.PEPTIDE_MAPPER.KMER_LENGTH, coordinates);
+
+        KmerPostings expected = map.postings();
+        KmerPostings actual = read.postings();
+        Assert.assertEquals(expected.proteins().length, coordinates.size());
+        Assert.assertEquals(expected.offsets(), actual.offsets());
+        Assert.assertEquals(expected.protein_indexes(), actual.protein_indexes());
+        Assert.assertEquals(expected.positions(), actual.positions());
+        Assert.assertEquals(expected.used_slots(), actual.used_slots());
+        for (int i = 0; i < expected.proteins().length; i++) {
+            ProteinEntry protein = expected.proteins()[i];
+            Assert.assertEquals(protein.get_fasta_header(), actual.proteins()[i].get_fasta_header());
+            Assert.assertEquals(protein.get_sequence(), actual.proteins()[i].get_sequence());
+            Assert.assertEquals(protein.get_transcript_id(), actual.proteins()[i].get_transcript_id());
+            Assert.assertNotNull(coordinates.lookup_entry(protein.get_transcript_id()));
+        }
+
+        String peptide = expected.proteins()[3].get_sequence().substring(5, 15);
+        Assert.assertEquals(map.find_peptide(peptide).gene_id_map().keySet(), read.find_peptide(peptide).gene_id_map().keySet());
+        Assert.assertFalse(read.find_peptide(peptide).is_empty());
+    }
+
+    @Test(expected = IOException.class)
+    public void otherFasta() throws Exception {
+        //the fingerprint covers the content of the fasta file.
+        Files.write(fasta.toPath(), ">T99 pep gene:G99 transcript:T99 \nMKTAYIAKQR\n".getBytes(), StandardOpenOption.APPEND);
+        KmerIndexFile.read(index.getAbsolutePath(), fasta.getAbsolutePath(), GenomeMapper.PEPTIDE_MAPPER.KMER_LENGTH, new CoordinateWrapper());
+    }
+
+    @Test(expected = IOException.class)
+    public void otherKmerLength() throws Exception {
+        KmerIndexFile.read(index.getAbsolutePath(), fasta.getAbsolutePath(), GenomeMapper.PEPTIDE_MAPPER.KMER_LENGTH + 1, new CoordinateWrapper());
+    }
+
+    @Test(expected = IOException.class)
+    public void otherVersion() throws Exception {
+        try (RandomAccessFile file = new RandomAccessFile(index, "rw")) {
+            file.seek(4);
+            file.writeInt(-1);
+        }
+        KmerIndexFile.read(index.getAbsolutePath(), fasta.getAbsolutePath(), GenomeMapper.PEPTIDE_MAPPER.KMER_LENGTH, new CoordinateWrapper());
+    }
+
+    @Test(expected = IOException.class)
+    public void truncated() throws Exception {
+        try (RandomAccessFile file = new RandomAccessFile(index, "rw")) {
+            file.setLength(12);
+        }
+        KmerIndexFile.read(index.getAbsolutePath(), fasta.getAbsolutePath(), GenomeMapper.PEPTIDE_MAPPER.KMER_LENGTH, new CoordinateWrapper());
+    }
+}
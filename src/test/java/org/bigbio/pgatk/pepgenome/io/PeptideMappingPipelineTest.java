@@ -0,0 +1,130 @@
+package org.bigbio.pgatk.pepgenome.io;
+
+import org.bigbio.pgatk.pepgenome.common.ProteinEntry;
+import org.bigbio.pgatk.pepgenome.common.constants.GenomeMapper;
+import org.bigbio.pgatk.pepgenome.kmer.IKmerMap;
+import org.bigbio.pgatk.pepgenome.kmer.PeptideMatches;
+import org.bigbio.pgatk.pepgenome.kmer.inmemory.KmerIntMap;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This code is licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * ==Overview==
+ *
+ * Maps inputs of several batches with the pipeline and checks the matches and the insert order of the rows
+ * and that the searches shared between the rows are dropped once their rows are inserted.
+ */
+public class PeptideMappingPipelineTest {
+
+    private static final char[] RESIDUES = GenomeMapper.PEPTIDE_MAPPER.ALLOWED_AMINO_ACIDS;
+
+    private IKmerMap map;
+    private List<String> peptides;
+
+    @Before
+    public void setUp() {
+        Random random = new Random(13);
+        map = new KmerIntMap();
+        List<String> sequences = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            sequences.add(random_sequence(random, 200));
+            map.add_protein(new ProteinEntry(">T" + i + " pep gene:G" + i + " transcript:T" + i + " ", sequences.get(i)));
+        }
+        //peptides of the proteins and peptides without a match.
+        peptides = new ArrayList<>();
+        for (int i = 0; i < 3 * PeptideMappingPipeline.BATCH_SIZE; i++) {
+            if (i % 2 == 0) {
+                String sequence = sequences.get(random.nextInt(sequences.size()));
+                int start = random.nextInt(sequence.length() - 12);
+                peptides.add(sequence.substring(start, start + 12));
+            } else {
+                peptides.add(random_sequence(random, 12));
+            }
+        }
+    }
+
+    @Test
+    public void singleThread() throws Exception {
+        assertPipeline(1);
+    }
+
+    @Test
+    public void severalThreads() throws Exception {
+        assertPipeline(4);
+    }
+
+    private void assertPipeline(int threads) throws Exception {
+        //every peptide is read twice: first in its own batch, then in a later batch after the searches of the
+        //first reads are dropped.
+        List<String> rows = new ArrayList<>(peptides);
+        rows.addAll(peptides);
+        Random random = new Random(threads);
+        Collections.shuffle(rows.subList(0, peptides.size()), random);
+        Collections.shuffle(rows.subList(peptides.size(), rows.size()), random);
+
+        PeptideMappingPipeline pipeline = new PeptideMappingPipeline(map, Collections.emptySet(), threads, new AtomicLong()::getAndIncrement);
+        Map<String, Long> last_positions = new HashMap<>();
+        AtomicInteger inserted = new AtomicInteger();
+        AtomicInteger most_searches = new AtomicInteger();
+        Iterator<String> input = rows.iterator();
+        ByteArrayOutputStream unmapped = new ByteArrayOutputStream();
+        pipeline.run(() -> input.hasNext() ? new PeptideMappingPipeline.Row("s1", input.next(), 1, 1.0) : null, (row, out) -> {
+            PeptideMatches matches = row.matches();
+            Assert.assertEquals(row.peptide(), genes(map.find_peptide(row.iso_sequence())), genes(matches));
+            if (matches.is_empty()) {
+                out.write((row.peptide() + "\n").getBytes());
+            }
+            //rows of a peptide are inserted by one thread, in input order.
+            synchronized (last_positions) {
+                Long last = last_positions.put(row.iso_sequence(), row.position());
+                Assert.assertTrue(last == null || last < row.position());
+            }
+            most_searches.accumulateAndGet(pipeline.shared_searches(), Math::max);
+            inserted.incrementAndGet();
+        }, unmapped);
+
+        Assert.assertEquals(rows.size(), inserted.get());
+        Assert.assertEquals(0, pipeline.shared_searches());
+        if (threads == 1) {
+            Assert.assertTrue(most_searches.get() <= PeptideMappingPipeline.BATCH_SIZE);
+        }
+        //the unmapped lines are written in input order.
+        StringBuilder expected = new StringBuilder();
+        for (String row : rows) {
+            if (map.find_peptide(row).is_empty()) {
+                expected.append(row).append("\n");
+            }
+        }
+        Assert.assertEquals(expected.toString(), unmapped.toString());
+    }
+
+    private static String genes(PeptideMatches matches) {
+        return matches.gene_id_map().keySet() + " " + matches.is_variant();
+    }
+
+    private static String random_sequence(Random random, int length) {
+        StringBuilder sequence = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            sequence.append(RESIDUES[random.nextInt(RESIDUES.length)]);
+        }
+        return sequence.toString();
+    }
+}
@@ -0,0 +1,107 @@
+package org.bigbio.pgatk.pepgenome.kmer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * This code is licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * ==Overview==
+ *
+ * Scans random texts with automata of random patterns and compares the occurrences with the ones found
+ * by searching every pattern on its own.
+ */
+public class AhoCorasickTest {
+
+    @Test
+    public void occurrencesOfRandomPatterns() {
+        Random random = new Random(29);
+        //a small alphabet gives patterns that are prefixes and suffixes of each other, the large one states
+        //with direct child tables.
+        for (String alphabet : new String[]{"AB", "ACDEFGHJKMNPQRSTVWY"}) {
+            LinkedHashSet<String> distinct = new LinkedHashSet<>();
+            while (distinct.size() < 100) {
+                distinct.add(random_text(random, alphabet, 1 + random.nextInt(8)));
+            }
+            List<String> patterns = new ArrayList<>(distinct);
+            AhoCorasick automaton = new AhoCorasick(patterns);
+            Assert.assertEquals(patterns.size(), automaton.pattern_count());
+            for (int i = 0; i < 20; i++) {
+                String text = random_text(random, alphabet, random.nextInt(400));
+                assertScan(automaton, patterns, text);
+            }
+        }
+    }
+
+    @Test
+    public void charactersOutsideTheChildTables() {
+        //lower case and other characters are only found through the linked children.
+        List<String> patterns = Arrays.asList("A*", "*B", "ab", "AbC", "X", "XX", "XXX", "\u00e9A");
+        AhoCorasick automaton = new AhoCorasick(patterns);
+        assertScan(automaton, patterns, "A*B*ab*AbCXXXX\u00e9A*Bab");
+    }
+
+    @Test
+    public void denseRoot() {
+        //the root and its children have more children than the linked list limit.
+        List<String> patterns = new ArrayList<>();
+        for (char first = 'A'; first <= 'Z'; first++) {
+            for (char second = 'A'; second <= 'H'; second++) {
+                patterns.add("" + first + second);
+            }
+        }
+        patterns.add("Z");
+        AhoCorasick automaton = new AhoCorasick(patterns);
+        assertScan(automaton, patterns, "QAZZBHHAZQ@[AZ");
+    }
+
+    @Test
+    public void noPatterns() {
+        AhoCorasick automaton = new AhoCorasick(Collections.emptyList());
+        Assert.assertEquals(0, automaton.pattern_count());
+        automaton.scan("ACDEF", (pattern, start) -> Assert.fail());
+    }
+
+    //the occurrences are reported once each, ordered by their end.
+    private static void assertScan(AhoCorasick automaton, List<String> patterns, String text) {
+        List<int[]> hits = new ArrayList<>();
+        automaton.scan(text, (pattern, start) -> hits.add(new int[]{pattern, start}));
+
+        TreeSet<String> found = new TreeSet<>();
+        int last_end = -1;
+        for (int[] hit : hits) {
+            int end = hit[1] + patterns.get(hit[0]).length();
+            Assert.assertTrue(end >= last_end);
+            last_end = end;
+            Assert.assertTrue(found.add(hit[0] + ":" + hit[1]));
+        }
+
+        TreeSet<String> expected = new TreeSet<>();
+        for (int i = 0; i < patterns.size(); i++) {
+            for (int start = text.indexOf(patterns.get(i)); start >= 0; start = text.indexOf(patterns.get(i), start + 1)) {
+                expected.add(i + ":" + start);
+            }
+        }
+        Assert.assertEquals(text, expected, found);
+    }
+
+    private static String random_text(Random random, String alphabet, int length) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            text.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return text.toString();
+    }
+}
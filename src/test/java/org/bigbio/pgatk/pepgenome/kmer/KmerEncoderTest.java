@@ -0,0 +1,101 @@
+package org.bigbio.pgatk.pepgenome.kmer;
+
+import org.bigbio.pgatk.pepgenome.common.ProteinEntry;
+import org.bigbio.pgatk.pepgenome.common.constants.GenomeMapper;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * This code is licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * ==Overview==
+ *
+ * Tests the integer encoding of kmers used by the int kmer engine.
+ */
+public class KmerEncoderTest {
+
+    @Test
+    public void residueCodes() {
+        Set<Integer> codes = new HashSet<>();
+        for (char residue : GenomeMapper.PEPTIDE_MAPPER.ALLOWED_AMINO_ACIDS) {
+            int code = KmerEncoder.residue_code(residue);
+            Assert.assertTrue(code >= 0 && code < KmerEncoder.OTHER_RESIDUE);
+            codes.add(code);
+        }
+        Assert.assertEquals(GenomeMapper.PEPTIDE_MAPPER.ALLOWED_AMINO_ACIDS.length, codes.size());
+
+        //all other residues share one digit.
+        for (char residue : new char[]{'U', 'X', '*', 'B', 'Z', 'I', 'L', 'a', '\u00e9'}) {
+            Assert.assertEquals(KmerEncoder.OTHER_RESIDUE, KmerEncoder.residue_code(residue));
+        }
+    }
+
+    @Test
+    public void encodeIsUniquePerKmer() {
+        char[] residues = GenomeMapper.PEPTIDE_MAPPER.ALLOWED_AMINO_ACIDS;
+        Set<Integer> codes = new HashSet<>();
+        for (char a : residues) {
+            for (char b : residues) {
+                for (char c : residues) {
+                    int code = KmerEncoder.encode("" + a + b + c, 0, 3);
+                    Assert.assertTrue(code >= 0 && code < KmerEncoder.table_size(3));
+                    codes.add(code);
+                }
+            }
+        }
+        Assert.assertEquals(residues.length * residues.length * residues.length, codes.size());
+        Assert.assertEquals(KmerEncoder.encode("MKTAY", 0, 5), KmerEncoder.encode("GGMKTAYGG", 2, 5));
+    }
+
+    @Test
+    public void rollMatchesEncode() {
+        String sequence = "MKTAYJAKQRQJSFVKSHFSRQXJEERJGJJEVQ";
+        int kmerLength = 5;
+        int highestPower = KmerEncoder.power(kmerLength - 1);
+        int code = KmerEncoder.encode(sequence, 0, kmerLength);
+        for (int i = 1; i + kmerLength <= sequence.length(); i++) {
+            code = KmerEncoder.roll(code, sequence.charAt(i + kmerLength - 1), highestPower);
+            Assert.assertEquals(KmerEncoder.encode(sequence, i, kmerLength), code);
+        }
+    }
+
+    @Test
+    public void digestVisitsEveryKmer() {
+        ProteinEntry protein = new ProteinEntry(">T1 pep gene:G1 transcript:T1 ", "MKTAYJAKQRQ");
+        List<int[]> visited = new ArrayList<>();
+        KmerEncoder.digest(protein, 7, 5, (code, proteinIndex, position) -> visited.add(new int[]{code, proteinIndex, position}));
+
+        Assert.assertEquals(protein.get_sequence().length() - 4, visited.size());
+        for (int i = 0; i < visited.size(); i++) {
+            Assert.assertEquals(KmerEncoder.encode(protein.get_sequence(), i, 5), visited.get(i)[0]);
+            Assert.assertEquals(7, visited.get(i)[1]);
+            Assert.assertEquals(i, visited.get(i)[2]);
+        }
+
+        //proteins shorter than a kmer have no kmers.
+        visited.clear();
+        KmerEncoder.digest(new ProteinEntry(">T2 pep gene:G2 transcript:T2 ", "MKTA"), 0, 5, (code, proteinIndex, position) -> visited.add(new int[]{code}));
+        Assert.assertTrue(visited.isEmpty());
+    }
+
+    @Test
+    public void tableSize() {
+        Assert.assertEquals(KmerEncoder.RADIX, KmerEncoder.table_size(1));
+        Assert.assertEquals(KmerEncoder.power(5), KmerEncoder.table_size(5));
+        Assert.assertTrue((long) KmerEncoder.table_size(KmerEncoder.MAX_KMER_LENGTH) * KmerEncoder.RADIX > Integer.MAX_VALUE);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tableSizeTooLong() {
+        KmerEncoder.table_size(KmerEncoder.MAX_KMER_LENGTH + 1);
+    }
+}
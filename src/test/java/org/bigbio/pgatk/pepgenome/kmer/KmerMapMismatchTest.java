@@ -0,0 +1,384 @@
+package org.bigbio.pgatk.pepgenome.kmer;
+
+import org.bigbio.pgatk.pepgenome.common.PositionMismatchT;
+import org.bigbio.pgatk.pepgenome.common.ProteinEntry;
+import org.bigbio.pgatk.pepgenome.common.SubstitutionMatrix;
+import org.bigbio.pgatk.pepgenome.common.TranscriptsT;
+import org.bigbio.pgatk.pepgenome.common.constants.GenomeMapper;
+import org.bigbio.pgatk.pepgenome.kmer.inmemory.KmerBatchMap;
+import org.bigbio.pgatk.pepgenome.kmer.inmemory.KmerIntMap;
+import org.bigbio.pgatk.pepgenome.kmer.inmemory.KmerMultiMap;
+import org.bigbio.pgatk.pepgenome.kmer.inmemory.KmerSuffixArrayMap;
+import org.bigbio.pgatk.pepgenome.kmer.inmemory.KmerTreeMap;
+import org.bigbio.pgatk.pepgenome.kmer.mapdb.KmerMapDbMap;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.function.Supplier;
+
+/**
+ * This code is licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * ==Overview==
+ *
+ * Maps peptides with mismatches against a small random proteome with every kmer engine and compares
+ * the hits with a brute force scan of all proteins. The proteome holds near copies of some proteins,
+ * so peptides have exact and mismatched hits at the same time.
+ */
+public class KmerMapMismatchTest {
+
+    private static final char[] RESIDUES = GenomeMapper.PEPTIDE_MAPPER.ALLOWED_AMINO_ACIDS;
+
+    private List<ProteinEntry> proteins;
+
+    @Before
+    public void setUp() {
+        Random random = new Random(11);
+        proteins = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            StringBuilder sequence = new StringBuilder();
+            int length = 150 + random.nextInt(150);
+            for (int j = 0; j < length; j++) {
+                sequence.append(RESIDUES[random.nextInt(RESIDUES.length)]);
+            }
+            proteins.add(protein(i, sequence.toString()));
+        }
+        //near copies: a second transcript of the same gene and a paralog of another gene.
+        for (int i = 0; i < 10; i++) {
+            proteins.add(protein(30 + i, mutate(proteins.get(i).get_sequence(), 1 + i % 3, random)));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES = 0;
+        GenomeMapper.PEPTIDE_MAPPER.ONE_IN_FIVE_MODE = false;
+        GenomeMapper.PEPTIDE_MAPPER.SUBSTITUTIONS = null;
+    }
+
+    @Test
+    public void treeEngine() {
+        assertEngine(KmerTreeMap::new);
+    }
+
+    @Test
+    public void intEngine() {
+        assertEngine(KmerIntMap::new);
+    }
+
+    @Test
+    public void multiResolutionEngine() {
+        assertEngine(() -> new KmerMultiMap(4, 6));
+    }
+
+    @Test
+    public void suffixArrayEngine() {
+        assertEngine(KmerSuffixArrayMap::new);
+    }
+
+    @Test
+    public void mapDbEngine() {
+        assertEngine(KmerMapDbMap::new);
+    }
+
+    @Test
+    public void batchEngine() {
+        //exact matches are precomputed for the peptides of the batch, all other lookups use the int map.
+        List<String> peptides = peptides(new Random(9), 6, 30, 60);
+        KmerBatchMap map = new KmerBatchMap(peptides.subList(0, 40), map(KmerIntMap::new));
+        for (ProteinEntry protein : proteins) {
+            map.add_protein(protein);
+        }
+        for (String peptide : peptides) {
+            PeptideMatches matches = map.find_peptide(peptide);
+            Assert.assertEquals(peptide, brute_force(peptide, 0), hits(matches));
+            Assert.assertFalse(matches.is_variant());
+        }
+    }
+
+    @Test
+    public void shortPeptidesOnShortSeeds() {
+        //peptides shorter than 3 kmers can not be split into kmer seeds for 2 mismatches, the int engine
+        //searches them through the short seed map or the neighbour keys, whichever is cheaper.
+        GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES = 2;
+        SearchReport.get().reset();
+        List<String> peptides = peptides(new Random(8), 6, 14, 80);
+        IKmerMap map = map(KmerIntMap::new);
+        for (String peptide : peptides) {
+            Assert.assertEquals(peptide, brute_force(peptide, 2), hits(map.find_peptide(peptide)));
+        }
+        Assert.assertTrue(SearchReport.get().peptides(SearchStrategy.SHORT_SEEDS) > 0);
+        SearchReport.get().reset();
+    }
+
+    @Test
+    public void multiResolutionSizes() {
+        //every resolution counts the distinct kmers of its own length.
+        KmerMultiMap map = (KmerMultiMap) map(() -> new KmerMultiMap(6, 4));
+        Assert.assertArrayEquals(new int[]{4, 6}, map.kmer_lengths());
+        int[] sizes = map.sizes();
+        for (int i = 0; i < sizes.length; i++) {
+            TreeSet<String> kmers = new TreeSet<>();
+            for (ProteinEntry protein : proteins) {
+                String sequence = protein.get_sequence();
+                for (int start = 0; start + map.kmer_lengths()[i] <= sequence.length(); start++) {
+                    kmers.add(sequence.substring(start, start + map.kmer_lengths()[i]));
+                }
+            }
+            Assert.assertEquals(kmers.size(), sizes[i]);
+        }
+    }
+
+    @Test
+    public void shortPeptidesWithMoreMismatches() {
+        //peptides shorter than (mismatches + 1) kmers are split into seeds of 3 or 2 residues, shorter ones are
+        //scanned in all proteins. every peptide is searched with the full budget.
+        SearchReport.get().reset();
+        List<String> peptides = peptides(new Random(7), 6, 16, 60);
+        for (int mismatches = 3; mismatches <= 4; mismatches++) {
+            GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES = mismatches;
+            for (Supplier<IKmerMap> engine : Arrays.<Supplier<IKmerMap>>asList(KmerIntMap::new, () -> new KmerMultiMap(4, 6))) {
+                IKmerMap map = map(engine);
+                for (String peptide : peptides) {
+                    Assert.assertEquals(peptide + " with " + mismatches + " mismatches", brute_force(peptide, mismatches), hits(map.find_peptide(peptide)));
+                }
+            }
+        }
+        Assert.assertTrue(SearchReport.get().peptides(SearchStrategy.SHORT_SEEDS) > 0);
+        Assert.assertTrue(SearchReport.get().peptides(SearchStrategy.PROTEOME_SCAN) > 0);
+        SearchReport.get().reset();
+    }
+
+    @Test
+    public void oneInFiveMode() {
+        //the one in five matchers stop at the second mismatch: with a budget of 2 at most one is found.
+        List<String> peptides = peptides(new Random(6), 6, 30, 60);
+        GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES = 2;
+        GenomeMapper.PEPTIDE_MAPPER.ONE_IN_FIVE_MODE = true;
+        for (Supplier<IKmerMap> engine : engines()) {
+            IKmerMap map = map(engine);
+            for (String peptide : peptides) {
+                Assert.assertEquals(peptide, brute_force(peptide, 1), hits(map.find_peptide(peptide)));
+            }
+        }
+    }
+
+    @Test
+    public void substitutionMatrix() {
+        //only mismatches reachable by a single nucleotide change are hits.
+        SubstitutionMatrix substitutions = SubstitutionMatrix.single_nucleotide();
+        List<String> peptides = peptides(new Random(10), 6, 30, 60);
+        for (int mismatches = 1; mismatches <= 2; mismatches++) {
+            GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES = mismatches;
+            GenomeMapper.PEPTIDE_MAPPER.SUBSTITUTIONS = substitutions;
+            for (Supplier<IKmerMap> engine : engines()) {
+                IKmerMap map = map(engine);
+                int rejected = 0;
+                for (String peptide : peptides) {
+                    TreeSet<String> expected = brute_force(peptide, mismatches, substitutions);
+                    Assert.assertEquals(peptide + " with " + mismatches + " mismatches", expected, hits(map.find_peptide(peptide)));
+                    rejected += brute_force(peptide, mismatches).size() - expected.size();
+                }
+                Assert.assertTrue(rejected > 0);
+            }
+        }
+    }
+
+    @Test
+    public void filterMode() {
+        //targets of the tab input list versioned ids with any of the separators, the versions are dropped.
+        String target = "T1.4, T31.2;T5.1|T7";
+        List<String> transcripts = Arrays.asList("T1", "T31", "T5", "T7");
+        List<String> peptides = peptides(new Random(3), 6, 30, 150);
+        GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES = 2;
+        for (Supplier<IKmerMap> engine : engines()) {
+            IKmerMap map = map(engine);
+            int found = 0;
+            for (String peptide : peptides) {
+                for (int mismatches = 0; mismatches <= 2; mismatches++) {
+                    TreeSet<String> expected = brute_force(peptide, mismatches, transcripts);
+                    Assert.assertEquals(peptide + " with " + mismatches + " mismatches", expected, hits(map.find_peptide(peptide, target, mismatches)));
+                    found += expected.size();
+                }
+            }
+            Assert.assertTrue(found > 0);
+        }
+    }
+
+    @Test
+    public void filterModeOneInFive() {
+        //the one in five matchers stop at the second mismatch, filter mode searches the same budget.
+        List<String> transcripts = Arrays.asList("T2", "T32");
+        List<String> peptides = peptides(new Random(4), 6, 30, 150);
+        GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES = 2;
+        GenomeMapper.PEPTIDE_MAPPER.ONE_IN_FIVE_MODE = true;
+        for (Supplier<IKmerMap> engine : engines()) {
+            IKmerMap map = map(engine);
+            int mismatched = 0;
+            for (String peptide : peptides) {
+                TreeSet<String> expected = brute_force(peptide, 1, transcripts);
+                Assert.assertEquals(peptide, expected, hits(map.find_peptide(peptide, "T2.1,T32.5", 2)));
+                mismatched += has_variant_hit(expected) ? 1 : 0;
+            }
+            Assert.assertTrue(mismatched > 0);
+        }
+    }
+
+    //maps peptides with 0 to 2 mismatches with a budget of 0, 1 and 2 mismatches.
+    private void assertEngine(Supplier<IKmerMap> engine) {
+        List<String> peptides = peptides(new Random(5), 6, 30, 60);
+        int mixed = 0;
+        for (int mismatches = 0; mismatches <= 2; mismatches++) {
+            GenomeMapper.PEPTIDE_MAPPER.ALLOWED_MISMATCHES = mismatches;
+            IKmerMap map = map(engine);
+            for (String peptide : peptides) {
+                PeptideMatches matches = map.find_peptide(peptide);
+                Assert.assertEquals(peptide + " with " + mismatches + " mismatches", brute_force(peptide, mismatches), hits(matches));
+                //a candidate reached through several keys or seeds is reported once.
+                Assert.assertEquals(peptide, hits(matches).size(), hit_count(matches));
+                Assert.assertEquals(peptide, has_variant_hit(brute_force(peptide, mismatches)), matches.is_variant());
+                if (matches.is_variant() && brute_force(peptide, 0).size() > 0) {
+                    mixed++;
+                }
+            }
+        }
+        //some peptides have exact and mismatched hits, their matches are variants.
+        Assert.assertTrue(mixed > 0);
+    }
+
+    private static List<Supplier<IKmerMap>> engines() {
+        return Arrays.asList(KmerTreeMap::new, KmerIntMap::new, () -> new KmerMultiMap(4, 6), KmerSuffixArrayMap::new, KmerMapDbMap::new);
+    }
+
+    //builds a map of the proteome with the current mismatch settings.
+    private IKmerMap map(Supplier<IKmerMap> engine) {
+        IKmerMap map = engine.get();
+        for (ProteinEntry protein : proteins) {
+            map.add_protein(protein);
+        }
+        return map;
+    }
+
+    //random subsequences of the proteome with up to two substitutions each.
+    private List<String> peptides(Random random, int minLength, int maxLength, int count) {
+        List<String> peptides = new ArrayList<>();
+        while (peptides.size() < count) {
+            String sequence = proteins.get(random.nextInt(proteins.size())).get_sequence();
+            int length = minLength + random.nextInt(maxLength - minLength + 1);
+            int start = random.nextInt(sequence.length() - length + 1);
+            peptides.add(mutate(sequence.substring(start, start + length), peptides.size() % 3, random));
+        }
+        return peptides;
+    }
+
+    //the hits of brute_force in the given transcripts.
+    private TreeSet<String> brute_force(String peptide, int allowedMismatches, List<String> transcripts) {
+        TreeSet<String> hits = brute_force(peptide, allowedMismatches);
+        hits.removeIf(hit -> !transcripts.contains(hit.substring(0, hit.indexOf(':'))));
+        return hits;
+    }
+
+    //the hits of brute_force whose mismatches are all allowed substitutions of the protein residue.
+    private TreeSet<String> brute_force(String peptide, int allowedMismatches, SubstitutionMatrix substitutions) {
+        TreeSet<String> hits = brute_force(peptide, allowedMismatches);
+        hits.removeIf(hit -> {
+            String[] fields = hit.split(":", -1);
+            String sequence = proteins.get(Integer.parseInt(fields[0].substring(1))).get_sequence();
+            for (String position : fields[2].split(",")) {
+                if (!position.isEmpty()) {
+                    int protein_position = Integer.parseInt(position);
+                    char variant = peptide.charAt(protein_position - Integer.parseInt(fields[1]));
+                    if (!substitutions.allows(sequence.charAt(protein_position), variant)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        });
+        return hits;
+    }
+
+    //every hit of a peptide as transcript:position:mismatch positions, found by comparing it with every position of every protein.
+    private TreeSet<String> brute_force(String peptide, int allowedMismatches) {
+        TreeSet<String> hits = new TreeSet<>();
+        for (ProteinEntry protein : proteins) {
+            String sequence = protein.get_sequence();
+            for (int start = 0; start + peptide.length() <= sequence.length(); start++) {
+                StringBuilder hit = new StringBuilder(protein.get_transcript_id() + ":" + start + ":");
+                int mismatches = 0;
+                for (int i = 0; i < peptide.length() && mismatches <= allowedMismatches; i++) {
+                    if (peptide.charAt(i) != sequence.charAt(start + i)) {
+                        hit.append(start + i).append(",");
+                        mismatches++;
+                    }
+                }
+                if (mismatches <= allowedMismatches) {
+                    hits.add(hit.toString());
+                }
+            }
+        }
+        return hits;
+    }
+
+    //the hits of a lookup in the format of brute_force.
+    static TreeSet<String> hits(PeptideMatches matches) {
+        TreeSet<String> hits = new TreeSet<>();
+        for (TranscriptsT transcripts : matches.gene_id_map().values()) {
+            for (Map.Entry<String, ArrayList<PositionMismatchT>> positions : transcripts.getM_entries().entrySet()) {
+                for (PositionMismatchT position : positions.getValue()) {
+                    StringBuilder hit = new StringBuilder(positions.getKey() + ":" + position.position_in_protein() + ":");
+                    for (int i = 0; i < position.mismatch_count(); i++) {
+                        hit.append(position.mismatch(i)).append(",");
+                    }
+                    hits.add(hit.toString());
+                }
+            }
+        }
+        return hits;
+    }
+
+    private static int hit_count(PeptideMatches matches) {
+        int count = 0;
+        for (TranscriptsT transcripts : matches.gene_id_map().values()) {
+            for (ArrayList<PositionMismatchT> positions : transcripts.getM_entries().values()) {
+                count += positions.size();
+            }
+        }
+        return count;
+    }
+
+    private static boolean has_variant_hit(TreeSet<String> hits) {
+        return hits.stream().anyMatch(hit -> !hit.endsWith(":"));
+    }
+
+    private static ProteinEntry protein(int index, String sequence) {
+        //the copies of the first 5 proteins are transcripts of the same gene.
+        String gene = "G" + ((index >= 30 && index < 35) ? index - 30 : index);
+        return new ProteinEntry(">T" + index + " pep gene:" + gene + " transcript:T" + index + " ", sequence);
+    }
+
+    private static String mutate(String sequence, int substitutions, Random random) {
+        char[] residues = sequence.toCharArray();
+        for (int i = 0; i < substitutions; i++) {
+            int position = random.nextInt(residues.length);
+            char residue;
+            do {
+                residue = RESIDUES[random.nextInt(RESIDUES.length)];
+            } while (residue == residues[position]);
+            residues[position] = residue;
+        }
+        return new String(residues);
+    }
+}
@@ -0,0 +1,181 @@
+package org.bigbio.pgatk.pepgenome.kmer;
+
+import org.bigbio.pgatk.pepgenome.common.ProteinEntry;
+import org.bigbio.pgatk.pepgenome.common.constants.GenomeMapper;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * This code is licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * ==Overview==
+ *
+ * Builds the postings of a small random proteome and compares every slot with the kmers found by
+ * scanning the proteins.
+ */
+public class KmerPostingsTest {
+
+    private static final char[] RESIDUES = GenomeMapper.PEPTIDE_MAPPER.ALLOWED_AMINO_ACIDS;
+    private static final int KMER_LENGTH = 3;
+
+    private List<ProteinEntry> proteins;
+
+    @Before
+    public void setUp() {
+        Random random = new Random(17);
+        proteins = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            StringBuilder sequence = new StringBuilder();
+            int length = 2 + random.nextInt(120);
+            for (int j = 0; j < length; j++) {
+                sequence.append(RESIDUES[random.nextInt(RESIDUES.length)]);
+            }
+            proteins.add(new ProteinEntry(">T" + i + " pep gene:G" + i + " transcript:T" + i + " ", sequence.toString()));
+        }
+    }
+
+    @Test
+    public void postingsOfEverySlot() {
+        KmerPostings postings = build();
+        Assert.assertEquals(KmerEncoder.table_size(KMER_LENGTH), postings.slot_count());
+
+        //the postings of a slot are the kmers encoded to it, ordered by protein and position.
+        List<List<int[]>> expected = scan();
+        int used = 0;
+        int total = 0;
+        for (int slot = 0; slot < postings.slot_count(); slot++) {
+            List<int[]> kmers = expected.get(slot);
+            Assert.assertEquals(kmers.size(), postings.count(slot));
+            for (int i = 0; i < kmers.size(); i++) {
+                int posting = postings.start(slot) + i;
+                Assert.assertEquals(kmers.get(i)[0], postings.protein_index(posting));
+                Assert.assertEquals(kmers.get(i)[1], postings.position(posting));
+                Assert.assertSame(proteins.get(kmers.get(i)[0]), postings.protein(posting));
+            }
+            used += kmers.isEmpty() ? 0 : 1;
+            total += kmers.size();
+        }
+        Assert.assertEquals(used, postings.used_slots());
+        Assert.assertEquals(total, postings.posting_count());
+
+        //slots outside the table have no postings.
+        Assert.assertEquals(0, postings.count(-1));
+        Assert.assertEquals(0, postings.count(postings.slot_count()));
+    }
+
+    @Test
+    public void growsWithoutSlotCount() {
+        //the tree map does not know its slots in advance.
+        KmerPostings postings = KmerPostings.build(proteins, 0, (protein, proteinIndex, visitor) -> KmerEncoder.digest(protein, proteinIndex, KMER_LENGTH, visitor));
+        KmerPostings sized = build();
+        for (int slot = 0; slot < Math.max(sized.slot_count(), postings.slot_count()); slot++) {
+            Assert.assertEquals(sized.count(slot), postings.count(slot));
+        }
+        Assert.assertEquals(sized.positions(), postings.positions());
+        Assert.assertEquals(sized.protein_indexes(), postings.protein_indexes());
+    }
+
+    @Test
+    public void parallelBuildMatchesSequentialBuild() {
+        KmerPostings sequential = build();
+        //more ranges than proteins, ranges of single proteins and a pool of one thread.
+        for (int threads : new int[]{1, 2, 3, 7, 64}) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                KmerPostings parallel = KmerPostings.build(proteins, KmerEncoder.table_size(KMER_LENGTH), (protein, proteinIndex, visitor) -> KmerEncoder.digest(protein, proteinIndex, KMER_LENGTH, visitor), pool);
+                assertSamePostings(sequential, parallel);
+                Assert.assertEquals(sequential.posting_count(), parallel.posting_count());
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void seekFindsFirstPostingNotBefore() {
+        KmerPostings postings = build();
+        Random random = new Random(3);
+        for (int slot = 0; slot < postings.slot_count(); slot++) {
+            int from = postings.start(slot);
+            int to = postings.end(slot);
+            for (int i = 0; i < 5 && to > from; i++) {
+                int proteinIndex = random.nextInt(proteins.size());
+                int position = random.nextInt(120);
+                int expected = from;
+                while (expected < to && (postings.protein_index(expected) < proteinIndex
+                        || (postings.protein_index(expected) == proteinIndex && postings.position(expected) < position))) {
+                    expected++;
+                }
+                Assert.assertEquals(expected, postings.seek(from, to, proteinIndex, position));
+            }
+        }
+    }
+
+    @Test
+    public void wrapAndSerialize() throws Exception {
+        KmerPostings postings = build();
+        KmerPostings wrapped = KmerPostings.wrap(postings.proteins(), postings.offsets(), postings.protein_indexes(), postings.positions());
+        assertSamePostings(postings, wrapped);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(postings);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            assertSamePostings(postings, (KmerPostings) in.readObject());
+        }
+    }
+
+    @Test
+    public void cursorMovesOverPostings() {
+        KmerPostings postings = build();
+        KmerPostings.Cursor cursor = new KmerPostings.Cursor(postings);
+        for (int posting = 0; posting < postings.posting_count(); posting += 7) {
+            cursor.move_to(posting);
+            Assert.assertEquals(postings.protein_index(posting), cursor.protein_index());
+            Assert.assertEquals(postings.position(posting), cursor.m_pos_in_protein());
+            Assert.assertSame(postings.protein(posting), cursor.m_p_protein());
+        }
+    }
+
+    static void assertSamePostings(KmerPostings expected, KmerPostings actual) {
+        Assert.assertEquals(expected.offsets(), actual.offsets());
+        Assert.assertEquals(expected.protein_indexes(), actual.protein_indexes());
+        Assert.assertEquals(expected.positions(), actual.positions());
+        Assert.assertEquals(expected.used_slots(), actual.used_slots());
+        Assert.assertEquals(expected.proteins().length, actual.proteins().length);
+    }
+
+    private KmerPostings build() {
+        return KmerPostings.build(proteins, KmerEncoder.table_size(KMER_LENGTH), (protein, proteinIndex, visitor) -> KmerEncoder.digest(protein, proteinIndex, KMER_LENGTH, visitor));
+    }
+
+    //slot -> protein index and position of every kmer, in protein order.
+    private List<List<int[]>> scan() {
+        List<List<int[]>> slots = new ArrayList<>();
+        for (int slot = 0; slot < KmerEncoder.table_size(KMER_LENGTH); slot++) {
+            slots.add(new ArrayList<>());
+        }
+        for (int i = 0; i < proteins.size(); i++) {
+            String sequence = proteins.get(i).get_sequence();
+            for (int position = 0; position + KMER_LENGTH <= sequence.length(); position++) {
+                slots.get(KmerEncoder.encode(sequence, position, KMER_LENGTH)).add(new int[]{i, position});
+            }
+        }
+        return slots;
+    }
+}
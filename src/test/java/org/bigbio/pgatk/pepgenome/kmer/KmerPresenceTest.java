@@ -0,0 +1,126 @@
+package org.bigbio.pgatk.pepgenome.kmer;
+
+import org.bigbio.pgatk.pepgenome.PossibleKeyGenerator;
+import org.bigbio.pgatk.pepgenome.common.ProteinEntry;
+import org.bigbio.pgatk.pepgenome.common.constants.GenomeMapper;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * This code is licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * ==Overview==
+ *
+ * Tests the kmer presence set and the neighbour keys it rejects against the kmers of a small random
+ * proteome.
+ */
+public class KmerPresenceTest {
+
+    private static final char[] RESIDUES = GenomeMapper.PEPTIDE_MAPPER.ALLOWED_AMINO_ACIDS;
+    private static final int KMER_LENGTH = 3;
+
+    @Test
+    public void containsTheKmersOfTheProteins() {
+        List<ProteinEntry> proteins = proteins(new Random(37));
+        Set<Integer> kmers = kmers(proteins);
+        KmerPresence presence = KmerPresence.of(proteins, KMER_LENGTH);
+        KmerPresence postings = KmerPresence.of(KmerPostings.build(proteins, KmerEncoder.table_size(KMER_LENGTH),
+                (protein, proteinIndex, visitor) -> KmerEncoder.digest(protein, proteinIndex, KMER_LENGTH, visitor)), KMER_LENGTH);
+        Assert.assertEquals(KMER_LENGTH, presence.kmer_length());
+        for (int code = 0; code < KmerEncoder.table_size(KMER_LENGTH); code++) {
+            Assert.assertEquals(kmers.contains(code), presence.contains(code));
+            Assert.assertEquals(kmers.contains(code), postings.contains(code));
+        }
+    }
+
+    @Test
+    public void neighbourKeysWithinTheMismatches() {
+        Random random = new Random(41);
+        List<ProteinEntry> proteins = proteins(random);
+        KmerPresence presence = KmerPresence.of(proteins, KMER_LENGTH);
+        QueryContext context = QueryContext.get();
+        for (int mismatches = 0; mismatches <= PossibleKeyGenerator.MAX_NEIGHBOUR_MISMATCHES; mismatches++) {
+            for (int i = 0; i < 20; i++) {
+                String key = random_sequence(random, KMER_LENGTH + random.nextInt(3));
+
+                context.clear_keys();
+                PossibleKeyGenerator.generate_neighbour_codes(key, mismatches, KMER_LENGTH, null, context);
+                List<Integer> all = keys(context);
+                Assert.assertEquals(PossibleKeyGenerator.neighbour_key_count(KMER_LENGTH, mismatches), all.size());
+                Assert.assertEquals(neighbours(key.substring(0, KMER_LENGTH), mismatches), new HashSet<>(all));
+
+                //the presence set only drops the keys the proteome does not have.
+                context.clear_keys();
+                PossibleKeyGenerator.generate_neighbour_codes(key, mismatches, KMER_LENGTH, presence, context);
+                List<Integer> present = new ArrayList<>(all);
+                present.removeIf(code -> !presence.contains(code));
+                Assert.assertEquals(present, keys(context));
+            }
+        }
+        context.clear_keys();
+    }
+
+    private static List<Integer> keys(QueryContext context) {
+        List<Integer> keys = new ArrayList<>();
+        for (int key = 0; key < context.key_count(); key++) {
+            Assert.assertEquals(0, context.key_offset(key));
+            keys.add(context.key_code(key));
+        }
+        return keys;
+    }
+
+    //codes of all kmers that differ from the kmer in at most the given number of residues.
+    private static Set<Integer> neighbours(String kmer, int mismatches) {
+        Set<Integer> codes = new HashSet<>();
+        char[] residues = new char[KMER_LENGTH];
+        int combinations = (int) Math.pow(RESIDUES.length, KMER_LENGTH);
+        for (int combination = 0; combination < combinations; combination++) {
+            int differing = 0;
+            for (int i = 0, rest = combination; i < KMER_LENGTH; i++, rest /= RESIDUES.length) {
+                residues[i] = RESIDUES[rest % RESIDUES.length];
+                differing += (residues[i] != kmer.charAt(i)) ? 1 : 0;
+            }
+            if (differing <= mismatches) {
+                codes.add(KmerEncoder.encode(new String(residues), 0, KMER_LENGTH));
+            }
+        }
+        return codes;
+    }
+
+    private static Set<Integer> kmers(List<ProteinEntry> proteins) {
+        Set<Integer> kmers = new HashSet<>();
+        for (ProteinEntry protein : proteins) {
+            String sequence = protein.get_sequence();
+            for (int i = 0; i + KMER_LENGTH <= sequence.length(); i++) {
+                kmers.add(KmerEncoder.encode(sequence, i, KMER_LENGTH));
+            }
+        }
+        return kmers;
+    }
+
+    private static List<ProteinEntry> proteins(Random random) {
+        List<ProteinEntry> proteins = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            proteins.add(new ProteinEntry(">T" + i + " pep gene:G" + i + " transcript:T" + i + " ", random_sequence(random, 50 + random.nextInt(100))));
+        }
+        return proteins;
+    }
+
+    private static String random_sequence(Random random, int length) {
+        StringBuilder sequence = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            sequence.append(RESIDUES[random.nextInt(RESIDUES.length)]);
+        }
+        return sequence.toString();
+    }
+}
@@ -0,0 +1,92 @@
+package org.bigbio.pgatk.pepgenome.kmer;
+
+import org.bigbio.pgatk.pepgenome.common.ProteinEntry;
+import org.bigbio.pgatk.pepgenome.common.constants.GenomeMapper;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * This code is licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * ==Overview==
+ *
+ * Compares the word verification kernel of the proteome store with a residue by residue comparison, for
+ * peptides of any length and mismatches in and across the words.
+ */
+public class ProteomeStoreTest {
+
+    private static final char[] RESIDUES = GenomeMapper.PEPTIDE_MAPPER.ALLOWED_AMINO_ACIDS;
+
+    @Test
+    public void matchCountsEveryMismatch() {
+        Random random = new Random(43);
+        List<ProteinEntry> proteins = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            proteins.add(new ProteinEntry(">T" + i + " pep gene:G" + i + " transcript:T" + i + " ", random_sequence(random, 60 + random.nextInt(60))));
+        }
+        ProteomeStore store = ProteomeStore.of(proteins);
+        QueryContext context = QueryContext.get();
+        for (int length = 1; length <= 40; length++) {
+            for (int i = 0; i < 40; i++) {
+                int proteinIndex = random.nextInt(proteins.size());
+                String sequence = proteins.get(proteinIndex).get_sequence();
+                int start = random.nextInt(sequence.length() - length + 1);
+                //substitutions at random positions, often the first and last residue of a word.
+                char[] peptide = sequence.substring(start, start + length).toCharArray();
+                int substitutions = random.nextInt(Math.min(length, 5) + 1);
+                for (int j = 0; j < substitutions; j++) {
+                    int position = random.nextBoolean() ? random.nextInt(length) : Math.min(length - 1, 8 * random.nextInt(5) + 7 * random.nextInt(2));
+                    peptide[position] = RESIDUES[random.nextInt(RESIDUES.length)];
+                }
+
+                List<Integer> expected = new ArrayList<>();
+                for (int j = 0; j < length; j++) {
+                    if (peptide[j] != sequence.charAt(start + j)) {
+                        expected.add(j);
+                    }
+                }
+                for (int allowed = 0; allowed <= 4; allowed++) {
+                    context.clear_mismatches();
+                    boolean match = store.match(context.packed_peptide(new String(peptide)), proteinIndex, start, length, allowed, context);
+                    Assert.assertEquals(new String(peptide) + " " + allowed, expected.size() <= allowed, match);
+                    if (match) {
+                        List<Integer> mismatches = new ArrayList<>();
+                        for (int j = 0; j < context.mismatch_count(); j++) {
+                            mismatches.add(context.mismatch(j));
+                        }
+                        Assert.assertEquals(expected, mismatches);
+                    }
+                }
+            }
+        }
+        context.clear_mismatches();
+    }
+
+    @Test
+    public void packPadsToWords() {
+        ByteBuffer packed = ProteomeStore.pack("MKTAYJAKQ", null);
+        Assert.assertTrue(packed.capacity() >= 16);
+        Assert.assertEquals(ProteomeStore.to_byte('J'), packed.get(5));
+        //the buffer is reused while it is large enough.
+        Assert.assertSame(packed, ProteomeStore.pack("MKT", packed));
+        Assert.assertEquals(ByteOrder.LITTLE_ENDIAN, packed.order());
+    }
+
+    private static String random_sequence(Random random, int length) {
+        StringBuilder sequence = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            sequence.append(RESIDUES[random.nextInt(RESIDUES.length)]);
+        }
+        return sequence.toString();
+    }
+}
@@ -0,0 +1,116 @@
+package org.bigbio.pgatk.pepgenome.kmer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * This code is licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * ==Overview==
+ *
+ * Compares the suffix array of random texts with sorted suffixes and pattern ranges with the occurrences
+ * found by scanning the text.
+ */
+public class SuffixArrayTest {
+
+    @Test
+    public void suffixesAreSorted() {
+        Random random = new Random(19);
+        //small alphabets give long shared prefixes and many doubling rounds.
+        for (String alphabet : new String[]{"A", "AB", "ABC$", "ACDEFGHJKMNPQRSTVWY$"}) {
+            for (int length : new int[]{0, 1, 2, 17, 300}) {
+                String text = random_text(random, alphabet, length);
+                SuffixArray array = new SuffixArray(bytes(text));
+                Assert.assertEquals(text.length(), array.length());
+
+                TreeSet<String> suffixes = new TreeSet<>();
+                for (int i = 0; i < text.length(); i++) {
+                    suffixes.add(text.substring(i));
+                }
+                List<String> sorted = new ArrayList<>();
+                for (int i = 0; i < array.length(); i++) {
+                    sorted.add(text.substring(array.suffix(i)));
+                }
+                Assert.assertEquals(text, new ArrayList<>(suffixes), sorted);
+            }
+        }
+    }
+
+    @Test
+    public void patternRanges() {
+        Random random = new Random(23);
+        String text = random_text(random, "ABCD$", 2000);
+        SuffixArray array = new SuffixArray(bytes(text));
+        for (int i = 0; i < 500; i++) {
+            int length = 1 + random.nextInt(8);
+            //patterns of the text and random ones, which are mostly missing for longer lengths.
+            String pattern;
+            if (random.nextBoolean()) {
+                int start = random.nextInt(text.length() - length);
+                pattern = text.substring(start, start + length);
+            } else {
+                pattern = random_text(random, "ABCDE", length);
+            }
+
+            int lower = array.lower_bound(pattern);
+            int upper = array.upper_bound(pattern);
+            Assert.assertEquals(pattern, occurrences(text, pattern), array.count(pattern));
+            for (int j = lower; j < upper; j++) {
+                Assert.assertTrue(text.startsWith(pattern, array.suffix(j)));
+            }
+            //the suffixes next to the range do not start with the pattern.
+            Assert.assertTrue(lower == 0 || !text.startsWith(pattern, array.suffix(lower - 1)));
+            Assert.assertTrue(upper == array.length() || !text.startsWith(pattern, array.suffix(upper)));
+        }
+    }
+
+    @Test
+    public void patternLongerThanText() {
+        SuffixArray array = new SuffixArray(bytes("ABAB"));
+        Assert.assertEquals(0, array.count("ABABA"));
+        Assert.assertEquals(2, array.count("AB"));
+        Assert.assertEquals(4, array.count(""));
+        Assert.assertEquals(0, new SuffixArray(new byte[0]).count("A"));
+    }
+
+    @Test
+    public void charactersAboveTheAlphabet() {
+        Assert.assertEquals((byte) 'A', SuffixArray.to_byte('A'));
+        Assert.assertEquals(SuffixArray.to_byte('\u00ff'), SuffixArray.to_byte('\u4e00'));
+        SuffixArray array = new SuffixArray(bytes("A\u00e9B\u00fcA"));
+        Assert.assertEquals(2, array.count("\u00ff"));
+    }
+
+    private static int occurrences(String text, String pattern) {
+        int count = 0;
+        for (int i = text.indexOf(pattern); i >= 0; i = text.indexOf(pattern, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    private static byte[] bytes(String text) {
+        byte[] bytes = new byte[text.length()];
+        for (int i = 0; i < text.length(); i++) {
+            bytes[i] = SuffixArray.to_byte(text.charAt(i));
+        }
+        return bytes;
+    }
+
+    private static String random_text(Random random, String alphabet, int length) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            text.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return text.toString();
+    }
+}